@@ -6,6 +6,7 @@ import java.util.function.Consumer;
 
 import dev.flowty.bowlby.app.cfg.Parameters;
 import dev.flowty.bowlby.app.github.Artifacts;
+import dev.flowty.bowlby.app.github.DownloadScheduler;
 import dev.flowty.bowlby.app.github.GithubApiClient;
 import dev.flowty.bowlby.app.srv.Server;
 import dev.flowty.bowlby.app.ui.Gui;
@@ -31,6 +32,7 @@ public class Main {
     }
   }
 
+  private final Artifacts artifacts;
   private final Server server;
   private final Gui gui;
 
@@ -38,20 +40,36 @@ public class Main {
    * @param parameters Configuration object
    */
   public Main( Parameters parameters ) {
+    DownloadScheduler downloadScheduler = new DownloadScheduler(
+        parameters.downloadConcurrency(),
+        parameters.downloadBandwidth() );
     GithubApiClient ghClient = new GithubApiClient(
         parameters.githubApiHost(),
-        parameters.authToken() );
-    Artifacts artifacts = new Artifacts(
+        parameters.authToken(),
+        parameters.chunkSize(),
+        parameters.chunkConcurrency() )
+            .withScheduler( downloadScheduler )
+            .withHedging( parameters.hedgeThroughput(), parameters.hedgeDelay() );
+    artifacts = new Artifacts(
         ghClient,
         parameters.dir(),
-        parameters.artifactCacheDuration() );
+        parameters.artifactCacheDuration(),
+        parameters.artifactPurgeInterval(),
+        parameters.cacheMaxBytes() )
+            .withScheduler( downloadScheduler )
+            .withProgressiveServing( parameters.progressive() )
+            .withRemoteReads( parameters.remoteThreshold() )
+            .withUnavailableValidity( parameters.unavailableCacheDuration() );
+    ghClient.statistics().forEach( artifacts::withStatistics );
     server = new Server(
         parameters.port(),
         parameters.repos(),
         ghClient,
         artifacts,
         parameters.latestArtifactCacheDuration(),
-        parameters.contextPath() );
+        parameters.defaultBranchCacheDuration(),
+        parameters.contextPath(),
+        parameters.prefetch() );
     gui = new Gui( this, parameters.iconBehaviour() );
   }
 
@@ -59,6 +77,7 @@ public class Main {
    * Starts the application
    */
   public void start() {
+    artifacts.start();
     server.start();
     gui.start();
   }
@@ -89,6 +108,7 @@ public class Main {
    */
   public void stop() {
     server.stop();
+    artifacts.stop();
     gui.stop();
   }
 }
@@ -71,6 +71,23 @@ public class Parameters {
   private String latestValidity = Optional.ofNullable( System.getenv( "BOWLBY_LATEST_VALIDITY" ) )
       .orElse( "PT10M" );
 
+  @Option(names = { "-y", "--branchValidity" },
+      description = """
+          An ISO-8601 duration string, controlling how long the default branch of a repository is cached for.
+          Defaults to 'PT6H', which means it could take up to 6 hours for the links to the latest artifacts to follow a change of default branch.
+          Overrides environment variable 'BOWLBY_BRANCH_VALIDITY'""")
+  private String branchValidity = Optional.ofNullable( System.getenv( "BOWLBY_BRANCH_VALIDITY" ) )
+      .orElse( "PT6H" );
+
+  @Option(names = { "-x", "--unavailableValidity" },
+      description = """
+          An ISO-8601 duration string, controlling how long we remember that github does not have an artifact.
+          Defaults to 'PT10M', which means that requests for a missing or expired artifact will not be passed on to github for 10 minutes after the first.
+          Overrides environment variable 'BOWLBY_UNAVAILABLE_VALIDITY'""")
+  private String unavailableValidity = Optional
+      .ofNullable( System.getenv( "BOWLBY_UNAVAILABLE_VALIDITY" ) )
+      .orElse( "PT10M" );
+
   @Option(names = { "-a", "--artifactValidity" },
       description = """
           An ISO-8601 duration string, controlling how long an artifact zip is preserved for.
@@ -80,6 +97,108 @@ public class Parameters {
       .ofNullable( System.getenv( "BOWLBY_ARTIFACT_VALIDITY" ) )
       .orElse( "P3D" );
 
+  @Option(names = { "-m", "--cacheMaxBytes" },
+      description = """
+          The total size, in bytes, of artifact zips and their inflated entries that will be kept on disk.
+          Defaults to zero, which means there is no limit. When the limit is exceeded the least-recently-used artifact zips are deleted.
+          Overrides environment variable 'BOWLBY_CACHE_MAX_BYTES'""")
+  private long cacheMaxBytes = Optional.ofNullable( System.getenv( "BOWLBY_CACHE_MAX_BYTES" ) )
+      .filter( v -> v.matches( "\\d+" ) )
+      .map( Long::parseLong )
+      .orElse( 0L );
+
+  @Option(names = { "-u", "--purgeInterval" },
+      description = """
+          An ISO-8601 duration string, controlling how often we check for stale artifact zips.
+          Defaults to 'PT10M', which means a stale artifact zip could linger for up to 10 minutes past its validity period.
+          Overrides environment variable 'BOWLBY_PURGE_INTERVAL'""")
+  private String purgeInterval = Optional
+      .ofNullable( System.getenv( "BOWLBY_PURGE_INTERVAL" ) )
+      .orElse( "PT10M" );
+
+  @Option(names = { "-k", "--chunkSize" },
+      description = """
+          The size, in bytes, of the chunks in which large artifacts are downloaded.
+          Defaults to 33554432 (32MiB). Artifacts no larger than this are downloaded in a single stream, as are all artifacts if this is zero.
+          Overrides environment variable 'BOWLBY_CHUNK_SIZE'""")
+  private long chunkSize = Optional.ofNullable( System.getenv( "BOWLBY_CHUNK_SIZE" ) )
+      .filter( v -> v.matches( "\\d+" ) )
+      .map( Long::parseLong )
+      .orElse( 32L * 1024 * 1024 );
+
+  @Option(names = { "-n", "--chunkConcurrency" },
+      description = """
+          The number of chunks of a large artifact that will be downloaded at once.
+          Defaults to 4
+          Overrides environment variable 'BOWLBY_CHUNK_CONCURRENCY'""")
+  private int chunkConcurrency = Optional
+      .ofNullable( System.getenv( "BOWLBY_CHUNK_CONCURRENCY" ) )
+      .filter( v -> v.matches( "\\d+" ) )
+      .map( Integer::parseInt )
+      .orElse( 4 );
+
+  @Option(names = { "-o", "--downloads" },
+      description = """
+          The number of artifact downloads that can run at once. Further downloads will wait, with those that have been requested going ahead of those that are prefetched.
+          Defaults to 4
+          Overrides environment variable 'BOWLBY_DOWNLOADS'""")
+  private int downloadConcurrency = Optional.ofNullable( System.getenv( "BOWLBY_DOWNLOADS" ) )
+      .filter( v -> v.matches( "[1-9]\\d*" ) )
+      .map( Integer::parseInt )
+      .orElse( 4 );
+
+  @Option(names = { "-b", "--bandwidth" },
+      description = """
+          The maximum combined rate, in bytes per second, at which artifacts will be downloaded.
+          Defaults to zero, which means there is no limit.
+          Overrides environment variable 'BOWLBY_BANDWIDTH'""")
+  private long downloadBandwidth = Optional.ofNullable( System.getenv( "BOWLBY_BANDWIDTH" ) )
+      .filter( v -> v.matches( "\\d+" ) )
+      .map( Long::parseLong )
+      .orElse( 0L );
+
+  @Option(names = { "-f", "--prefetch" },
+      description = """
+          Download the latest artifacts of a workflow in the background as soon as they're found, rather than waiting for them to be requested.
+          Off by default.
+          Overrides environment variable 'BOWLBY_PREFETCH'""")
+  private boolean prefetch = Boolean.parseBoolean( System.getenv( "BOWLBY_PREFETCH" ) );
+
+  @Option(names = { "-s", "--progressive" },
+      description = """
+          Serve the files of an artifact as soon as they've been downloaded, rather than waiting for the whole artifact.
+          Off by default.
+          Overrides environment variable 'BOWLBY_PROGRESSIVE'""")
+  private boolean progressive = Boolean.parseBoolean( System.getenv( "BOWLBY_PROGRESSIVE" ) );
+
+  @Option(names = { "-e", "--remote" },
+      description = """
+          The size, in bytes, above which artifacts are read remotely: the files of the artifact are fetched individually as they're requested, until a quarter of the artifact has been requested and it is downloaded in full.
+          Defaults to zero, which means artifacts are always downloaded in full.
+          Overrides environment variable 'BOWLBY_REMOTE'""")
+  private long remoteThreshold = Optional.ofNullable( System.getenv( "BOWLBY_REMOTE" ) )
+      .filter( v -> v.matches( "\\d+" ) )
+      .map( Long::parseLong )
+      .orElse( 0L );
+
+  @Option(names = { "-q", "--hedgeThroughput" },
+      description = """
+          The download rate, in bytes per second, below which an artifact download is considered slow. If a download stays that slow for the hedge delay then a second download is raced against it, from a fresh link.
+          Defaults to zero, which means slow downloads are left to finish.
+          Overrides environment variable 'BOWLBY_HEDGE_THROUGHPUT'""")
+  private long hedgeThroughput = Optional.ofNullable( System.getenv( "BOWLBY_HEDGE_THROUGHPUT" ) )
+      .filter( v -> v.matches( "\\d+" ) )
+      .map( Long::parseLong )
+      .orElse( 0L );
+
+  @Option(names = { "-w", "--hedgeDelay" },
+      description = """
+          An ISO-8601 duration string, controlling how long a download has to be slow for before we race another against it.
+          Defaults to 'PT10S'.
+          Overrides environment variable 'BOWLBY_HEDGE_DELAY'""")
+  private String hedgeDelay = Optional.ofNullable( System.getenv( "BOWLBY_HEDGE_DELAY" ) )
+      .orElse( "PT10S" );
+
   @Option(names = { "-i", "--icon" }, description = """
       Controls the system tray icon. Choose from NONE, STATIC or DYNAMIC.
       The dynamic icon will give a visible indication of request-handling activity
@@ -171,6 +290,14 @@ public class Parameters {
     return Duration.parse( latestValidity );
   }
 
+  /**
+   * @return The maximum time for which the default branch of a repository is
+   *         cached
+   */
+  public Duration defaultBranchCacheDuration() {
+    return Duration.parse( branchValidity );
+  }
+
   /**
    * @return The time after which an unused artifact zip is deleted
    */
@@ -178,6 +305,96 @@ public class Parameters {
     return Duration.parse( artifactValidity );
   }
 
+  /**
+   * @return The maximum total size of cached artifact zips, or zero for no limit
+   */
+  public long cacheMaxBytes() {
+    return cacheMaxBytes;
+  }
+
+  /**
+   * @return The time between checks for stale artifact zips
+   */
+  public Duration artifactPurgeInterval() {
+    return Duration.parse( purgeInterval );
+  }
+
+  /**
+   * @return The size of the chunks in which large artifacts are downloaded, or
+   *         zero to download everything in a single stream
+   */
+  public long chunkSize() {
+    return chunkSize;
+  }
+
+  /**
+   * @return The number of chunks of an artifact that are downloaded at once
+   */
+  public int chunkConcurrency() {
+    return chunkConcurrency;
+  }
+
+  /**
+   * @return The maximum number of artifact downloads that can run at once
+   */
+  public int downloadConcurrency() {
+    return downloadConcurrency;
+  }
+
+  /**
+   * @return The maximum combined download rate in bytes per second, or zero for
+   *         no limit
+   */
+  public long downloadBandwidth() {
+    return downloadBandwidth;
+  }
+
+  /**
+   * @return <code>true</code> if the latest artifacts of a workflow should be
+   *         downloaded before they're requested
+   */
+  public boolean prefetch() {
+    return prefetch;
+  }
+
+  /**
+   * @return <code>true</code> if the files of an artifact should be served while
+   *         it is still being downloaded
+   */
+  public boolean progressive() {
+    return progressive;
+  }
+
+  /**
+   * @return The size above which artifacts are read remotely, or zero to always
+   *         download them in full
+   */
+  public long remoteThreshold() {
+    return remoteThreshold;
+  }
+
+  /**
+   * @return The download rate in bytes per second below which we hedge, or zero
+   *         to never hedge
+   */
+  public long hedgeThroughput() {
+    return hedgeThroughput;
+  }
+
+  /**
+   * @return How long a download has to be slow for before we hedge
+   */
+  public Duration hedgeDelay() {
+    return Duration.parse( hedgeDelay );
+  }
+
+  /**
+   * @return How long we remember that github does not have an artifact
+   */
+  public Duration unavailableCacheDuration() {
+    return Duration.parse( unavailableValidity );
+  }
+
   /**
    * @return The desired icon behaviour
    */
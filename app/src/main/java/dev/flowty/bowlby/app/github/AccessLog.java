@@ -0,0 +1,102 @@
+package dev.flowty.bowlby.app.github;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import dev.flowty.bowlby.app.github.CacheIndex.Cached;
+import dev.flowty.bowlby.app.github.Entity.Artifact;
+import dev.flowty.bowlby.app.github.Entity.Repository;
+
+/**
+ * Persists the last-access times of cached artifacts. We track accesses in
+ * memory rather than relying on the filesystem's access times, which are
+ * unreliable on volumes mounted with <code>noatime</code> or
+ * <code>relatime</code>. This file lets those times survive a restart.
+ */
+class AccessLog {
+  private static final Logger LOG = LoggerFactory.getLogger( AccessLog.class );
+
+  private final Path file;
+
+  /**
+   * @param file The file in which to persist access times
+   */
+  AccessLog( Path file ) {
+    this.file = file;
+  }
+
+  /**
+   * Reads the persisted access times
+   *
+   * @return artifact-to-epoch-millisecond access times. This will be empty if the
+   *         file doesn't exist or cannot be read
+   */
+  Map<Artifact, Long> load() {
+    Map<Artifact, Long> times = new HashMap<>();
+    if( Files.exists( file ) ) {
+      Properties props = new Properties();
+      try( Reader r = Files.newBufferedReader( file ) ) {
+        props.load( r );
+      }
+      catch( IOException e ) {
+        LOG.error( "Failed to read access times from {}", file, e );
+      }
+      props.forEach( ( k, v ) -> {
+        String[] key = ((String) k).split( "/" );
+        try {
+          if( key.length == 3 ) {
+            times.put(
+                new Artifact( new Repository( key[0], key[1] ), key[2] ),
+                Long.parseLong( (String) v ) );
+          }
+        }
+        catch( NumberFormatException e ) {
+          LOG.warn( "Ignoring bad access time {}={}", k, v );
+        }
+      } );
+    }
+    return times;
+  }
+
+  /**
+   * Persists access times
+   *
+   * @param entries The cached artifacts
+   */
+  void save( Collection<Cached> entries ) {
+    Properties props = new Properties();
+    for( Cached c : entries ) {
+      Artifact a = c.artifact();
+      props.setProperty(
+          a.repo().owner() + "/" + a.repo().repo() + "/" + a.id(),
+          String.valueOf( c.lastAccess() ) );
+    }
+
+    try {
+      Files.createDirectories( file.getParent() );
+      // write-then-rename so a crash mid-write doesn't lose everything
+      Path tmp = file.resolveSibling( file.getFileName() + ".tmp" );
+      try( Writer w = Files.newBufferedWriter( tmp ) ) {
+        props.store( w, "artifact last-access times, in epoch milliseconds" );
+      }
+      Files.move( tmp, file, REPLACE_EXISTING, ATOMIC_MOVE );
+      LOG.debug( "Saved {} access times to {}", props.size(), file );
+    }
+    catch( IOException e ) {
+      LOG.error( "Failed to save access times to {}", file, e );
+    }
+  }
+}
@@ -1,17 +1,42 @@
 package dev.flowty.bowlby.app.github;
 
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.attribute.BasicFileAttributes;
 import java.time.Duration;
 import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
 import java.util.stream.Stream;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import dev.flowty.bowlby.app.github.CacheIndex.Cached;
+import dev.flowty.bowlby.app.github.DownloadScheduler.Priority;
 import dev.flowty.bowlby.app.github.Entity.Artifact;
+import dev.flowty.bowlby.app.github.Entity.Repository;
+import dev.flowty.bowlby.app.github.GithubApiClient.Absence;
+import dev.flowty.bowlby.app.github.GithubApiClient.ArtifactAbsentException;
+import dev.flowty.bowlby.app.github.GithubApiClient.Download;
+import dev.flowty.bowlby.app.zip.PartialZip;
+import dev.flowty.bowlby.app.zip.RemoteZip;
+import dev.flowty.bowlby.app.zip.ZipArchive;
+import dev.flowty.bowlby.app.zip.ZipIndex;
 
 /**
  * Encapsulates the cache of artifacts downloaded from github
@@ -20,20 +45,345 @@ public class Artifacts {
 
   private static final Logger LOG = LoggerFactory.getLogger( Artifacts.class );
 
+  /**
+   * The inverse of the fraction of a remotely-read artifact that has to be
+   * fetched before we download it in full
+   */
+  private static final long REMOTE_FRACTION = 4;
+  /**
+   * The number of unavailable artifacts that we remember
+   */
+  private static final int UNAVAILABLE_CAPACITY = 4096;
+  /**
+   * The number of download durations that we remember
+   */
+  private static final int LATENCY_SAMPLES = 1024;
+  /**
+   * The form of the SHA-256 digests that name our blobs
+   */
+  private static final Pattern SHA256 = Pattern.compile( "[0-9a-f]{64}" );
+
   private final GithubApiClient client;
   private final Path downloadRoot;
+  /**
+   * Where we put artifact zips that fail verification
+   */
+  private final Path quarantineRoot;
+  /**
+   * Where we keep artifact zips, named by the digest of their content, so
+   * artifacts with identical content share a file
+   */
+  private final Path blobRoot;
+  /**
+   * Guards the linking of artifacts to blobs against the deletion of blobs that
+   * are no longer linked
+   */
+  private final Object blobs = new Object();
   private final Duration artifactValidity;
+  private final Duration purgeInterval;
+
+  /**
+   * The artifact zips that we have on disk. This is populated from the download
+   * directory on {@link #start()} and then kept up to date as we download and
+   * purge, so we never have to go looking in the filesystem.
+   */
+  private final CacheIndex cached;
+  /**
+   * Where we persist access times
+   */
+  private final AccessLog accessLog;
+
+  /**
+   * Runs the periodic purge of stale artifacts
+   */
+  private ScheduledExecutorService janitor;
+
+  /**
+   * The downloads that are currently underway. Requests for an artifact that is
+   * already being downloaded will wait on the existing download rather than
+   * starting another.
+   */
+  private final Map<Artifact, CompletableFuture<Path>> inFlight = new ConcurrentHashMap<>();
+  /**
+   * Temporary files that might need to be cleaned up, mapped to when they were
+   * last written. Files that are still being written are never stale.
+   */
+  private final Map<Path, Long> temporaries = new ConcurrentHashMap<>();
+  private final AtomicLong downloads = new AtomicLong();
+  private final AtomicLong prefetches = new AtomicLong();
+  private final AtomicLong earlyRequests = new AtomicLong();
+  private final AtomicLong remoteRequests = new AtomicLong();
+  private final AtomicLong unavailableRequests = new AtomicLong();
+  private final AtomicLong coalesced = new AtomicLong();
+  private final AtomicLong quarantined = new AtomicLong();
+  private final AtomicLong deduplicated = new AtomicLong();
+  /**
+   * How long it takes to get artifacts that we don't have
+   */
+  private final Latencies coldLoads = new Latencies( LATENCY_SAMPLES );
+
+  private final List<Consumer<Path>> removalListeners = new CopyOnWriteArrayList<>();
+  private final List<Object> statistics = new CopyOnWriteArrayList<>();
+
+  /**
+   * Controls when downloads happen
+   */
+  private DownloadScheduler scheduler = new DownloadScheduler(
+      DownloadScheduler.DEFAULT_CONCURRENCY, 0 );
+  /**
+   * Whether we track the entries of artifacts as they're downloaded
+   */
+  private boolean progressive = false;
+  /**
+   * The progress of downloads that are underway, so their entries can be served
+   * before they're complete
+   */
+  private final Map<Artifact, PartialZip> partials = new ConcurrentHashMap<>();
+
+  /**
+   * The artifacts that github has told us it doesn't have
+   */
+  private NegativeCache unavailable = new NegativeCache(
+      UNAVAILABLE_CAPACITY, Duration.ofMinutes( 10 ) );
+
+  /**
+   * Artifacts at least this big are read remotely, or zero to always download
+   * them in full
+   */
+  private long remoteThreshold = 0;
+  /**
+   * The artifacts that we're reading remotely
+   */
+  private final Map<Artifact, RemoteZip> remotes = new ConcurrentHashMap<>();
+
+  /**
+   * Verifies and publishes completed downloads, and parses partial ones, so that
+   * work doesn't hold up the threads that deliver download data
+   */
+  private final ExecutorService worker = Executors.newCachedThreadPool( r -> {
+    Thread t = new Thread( r, "artifact-worker" );
+    t.setDaemon( true );
+    return t;
+  } );
 
   /**
    * @param client           how to interact with github
    * @param dir              The bowlby directory
    * @param artifactValidity how long an artifact can go without being accessed
    *                         before we delete it
+   * @param purgeInterval    how often to check for stale artifacts
+   * @param maxBytes         The total size of artifact zips that we'll keep on
+   *                         disk, or zero for no limit. The least recently used
+   *                         artifacts will be deleted to keep within this budget.
    */
-  public Artifacts( GithubApiClient client, Path dir, Duration artifactValidity ) {
+  public Artifacts( GithubApiClient client, Path dir, Duration artifactValidity,
+      Duration purgeInterval, long maxBytes ) {
     this.client = client;
     downloadRoot = dir.resolve( "github" );
+    quarantineRoot = dir.resolve( "quarantine" );
+    blobRoot = dir.resolve( "blobs" );
     this.artifactValidity = artifactValidity;
+    this.purgeInterval = purgeInterval;
+    cached = new CacheIndex( maxBytes );
+    accessLog = new AccessLog( downloadRoot.resolve( "access.properties" ) );
+  }
+
+  /**
+   * Populates the cache index from the download directory and starts the periodic
+   * purge of stale artifacts and persistence of access times
+   */
+  public void start() {
+    index();
+    janitor = Executors.newSingleThreadScheduledExecutor( r -> {
+      Thread t = new Thread( r, "artifact-janitor" );
+      t.setDaemon( true );
+      return t;
+    } );
+    janitor.scheduleWithFixedDelay( () -> {
+      purgeStaleFiles();
+      saveAccessTimes();
+    }, 0, purgeInterval.toMillis(), TimeUnit.MILLISECONDS );
+  }
+
+  /**
+   * Stops the periodic purge of stale artifacts and saves access times
+   */
+  public void stop() {
+    if( janitor != null ) {
+      // let any pass that's underway finish, so it doesn't save access times at
+      // the same time as we do
+      janitor.shutdown();
+      try {
+        if( !janitor.awaitTermination( 30, TimeUnit.SECONDS ) ) {
+          LOG.warn( "Artifact janitor is still running, leaving it to save access times" );
+          return;
+        }
+      }
+      catch( InterruptedException e ) {
+        Thread.currentThread().interrupt();
+        return;
+      }
+      finally {
+        janitor = null;
+      }
+    }
+    saveAccessTimes();
+  }
+
+  /**
+   * Adds a removal listener
+   *
+   * @param listener will be supplied with artifact zip files just before they are
+   *                 deleted from the cache
+   * @return <code>this</code>
+   */
+  public Artifacts withRemovalListener( Consumer<Path> listener ) {
+    removalListeners.add( listener );
+    return this;
+  }
+
+  /**
+   * Adds a source of statistics
+   *
+   * @param source will have its {@link Object#toString()} logged along with our
+   *               own statistics on every purge
+   * @return <code>this</code>
+   */
+  public Artifacts withStatistics( Object source ) {
+    statistics.add( source );
+    return this;
+  }
+
+  /**
+   * Sets the scheduler for downloads
+   *
+   * @param downloadScheduler Controls when downloads happen
+   * @return <code>this</code>
+   */
+  public Artifacts withScheduler( DownloadScheduler downloadScheduler ) {
+    scheduler = downloadScheduler;
+    return this;
+  }
+
+  /**
+   * Controls progressive serving
+   *
+   * @param enabled <code>true</code> to make the entries of artifacts available
+   *                as soon as they're downloaded, rather than waiting for the
+   *                whole artifact
+   * @return <code>this</code>
+   */
+  public Artifacts withProgressiveServing( boolean enabled ) {
+    progressive = enabled;
+    return this;
+  }
+
+  /**
+   * Controls how long we remember that an artifact is unavailable
+   *
+   * @param validity How long we'll go without asking github for an artifact after
+   *                 it has told us that it doesn't have it. Zero to always ask.
+   * @return <code>this</code>
+   */
+  public Artifacts withUnavailableValidity( Duration validity ) {
+    unavailable = new NegativeCache( UNAVAILABLE_CAPACITY, validity );
+    return this;
+  }
+
+  /**
+   * @param artifact The ID of an artifact
+   * @return Why github can't give us that artifact, or <code>null</code> if we
+   *         don't know that it can't
+   */
+  public Absence unavailable( Artifact artifact ) {
+    return unavailable.get( artifact );
+  }
+
+  /**
+   * Controls remote reading
+   *
+   * @param threshold Artifacts at least this big will have their entries fetched
+   *                  individually as they're requested, until enough of the
+   *                  artifact has been requested to justify downloading all of
+   *                  it. Zero to always download artifacts in full.
+   * @return <code>this</code>
+   */
+  public Artifacts withRemoteReads( long threshold ) {
+    remoteThreshold = threshold;
+    return this;
+  }
+
+  /**
+   * Gets random access to an artifact that we don't have. Once a {@link
+   * #REMOTE_FRACTION fraction} of the artifact has been fetched then we start
+   * downloading it in full.
+   *
+   * @param artifact The ID of the artifact
+   * @return The remote artifact, with its index ready to read, or
+   *         <code>null</code> if remote reading is not enabled, the artifact is
+   *         too small to be worth reading remotely, or we can't read it remotely
+   */
+  public RemoteZip getRemote( Artifact artifact ) {
+    if( remoteThreshold <= 0
+        || linkIfHeld( artifact )
+        || unavailable.get( artifact ) != null ) {
+      return null;
+    }
+    RemoteZip remote = remotes.computeIfAbsent( artifact, a -> new RemoteZip(
+        client.rangeSource( a ), zipPath( a ), sparsePath( a ), remoteThreshold ) );
+    try {
+      if( remote.index() == null ) {
+        return null;
+      }
+    }
+    catch( ArtifactAbsentException e ) {
+      unavailable( artifact, e.absence() );
+      discardRemote( artifact );
+      return null;
+    }
+    catch( IOException e ) {
+      LOG.warn( "Failed to read {} remotely", artifact, e );
+      return null;
+    }
+    remoteRequests.incrementAndGet();
+    if( remote.size() > 0 && remote.fetched() * REMOTE_FRACTION >= remote.size() ) {
+      prefetch( artifact );
+    }
+    return remote;
+  }
+
+  /**
+   * Gets an artifact that is being downloaded, starting the download if
+   * necessary. Entries of the artifact can be read as soon as they arrive.
+   *
+   * @param artifact The ID of the artifact
+   * @return The download progress, or <code>null</code> if progressive serving is
+   *         not enabled or we already have the complete artifact
+   */
+  public PartialZip getPartial( Artifact artifact ) {
+    if( !progressive
+        || linkIfHeld( artifact )
+        || unavailable.get( artifact ) != null ) {
+      return null;
+    }
+    earlyRequests.incrementAndGet();
+    PartialZip partial = partials.get( artifact );
+    if( partial != null ) {
+      // the download is underway
+      return partial;
+    }
+    PartialZip created = new PartialZip( zipPath( artifact ), partPath( artifact ), worker );
+    partial = partials.putIfAbsent( artifact, created );
+    if( partial == null ) {
+      // we're responsible for making sure that the download happens, and that
+      // nobody waits on our partial once it's over
+      partial = created;
+      get( artifact, Priority.INTERACTIVE ).whenComplete( ( path, error ) -> {
+        partials.remove( artifact, created );
+        created.finish();
+      } );
+    }
+    return partial;
   }
 
   /**
@@ -44,54 +394,895 @@ public class Artifacts {
    *         not be retrieved
    */
   public Path get( Artifact artifact ) {
-    purgeStaleFiles();
+    return getAsync( artifact ).join();
+  }
+
+  /**
+   * Gets an artifact file path, downloading it if necessary. No thread is tied up
+   * while the download is underway.
+   *
+   * @param artifact The ID of the artifact
+   * @return The path to the artifact zip file, or <code>null</code> if it could
+   *         not be retrieved
+   */
+  public CompletableFuture<Path> getAsync( Artifact artifact ) {
+    return get( artifact, Priority.INTERACTIVE );
+  }
+
+  /**
+   * Downloads an artifact in the background, if we don't already have it, in
+   * anticipation of it being requested
+   *
+   * @param artifact The ID of the artifact
+   */
+  public void prefetch( Artifact artifact ) {
+    if( !linkIfHeld( artifact )
+        && !inFlight.containsKey( artifact )
+        && unavailable.get( artifact ) == null ) {
+      prefetches.incrementAndGet();
+      get( artifact, Priority.BACKGROUND );
+    }
+  }
+
+  private CompletableFuture<Path> get( Artifact artifact, Priority priority ) {
+    Path local = cached.get( artifact );
+    if( local != null ) {
+      return CompletableFuture.completedFuture( local );
+    }
+    if( unavailable.get( artifact ) != null ) {
+      // no point in asking again
+      unavailableRequests.incrementAndGet();
+      return CompletableFuture.completedFuture( null );
+    }
+
+    CompletableFuture<Path> existing = inFlight.get( artifact );
+    if( existing != null ) {
+      return coalesce( artifact, priority, existing );
+    }
+
+    CompletableFuture<Path> download = new CompletableFuture<>();
+    existing = inFlight.putIfAbsent( artifact, download );
+    if( existing != null ) {
+      // someone beat us to it
+      return coalesce( artifact, priority, existing );
+    }
+
+    // the download that we were racing against might have completed between our
+    // index check and registering our own download
+    Path result = cached.get( artifact );
+    if( result == null ) {
+      result = link( artifact );
+    }
+    CompletableFuture<Path> started = result != null
+        ? CompletableFuture.completedFuture( result )
+        : scheduler.submit( artifact, priority, () -> download( artifact ) );
+    started.whenComplete( ( path, error ) -> {
+      inFlight.remove( artifact, download );
+      if( error != null ) {
+        download.completeExceptionally( error );
+      }
+      else {
+        download.complete( path );
+      }
+    } );
+    return download;
+  }
 
-    Path destination = downloadRoot
+  private Path zipPath( Artifact artifact ) {
+    return downloadRoot
         .resolve( artifact.repo().owner() )
         .resolve( artifact.repo().repo() )
         .resolve( artifact.id() + ".zip" );
+  }
+
+  /**
+   * @param artifact The ID of an artifact
+   * @return The file that records which blob holds the artifact's content
+   */
+  private Path linkPath( Artifact artifact ) {
+    Path zip = zipPath( artifact );
+    return zip.resolveSibling( artifact.id() + ".link" );
+  }
 
-    if( Files.exists( destination ) ) {
-      return destination;
+  /**
+   * @param sha256 The hex-encoded digest of an artifact zip
+   * @return Where we keep zips with that content
+   */
+  private Path blobPath( String sha256 ) {
+    return blobRoot.resolve( sha256 + ".zip" );
+  }
+
+  /**
+   * @param digest A digest, in <code>algorithm:hex</code> form
+   * @return The hex-encoded SHA-256 digest, or <code>null</code> if that's not
+   *         what we've been given
+   */
+  private static String sha256( String digest ) {
+    if( digest == null || !digest.regionMatches( true, 0, "sha256:", 0, 7 ) ) {
+      return null;
     }
+    String hex = digest.substring( 7 ).toLowerCase();
+    return SHA256.matcher( hex ).matches() ? hex : null;
+  }
 
-    return client.getArtifact( artifact, destination );
+  /**
+   * Checks if we have an artifact's content on disk. If it isn't cached but we
+   * hold a blob that matches its listed digest, then the artifact is linked to
+   * that blob and admitted to the cache.
+   *
+   * @param artifact The ID of an artifact
+   * @return <code>true</code> if we have the artifact's content on disk
+   */
+  private boolean linkIfHeld( Artifact artifact ) {
+    return cached.entry( artifact ) != null || link( artifact ) != null;
   }
 
   /**
-   * Deletes all files in the download dir that haven't been accessed recently
+   * Avoids downloading an artifact whose content we already have. This is only
+   * possible if github has listed the artifact's digest.
+   *
+   * @param artifact The ID of an artifact
+   * @return The zip file that holds the artifact's content, or <code>null</code>
+   *         if we don't have it
    */
-  private void purgeStaleFiles() {
-    if( Files.exists( downloadRoot ) ) {
-      Instant threshold = Instant.now().minus( artifactValidity );
+  private Path link( Artifact artifact ) {
+    String sha256 = sha256( client.expectedDigest( artifact ) );
+    if( sha256 == null ) {
+      return null;
+    }
+    Path blob = blobPath( sha256 );
+    synchronized( blobs ) {
+      if( !Files.exists( blob ) || !link( artifact, sha256 ) ) {
+        return null;
+      }
+      admit( artifact, blob );
+    }
+    long count = deduplicated.incrementAndGet();
+    LOG.info( "Artifact {} is already held in {}, {} downloads avoided so far",
+        artifact, blob, count );
+    return blob;
+  }
+
+  /**
+   * Records which blob holds an artifact's content, so we can find it again after
+   * a restart
+   *
+   * @param artifact The ID of an artifact
+   * @param sha256   The digest of the artifact's content
+   * @return <code>true</code> on success
+   */
+  private boolean link( Artifact artifact, String sha256 ) {
+    Path link = linkPath( artifact );
+    Path tmp = link.resolveSibling( link.getFileName() + ".tmp" );
+    temporaries.put( tmp, Long.MAX_VALUE );
+    try {
+      Files.createDirectories( link.getParent() );
+      Files.writeString( tmp, sha256 );
+      Files.move( tmp, link, ATOMIC_MOVE, REPLACE_EXISTING );
+      temporaries.remove( tmp );
+      return true;
+    }
+    catch( IOException e ) {
+      LOG.error( "Failed to link {} to {}", artifact, sha256, e );
+      temporaries.put( tmp, System.currentTimeMillis() );
+      return false;
+    }
+  }
+
+  private Path partPath( Artifact artifact ) {
+    Path zip = zipPath( artifact );
+    return zip.resolveSibling( zip.getFileName() + ".part" );
+  }
 
+  private Path sparsePath( Artifact artifact ) {
+    Path zip = zipPath( artifact );
+    return zip.resolveSibling( zip.getFileName() + ".sparse" );
+  }
+
+  private CompletableFuture<Path> download( Artifact artifact ) {
+    downloads.incrementAndGet();
+    long started = System.nanoTime();
+    Path destination = zipPath( artifact );
+    PartialZip partial = progressive
+        ? partials.computeIfAbsent( artifact,
+            a -> new PartialZip( destination, partPath( a ), worker ) )
+        : null;
+    // We download to a temporary file and only move it into place once it's
+    // complete and verified, so a bad download can't be mistaken for a good one
+    Path part = partPath( artifact );
+    temporaries.put( part, Long.MAX_VALUE );
+    return client.getArtifactAsync( artifact, part,
+        partial != null ? partial::advance : length -> {
+          // nobody is interested
+        } )
+        .handle( ( download, error ) -> {
+          // a failed download is kept for a while in case we can resume it
+          temporaries.put( part, System.currentTimeMillis() );
+          if( partial != null ) {
+            // anyone still waiting will now fall back to waiting for the complete zip
+            partials.remove( artifact, partial );
+            partial.finish();
+          }
+          Throwable cause = error instanceof CompletionException ? error.getCause() : error;
+          if( cause instanceof ArtifactAbsentException absent ) {
+            unavailable( artifact, absent.absence() );
+            return null;
+          }
+          if( error != null ) {
+            throw error instanceof CompletionException ce ? ce : new CompletionException( error );
+          }
+          return download;
+        } )
+        .thenApplyAsync( download -> {
+          Path published = publish( artifact, destination, download );
+          if( !Files.exists( part ) ) {
+            temporaries.remove( part );
+          }
+          if( published != null ) {
+            coldLoads.record( Duration.ofNanos( System.nanoTime() - started ) );
+          }
+          return published;
+        }, worker );
+  }
+
+  /**
+   * Verifies a completed download and moves it into the cache
+   *
+   * @param artifact    The ID of the artifact
+   * @param destination Where the artifact zip belongs
+   * @param download    The download, or <code>null</code> if it failed
+   * @return The path to the artifact zip file, or <code>null</code> if the
+   *         download failed or is not valid
+   */
+  private Path publish( Artifact artifact, Path destination, Download download ) {
+    if( download == null ) {
+      abandon( destination );
+      return null;
+    }
+
+    String expected = client.expectedDigest( artifact );
+    if( !digestMatches( expected, download.sha256() ) ) {
+      quarantine( artifact, download.file(),
+          "expected digest " + expected + ", got sha256:" + download.sha256() );
+      abandon( destination );
+      return null;
+    }
+
+    Path blob = blobPath( download.sha256() );
+    synchronized( blobs ) {
+      if( Files.exists( blob ) ) {
+        // another artifact has the same content, and it has already been verified
+        deduplicated.incrementAndGet();
+        LOG.info( "Artifact {} shares content with {}", artifact, blob );
+        try {
+          Files.deleteIfExists( download.file() );
+        }
+        catch( IOException e ) {
+          LOG.warn( "Failed to delete {}", download.file(), e );
+        }
+      }
+      else if( !store( artifact, download, blob ) ) {
+        abandon( destination );
+        return null;
+      }
+      if( !link( artifact, download.sha256() ) ) {
+        return null;
+      }
+      admit( artifact, blob );
+    }
+    discardRemote( artifact );
+    adopt( destination, blob );
+    abandon( destination );
+    return blob;
+  }
+
+  /**
+   * Moves the entries that were inflated while an artifact was being read
+   * remotely or progressively to sit alongside its blob. They were inflated from
+   * the same bytes, so there's no point in doing that work again.
+   *
+   * @param destination Where the artifact zip was being read
+   * @param blob        Where the artifact zip is now
+   */
+  private void adopt( Path destination, Path blob ) {
+    Path from = ZipArchive.inflatedPath( destination );
+    if( !Files.isDirectory( from ) ) {
+      return;
+    }
+    Path to = ZipArchive.inflatedPath( blob );
+    synchronized( blobs ) {
+      if( !cached.referenced( blob ) ) {
+        // it's already been evicted
+        return;
+      }
+      long bytes = 0;
+      try( Stream<Path> files = Files.list( from ) ) {
+        Files.createDirectories( to );
+        for( Path file : files
+            // skip any that are still being inflated
+            .filter( f -> f.getFileName().toString().matches( "\\d+" ) )
+            .toList() ) {
+          Path target = to.resolve( file.getFileName() );
+          if( !Files.exists( target ) ) {
+            long size = Files.size( file );
+            Files.move( file, target, ATOMIC_MOVE );
+            bytes += size;
+          }
+        }
+      }
+      catch( IOException e ) {
+        LOG.warn( "Failed to adopt inflated entries of {}", destination, e );
+      }
+      if( bytes > 0 ) {
+        grow( blob, bytes );
+      }
+    }
+  }
+
+  /**
+   * Moves a verified download into the blob store
+   *
+   * @param artifact The ID of the artifact
+   * @param download The download
+   * @param blob     Where the download belongs
+   * @return <code>true</code> on success
+   */
+  private boolean store( Artifact artifact, Download download, Path blob ) {
+    ZipIndex index;
+    try {
+      index = ZipIndex.read( download.file() );
+    }
+    catch( Exception e ) {
+      quarantine( artifact, download.file(), "unreadable zip: " + e.getMessage() );
+      return false;
+    }
+
+    try {
+      Files.createDirectories( blobRoot );
+      Files.move( download.file(), blob, ATOMIC_MOVE, REPLACE_EXISTING );
+    }
+    catch( IOException e ) {
+      LOG.error( "Failed to publish {}", blob, e );
+      return false;
+    }
+    try {
+      // persist the index now so it's ready for the first request
+      index.write( ZipArchive.indexPath( blob ) );
+    }
+    catch( IOException e ) {
+      LOG.warn( "Failed to write index for {}", blob, e );
+    }
+    return true;
+  }
+
+  /**
+   * Records that github doesn't have an artifact
+   *
+   * @param artifact The artifact
+   * @param absence  Why github doesn't have it
+   */
+  private void unavailable( Artifact artifact, Absence absence ) {
+    LOG.info( "Artifact {} is {}", artifact, absence.name().toLowerCase() );
+    unavailable.put( artifact, absence );
+  }
+
+  /**
+   * Stops reading an artifact remotely
+   *
+   * @param artifact The artifact
+   */
+  private void discardRemote( Artifact artifact ) {
+    RemoteZip remote = remotes.remove( artifact );
+    if( remote != null ) {
+      try {
+        remote.close();
+      }
+      catch( IOException e ) {
+        LOG.warn( "Failed to discard remote {}", artifact, e );
+      }
+    }
+  }
+
+  /**
+   * Cleans up after a failed download. Entries might have been inflated to disk
+   * for requests that were served while it was underway.
+   *
+   * @param destination Where the artifact zip would have been
+   */
+  private static void abandon( Path destination ) {
+    try {
+      ZipArchive.delete( destination );
+    }
+    catch( IOException e ) {
+      LOG.warn( "Failed to clean up after {}", destination, e );
+    }
+  }
+
+  /**
+   * @param expected The digest that github reports, or <code>null</code>
+   * @param sha256   The digest of what we downloaded
+   * @return <code>false</code> if we're sure that the download is not what github
+   *         expects
+   */
+  private static boolean digestMatches( String expected, String sha256 ) {
+    if( expected == null ) {
+      return true;
+    }
+    int colon = expected.indexOf( ':' );
+    if( colon != -1 && !"sha256".equalsIgnoreCase( expected.substring( 0, colon ) ) ) {
+      LOG.warn( "Can't verify unsupported digest {}", expected );
+      return true;
+    }
+    return expected.substring( colon + 1 ).equalsIgnoreCase( sha256 );
+  }
+
+  /**
+   * Removes a cached artifact that has turned out to be corrupt, along with any
+   * artifacts that share its zip file. They will be downloaded afresh on the next
+   * request.
+   *
+   * @param artifact The artifact
+   * @param reason   What's wrong with it
+   */
+  public void quarantine( Artifact artifact, String reason ) {
+    Cached c = cached.entry( artifact );
+    if( c == null ) {
+      return;
+    }
+    synchronized( blobs ) {
+      List<Cached> removed = cached.entries().stream()
+          .filter( other -> other.path().equals( c.path() ) && cached.remove( other ) )
+          .toList();
+      if( removed.isEmpty() ) {
+        return;
+      }
+      removalListeners.forEach( l -> l.accept( c.path() ) );
+      quarantine( artifact, c.path(), reason );
+      try {
+        ZipArchive.delete( c.path() );
+        for( Cached r : removed ) {
+          Files.deleteIfExists( linkPath( r.artifact() ) );
+        }
+      }
+      catch( IOException e ) {
+        LOG.error( "Failed to clean up after quarantined {}", c.path(), e );
+      }
+    }
+  }
+
+  /**
+   * Moves a bad artifact zip out of the way, preserving it for investigation
+   *
+   * @param artifact The artifact
+   * @param file     The bad file
+   * @param reason   What's wrong with it
+   */
+  private void quarantine( Artifact artifact, Path file, String reason ) {
+    quarantined.incrementAndGet();
+    Path destination = quarantineRoot
+        .resolve( artifact.repo().owner() )
+        .resolve( artifact.repo().repo() )
+        .resolve( artifact.id() + "-" + System.currentTimeMillis() + ".zip" );
+    LOG.error( "Quarantining artifact {} to {}: {}", artifact, destination, reason );
+    try {
+      Files.createDirectories( destination.getParent() );
+      Files.move( file, destination, REPLACE_EXISTING );
+    }
+    catch( IOException e ) {
+      LOG.error( "Failed to quarantine {}", file, e );
+      try {
+        Files.deleteIfExists( file );
+      }
+      catch( IOException ioe ) {
+        LOG.error( "Failed to delete {}", file, ioe );
+      }
+    }
+  }
+
+  private void admit( Artifact artifact, Path file ) {
+    admit( artifact, file, System.currentTimeMillis() );
+  }
+
+  private void admit( Artifact artifact, Path file, long lastAccess ) {
+    try {
+      // a zip that was cached by a previous run might have inflated entries
+      long inflated = cached.referenced( file ) ? 0 : inflatedBytes( file );
+      delete( cached.admit( artifact, file, Files.size( file ), lastAccess ) );
+      if( inflated > 0 ) {
+        delete( cached.grow( file, inflated ) );
+      }
+    }
+    catch( Exception e ) {
+      LOG.error( "Failed to admit {} to the cache", file, e );
+    }
+  }
+
+  /**
+   * Records files that have been added alongside a cached zip, so they count
+   * against the cache size budget
+   *
+   * @param zip   The cached zip file
+   * @param bytes The size of the added files
+   */
+  public void grow( Path zip, long bytes ) {
+    delete( cached.grow( zip, bytes ) );
+  }
+
+  /**
+   * @param zip A zip file
+   * @return The total size of the inflated copies of its entries
+   * @throws IOException on failure
+   */
+  private static long inflatedBytes( Path zip ) throws IOException {
+    Path dir = ZipArchive.inflatedPath( zip );
+    if( !Files.isDirectory( dir ) ) {
+      return 0;
+    }
+    try( Stream<Path> files = Files.list( dir ) ) {
+      return files.mapToLong( file -> file.toFile().length() ).sum();
+    }
+  }
+
+  private void delete( List<Cached> evicted ) {
+    for( Cached victim : evicted ) {
+      try {
+        release( victim );
+        LOG.info( "Evicted artifact {} to free {} bytes", victim.artifact(), victim.size() );
+      }
+      catch( Exception e ) {
+        LOG.error( "Failed to delete evicted artifact {}", victim.path(), e );
+      }
+    }
+  }
+
+  /**
+   * Deletes the link of an artifact that has been removed from the index, and its
+   * zip file if no other artifact shares it
+   *
+   * @param removed The removed artifact
+   * @throws IOException on failure
+   */
+  private void release( Cached removed ) throws IOException {
+    synchronized( blobs ) {
+      if( cached.entry( removed.artifact() ) == null ) {
+        Files.deleteIfExists( linkPath( removed.artifact() ) );
+      }
+      if( !cached.referenced( removed.path() ) ) {
+        removalListeners.forEach( l -> l.accept( removed.path() ) );
+        ZipArchive.delete( removed.path() );
+      }
+    }
+  }
+
+  private CompletableFuture<Path> coalesce( Artifact artifact, Priority priority,
+      CompletableFuture<Path> download ) {
+    if( priority == Priority.INTERACTIVE ) {
+      // we can't have someone waiting on a background download
+      scheduler.promote( artifact );
+    }
+    long count = coalesced.incrementAndGet();
+    LOG.debug( "Joining in-flight download of {}, {} requests coalesced so far",
+        artifact, count );
+    return download;
+  }
+
+  /**
+   * @param percentile A percentile, between 0 and 100
+   * @return How long it took to download and verify artifacts that we didn't
+   *         have, at that percentile of recent downloads, or <code>null</code> if
+   *         we haven't downloaded any
+   */
+  public Duration coldLoadLatency( double percentile ) {
+    return coldLoads.percentile( percentile );
+  }
+
+  /**
+   * @return The number of artifact downloads that have been started
+   */
+  public long downloads() {
+    return downloads.get();
+  }
+
+  /**
+   * @return The number of background downloads that have been requested
+   */
+  public long prefetches() {
+    return prefetches.get();
+  }
+
+  /**
+   * @return The number of requests that have asked for an artifact that was not
+   *         yet complete
+   */
+  public long earlyRequests() {
+    return earlyRequests.get();
+  }
+
+  /**
+   * @return The number of requests that have been served from remote artifacts
+   */
+  public long remoteRequests() {
+    return remoteRequests.get();
+  }
+
+  /**
+   * @return The number of requests for artifacts that we knew to be unavailable,
+   *         and so didn't bother asking github for
+   */
+  public long unavailableRequests() {
+    return unavailableRequests.get();
+  }
+
+  /**
+   * @return The number of artifact zips that have failed verification
+   */
+  public long quarantined() {
+    return quarantined.get();
+  }
+
+  /**
+   * @return The number of artifacts that turned out to have the same content as
+   *         one that we already had, and so share its zip file
+   */
+  public long deduplicated() {
+    return deduplicated.get();
+  }
+
+  /**
+   * @return The number of requests that have waited on an in-flight download
+   *         rather than starting their own
+   */
+  public long coalesced() {
+    return coalesced.get();
+  }
+
+  /**
+   * @return The number of artifacts currently on disk
+   */
+  public int cachedCount() {
+    return cached.count();
+  }
+
+  /**
+   * @return The total size of the artifact zips and their inflated entries
+   *         currently on disk
+   */
+  public long cachedBytes() {
+    return cached.bytes();
+  }
+
+  /**
+   * @return The number of artifacts that have been deleted to keep within the
+   *         cache size budget
+   */
+  public long evictions() {
+    return cached.evictions();
+  }
+
+  /**
+   * Populates the cache index with the artifact zips that are already in the
+   * download directory, either linked to blobs or from before we shared blobs.
+   * Artifacts that we don't have a persisted access time for are treated as if
+   * they've just been accessed.
+   */
+  private void index() {
+    if( Files.exists( downloadRoot ) ) {
+      Map<Artifact, Long> accessTimes = accessLog.load();
+      long now = System.currentTimeMillis();
       try( Stream<Path> files = Files.walk( downloadRoot ) ) {
         files
             .filter( Files::isRegularFile )
-            .filter( file -> {
-              try {
-                return Files.readAttributes( file, BasicFileAttributes.class )
-                    .lastAccessTime()
-                    .toInstant()
-                    .isBefore( threshold );
+            .forEach( file -> {
+              Path rel = downloadRoot.relativize( file );
+              String name = rel.getFileName().toString();
+              if( rel.getNameCount() == 3 && name.endsWith( ".zip" ) ) {
+                Artifact artifact = artifact( rel, ".zip" );
+                admit( artifact, file, accessTimes.getOrDefault( artifact, now ) );
+              }
+              else if( rel.getNameCount() == 3 && name.endsWith( ".link" ) ) {
+                Artifact artifact = artifact( rel, ".link" );
+                Path blob = linked( file );
+                if( blob != null ) {
+                  admit( artifact, blob, accessTimes.getOrDefault( artifact, now ) );
+                }
               }
-              catch( IOException e ) {
-                LOG.warn( "Failed to determine last access time of " + file, e );
-                return false;
+              else if( name.endsWith( ".zip.part" ) ) {
+                // an interrupted download, which we might be able to resume
+                temporaries.put( file, lastModified( file ) );
               }
-            } )
-            .forEach( stale -> {
-              try {
-                Files.delete( stale );
+              else if( name.endsWith( ".zip.part.chunks" ) ) {
+                // a chunked download's journal goes with its part file
+                Path part = file.resolveSibling(
+                    name.substring( 0, name.length() - ".chunks".length() ) );
+                if( !Files.exists( part ) ) {
+                  purge( file, "orphaned chunk journal" );
+                }
               }
-              catch( IOException e ) {
-                LOG.error( "Failed to purge stale artifact " + stale, e );
+              else if( name.endsWith( ".link.tmp" ) ) {
+                purge( file, "abandoned link" );
+              }
+              else if( name.endsWith( ".zip.sparse" ) ) {
+                // we don't know which parts of these were fetched
+                purge( file, "remote artifact" );
               }
             } );
+        LOG.info( "Found cached artifacts: {}", cached );
+        purgeOrphanedBlobs();
       }
       catch( Exception e ) {
-        LOG.error( "Failed to purge stale artifacts", e );
+        LOG.error( "Failed to index cached artifacts", e );
       }
     }
   }
+
+  /**
+   * @param rel    The path of an artifact file, relative to the download
+   *               directory
+   * @param suffix The file suffix
+   * @return The ID of the artifact
+   */
+  private static Artifact artifact( Path rel, String suffix ) {
+    String name = rel.getFileName().toString();
+    return new Artifact(
+        new Repository( rel.getName( 0 ).toString(), rel.getName( 1 ).toString() ),
+        name.substring( 0, name.length() - suffix.length() ) );
+  }
+
+  /**
+   * Follows a link to a blob, deleting it if it's broken
+   *
+   * @param link The link file
+   * @return The blob, or <code>null</code> if we don't have it
+   */
+  private Path linked( Path link ) {
+    try {
+      String sha256 = Files.readString( link ).trim();
+      if( SHA256.matcher( sha256 ).matches() && Files.exists( blobPath( sha256 ) ) ) {
+        return blobPath( sha256 );
+      }
+      LOG.warn( "Deleting broken link {}", link );
+      Files.deleteIfExists( link );
+    }
+    catch( IOException e ) {
+      LOG.error( "Failed to follow link {}", link, e );
+    }
+    return null;
+  }
+
+  /**
+   * Deletes the blobs that no artifact links to, which can happen if we stop
+   * between storing a download and linking to it
+   */
+  private void purgeOrphanedBlobs() {
+    if( !Files.exists( blobRoot ) ) {
+      return;
+    }
+    try( Stream<Path> files = Files.list( blobRoot ) ) {
+      for( Path blob : files
+          .filter( f -> f.getFileName().toString().endsWith( ".zip" ) )
+          .toList() ) {
+        if( !cached.referenced( blob ) ) {
+          ZipArchive.delete( blob );
+          LOG.info( "Purged orphaned blob {}", blob );
+        }
+      }
+    }
+    catch( Exception e ) {
+      LOG.error( "Failed to purge orphaned blobs", e );
+    }
+  }
+
+  /**
+   * Deletes the cached artifacts that haven't been accessed recently
+   */
+  private void purgeStaleFiles() {
+    long threshold = Instant.now().minus( artifactValidity ).toEpochMilli();
+    for( Cached c : cached.entries() ) {
+      try {
+        if( c.lastAccess() < threshold && cached.remove( c ) ) {
+          release( c );
+          LOG.info( "Purged stale artifact {}", c.artifact() );
+        }
+      }
+      catch( Exception e ) {
+        LOG.error( "Failed to purge stale artifact " + c.path(), e );
+      }
+    }
+    for( Map.Entry<Artifact, RemoteZip> remote : remotes.entrySet() ) {
+      if( remote.getValue().lastAccess() < threshold
+          && remotes.remove( remote.getKey(), remote.getValue() ) ) {
+        try {
+          remote.getValue().close();
+          if( cached.entry( remote.getKey() ) == null ) {
+            abandon( zipPath( remote.getKey() ) );
+          }
+          LOG.info( "Purged stale remote artifact {}", remote.getKey() );
+        }
+        catch( IOException e ) {
+          LOG.error( "Failed to purge stale remote artifact {}", remote.getKey(), e );
+        }
+      }
+    }
+    for( Map.Entry<Path, Long> temporary : temporaries.entrySet() ) {
+      if( temporary.getValue() < threshold
+          && temporaries.remove( temporary.getKey(), temporary.getValue() ) ) {
+        purge( temporary.getKey(), "abandoned file" );
+        purge( Downloader.chunkJournal( temporary.getKey() ), "chunk journal" );
+      }
+    }
+    purgeOldFiles( quarantineRoot, ".zip", threshold, "quarantined artifact" );
+    unavailable.purge();
+    LOG.info( "Artifact cache holds {}, {} deduplicated", cached, deduplicated );
+    LOG.info( "Remembering {}, {} requests avoided", unavailable, unavailableRequests );
+    LOG.info( "Download scheduler has {}", scheduler );
+    LOG.info( "Cold artifact loads took {}", coldLoads );
+    statistics.forEach( source -> LOG.info( "{}", source ) );
+  }
+
+  /**
+   * @param file A file
+   * @return When the file was last modified, or now if we can't tell
+   */
+  private static long lastModified( Path file ) {
+    try {
+      return Files.getLastModifiedTime( file ).toMillis();
+    }
+    catch( IOException e ) {
+      LOG.warn( "Failed to read modification time of {}", file, e );
+      return System.currentTimeMillis();
+    }
+  }
+
+  /**
+   * Deletes a file, if it exists
+   *
+   * @param file The file to delete
+   * @param what What the file is, for logging
+   */
+  private static void purge( Path file, String what ) {
+    try {
+      if( Files.deleteIfExists( file ) ) {
+        LOG.info( "Purged {} {}", what, file );
+      }
+    }
+    catch( IOException e ) {
+      LOG.error( "Failed to purge {} {}", what, file, e );
+    }
+  }
+
+  /**
+   * Deletes files that haven't been modified recently
+   *
+   * @param root      The directory to search
+   * @param suffix    The suffix of the files to delete
+   * @param threshold The modification time before which files are deleted
+   * @param what      What the files are, for logging
+   */
+  private static void purgeOldFiles( Path root, String suffix, long threshold, String what ) {
+    if( !Files.exists( root ) ) {
+      return;
+    }
+    try( Stream<Path> files = Files.walk( root, 3 ) ) {
+      for( Path file : files
+          .filter( f -> f.getFileName().toString().endsWith( suffix ) )
+          .toList() ) {
+        if( Files.getLastModifiedTime( file ).toMillis() < threshold ) {
+          Files.deleteIfExists( file );
+          LOG.info( "Purged {} {}", what, file );
+        }
+      }
+    }
+    catch( Exception e ) {
+      LOG.error( "Failed to purge {} files", what, e );
+    }
+  }
+
+  /**
+   * Persists access times, if they've changed since we last did so
+   */
+  private void saveAccessTimes() {
+    if( cached.clean() ) {
+      accessLog.save( cached.entries() );
+    }
+  }
 }
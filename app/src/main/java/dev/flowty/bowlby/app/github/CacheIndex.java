@@ -0,0 +1,310 @@
+package dev.flowty.bowlby.app.github;
+
+import static java.util.Comparator.comparingLong;
+import static java.util.stream.Collectors.toCollection;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+import dev.flowty.bowlby.app.github.Entity.Artifact;
+
+/**
+ * Keeps track of the artifact zips that we have on disk and when they were last
+ * accessed, and decides which should be evicted to keep within the cache size
+ * budget. Lookups are lock-free - an access is recorded by a single write to
+ * the entry - and the least-recently-used order is only worked out when we need
+ * to evict something. Artifacts with identical content share a zip file, which
+ * only counts against the budget once, as do the inflated copies of its entries
+ * that build up alongside it. This class does no IO - it's up to the caller to
+ * delete the files of evicted artifacts and to persist the access times.
+ */
+class CacheIndex {
+
+  /**
+   * An artifact zip on disk
+   */
+  static final class Cached {
+    private final Artifact artifact;
+    private final Path path;
+    private final long size;
+    private volatile long lastAccess;
+
+    Cached( Artifact artifact, Path path, long size, long lastAccess ) {
+      this.artifact = artifact;
+      this.path = path;
+      this.size = size;
+      this.lastAccess = lastAccess;
+    }
+
+    /**
+     * @return The artifact
+     */
+    Artifact artifact() {
+      return artifact;
+    }
+
+    /**
+     * @return The location of the zip file
+     */
+    Path path() {
+      return path;
+    }
+
+    /**
+     * @return The size of the zip file, in bytes
+     */
+    long size() {
+      return size;
+    }
+
+    /**
+     * @return The time of the most recent access, in epoch milliseconds
+     */
+    long lastAccess() {
+      return lastAccess;
+    }
+  }
+
+  private final long maxBytes;
+  private final LongSupplier clock;
+
+  private final Map<Artifact, Cached> entries = new ConcurrentHashMap<>();
+  /**
+   * The number of entries that refer to each zip file
+   */
+  private final Map<Path, Integer> references = new HashMap<>();
+  /**
+   * The bytes that have been added to each zip file's footprint since it was
+   * admitted
+   */
+  private final Map<Path, Long> growth = new HashMap<>();
+  private final AtomicLong bytes = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+  /**
+   * Set when access times have changed since they were last persisted
+   */
+  private final AtomicBoolean dirty = new AtomicBoolean();
+
+  /**
+   * @param maxBytes The total size of zip files that we're aiming to keep under,
+   *                 or zero for no limit
+   */
+  CacheIndex( long maxBytes ) {
+    this( maxBytes, System::currentTimeMillis );
+  }
+
+  /**
+   * @param maxBytes The total size of zip files that we're aiming to keep under,
+   *                 or zero for no limit
+   * @param clock    The source of access times, in epoch milliseconds
+   */
+  CacheIndex( long maxBytes, LongSupplier clock ) {
+    this.maxBytes = maxBytes;
+    this.clock = clock;
+  }
+
+  /**
+   * Looks up a cached artifact, recording the access
+   *
+   * @param artifact The artifact
+   * @return The zip file path, or <code>null</code> if the artifact is not cached
+   */
+  Path get( Artifact artifact ) {
+    Cached c = entries.get( artifact );
+    if( c == null ) {
+      return null;
+    }
+    c.lastAccess = clock.getAsLong();
+    if( !dirty.get() ) {
+      dirty.set( true );
+    }
+    return c.path();
+  }
+
+  /**
+   * Looks up a cached artifact without recording an access
+   *
+   * @param artifact The artifact
+   * @return The cache entry, or <code>null</code> if the artifact is not cached
+   */
+  Cached entry( Artifact artifact ) {
+    return entries.get( artifact );
+  }
+
+  /**
+   * Adds an artifact to the index as the most recently used
+   *
+   * @param artifact The artifact
+   * @param path     The zip file
+   * @param size     The size of the zip file
+   * @return The artifacts that have been evicted to make room, and whose files
+   *         should be deleted
+   */
+  List<Cached> admit( Artifact artifact, Path path, long size ) {
+    return admit( artifact, path, size, clock.getAsLong() );
+  }
+
+  /**
+   * Adds an artifact to the index
+   *
+   * @param artifact   The artifact
+   * @param path       The zip file
+   * @param size       The size of the zip file
+   * @param lastAccess The time at which the artifact was last accessed, in epoch
+   *                   milliseconds
+   * @return The artifacts that have been evicted to make room, and whose files
+   *         should be deleted
+   */
+  synchronized List<Cached> admit( Artifact artifact, Path path, long size, long lastAccess ) {
+    Cached admitted = new Cached( artifact, path, size, lastAccess );
+    Cached previous = entries.put( artifact, admitted );
+    if( previous != null ) {
+      release( previous );
+    }
+    if( references.merge( path, 1, Integer::sum ) == 1 ) {
+      bytes.addAndGet( size );
+    }
+    dirty.set( true );
+    // we always keep the newest entry, even if it breaks the budget on its own
+    return evict( path );
+  }
+
+  /**
+   * Records that files have been added alongside a cached zip, e.g.: inflated
+   * copies of its entries, so that they count against the budget and are freed
+   * along with it
+   *
+   * @param path The zip file
+   * @param size The number of bytes that have been added
+   * @return The artifacts that have been evicted to make room, and whose files
+   *         should be deleted
+   */
+  synchronized List<Cached> grow( Path path, long size ) {
+    if( !references.containsKey( path ) ) {
+      // it's already been removed, and the files will be deleted with it
+      return List.of();
+    }
+    growth.merge( path, size, Long::sum );
+    bytes.addAndGet( size );
+    // the zip is in use, so it's not a candidate for eviction
+    return evict( path );
+  }
+
+  /**
+   * Removes least-recently-used artifacts until we're within the budget
+   *
+   * @param keep A zip file that must not be evicted
+   * @return The evicted artifacts
+   */
+  private List<Cached> evict( Path keep ) {
+    List<Cached> evicted = new ArrayList<>();
+    if( maxBytes > 0 && bytes.get() > maxBytes ) {
+      for( Cached victim : entries() ) {
+        if( bytes.get() <= maxBytes ) {
+          break;
+        }
+        if( !victim.path().equals( keep ) && remove( victim ) ) {
+          evictions.incrementAndGet();
+          evicted.add( victim );
+        }
+      }
+    }
+    return evicted;
+  }
+
+  /**
+   * Removes an artifact from the index
+   *
+   * @param cached The artifact to remove
+   * @return <code>true</code> if the artifact was removed, <code>false</code> if
+   *         it had already been removed or replaced
+   */
+  synchronized boolean remove( Cached cached ) {
+    if( entries.remove( cached.artifact(), cached ) ) {
+      release( cached );
+      dirty.set( true );
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Drops an entry's reference to its zip file
+   *
+   * @param cached The entry that is no longer in the index
+   */
+  private void release( Cached cached ) {
+    if( references.merge( cached.path(), -1, Integer::sum ) == 0 ) {
+      references.remove( cached.path() );
+      Long grown = growth.remove( cached.path() );
+      bytes.addAndGet( -cached.size() - (grown != null ? grown : 0) );
+    }
+  }
+
+  /**
+   * @param path A zip file
+   * @return <code>true</code> if any artifact in the index refers to that file
+   */
+  synchronized boolean referenced( Path path ) {
+    return references.containsKey( path );
+  }
+
+  /**
+   * @return A copy of the current entries, least-recently-used first
+   */
+  List<Cached> entries() {
+    // Access times could change while we're sorting, so take a snapshot first
+    record Stamped(Cached entry, long stamp) {
+    }
+    return entries.values().stream()
+        .map( c -> new Stamped( c, c.lastAccess() ) )
+        .sorted( comparingLong( Stamped::stamp ) )
+        .map( Stamped::entry )
+        .collect( toCollection( ArrayList::new ) );
+  }
+
+  /**
+   * Clears the flag that indicates that access times have changed
+   *
+   * @return <code>true</code> if access times have changed since the last call
+   */
+  boolean clean() {
+    return dirty.getAndSet( false );
+  }
+
+  /**
+   * @return The number of artifacts in the cache
+   */
+  int count() {
+    return entries.size();
+  }
+
+  /**
+   * @return The total size of the cached artifact zips and their inflated
+   *         entries, counting shared zips once
+   */
+  long bytes() {
+    return bytes.get();
+  }
+
+  /**
+   * @return The number of artifacts that have been evicted to keep within the
+   *         size budget
+   */
+  long evictions() {
+    return evictions.get();
+  }
+
+  @Override
+  public String toString() {
+    return String.format( "%s artifacts, %s bytes of %s, %s evictions",
+        entries.size(), bytes(), maxBytes > 0 ? maxBytes : "unlimited", evictions() );
+  }
+}
@@ -0,0 +1,392 @@
+package dev.flowty.bowlby.app.github;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Controls when artifact downloads happen and how fast they go:
+ * <ul>
+ * <li>A bounded number of downloads run at once. The rest wait in a queue for
+ * their {@link Priority}, and interactive downloads are always started before
+ * background ones.</li>
+ * <li>The combined download rate can be capped, so a few huge artifacts can't
+ * saturate our bandwidth</li>
+ * </ul>
+ */
+public class DownloadScheduler {
+
+  /**
+   * How urgently a download is wanted
+   */
+  public enum Priority {
+    /**
+     * Someone is waiting on the download
+     */
+    INTERACTIVE,
+    /**
+     * We're fetching the artifact in anticipation of it being wanted
+     */
+    BACKGROUND
+  }
+
+  /**
+   * Used when we've got nothing better to go on
+   */
+  public static final int DEFAULT_CONCURRENCY = 4;
+
+  private final int concurrency;
+  private final long bytesPerSecond;
+
+  /**
+   * The number of downloads that are currently running
+   */
+  private int running = 0;
+  /**
+   * The downloads that are waiting to start
+   */
+  private final Map<Priority, Deque<Ticket>> queues = new EnumMap<>( Priority.class );
+
+  private final Map<Priority, AtomicLong> started = new EnumMap<>( Priority.class );
+  private final Map<Priority, AtomicLong> waitNanos = new EnumMap<>( Priority.class );
+  private final AtomicLong throttleNanos = new AtomicLong();
+
+  /**
+   * The time at which the bandwidth budget will next have room, in {@link
+   * System#nanoTime()} terms
+   */
+  private long nextFree;
+  private final Object budgetLock = new Object();
+
+  /**
+   * @param concurrency    The maximum number of downloads that will run at once
+   * @param bytesPerSecond The maximum combined download rate, or zero for no
+   *                       limit
+   */
+  public DownloadScheduler( int concurrency, long bytesPerSecond ) {
+    if( concurrency < 1 ) {
+      throw new IllegalArgumentException( "Concurrency must be positive, not " + concurrency );
+    }
+    this.concurrency = concurrency;
+    this.bytesPerSecond = bytesPerSecond;
+    nextFree = System.nanoTime() - TimeUnit.SECONDS.toNanos( 1 );
+    for( Priority p : Priority.values() ) {
+      queues.put( p, new ArrayDeque<>() );
+      started.put( p, new AtomicLong() );
+      waitNanos.put( p, new AtomicLong() );
+    }
+  }
+
+  /**
+   * A download's place in the queue
+   */
+  private static class Ticket {
+    private final Object key;
+    private Priority priority;
+    private final long queued = System.nanoTime();
+    /**
+     * Called when it's the download's turn
+     */
+    private final Runnable start;
+
+    Ticket( Object key, Priority priority, Runnable start ) {
+      this.key = key;
+      this.priority = priority;
+      this.start = start;
+    }
+  }
+
+  /**
+   * @return The maximum number of downloads that will run at once
+   */
+  public int concurrency() {
+    return concurrency;
+  }
+
+  /**
+   * Runs a download, waiting until there's capacity to do so
+   *
+   * @param <T>      The result type
+   * @param key      Identifies the download, so it can be {@link #promote(Object)
+   *                 promoted}
+   * @param priority How urgently it's wanted
+   * @param download The download
+   * @return The download result
+   * @throws Exception if the download fails or we're interrupted while waiting
+   *                   for it to start
+   */
+  public <T> T run( Object key, Priority priority, Callable<T> download ) throws Exception {
+    CompletableFuture<Void> turn = new CompletableFuture<>();
+    Ticket ticket = enqueue( key, priority, () -> turn.complete( null ) );
+    try {
+      turn.get();
+    }
+    catch( InterruptedException e ) {
+      if( !cancel( ticket ) ) {
+        // our turn came as we were interrupted
+        release();
+      }
+      throw e;
+    }
+
+    try {
+      return download.call();
+    }
+    finally {
+      release();
+    }
+  }
+
+  /**
+   * Starts a download once there's capacity to do so, without waiting for it
+   *
+   * @param <T>      The result type
+   * @param key      Identifies the download, so it can be {@link #promote(Object)
+   *                 promoted}
+   * @param priority How urgently it's wanted
+   * @param download Starts the download. The capacity is held until the resulting
+   *                 future completes.
+   * @return The download result
+   */
+  public <T> CompletableFuture<T> submit( Object key, Priority priority,
+      Supplier<CompletableFuture<T>> download ) {
+    CompletableFuture<T> result = new CompletableFuture<>();
+    enqueue( key, priority, () -> {
+      CompletableFuture<T> started;
+      try {
+        started = download.get();
+      }
+      catch( RuntimeException e ) {
+        started = CompletableFuture.failedFuture( e );
+      }
+      started.whenComplete( ( value, error ) -> {
+        release();
+        if( error != null ) {
+          result.completeExceptionally( error );
+        }
+        else {
+          result.complete( value );
+        }
+      } );
+    } );
+    return result;
+  }
+
+  private Ticket enqueue( Object key, Priority priority, Runnable start ) {
+    Ticket ticket = new Ticket( key, priority, start );
+    synchronized( this ) {
+      queues.get( priority ).add( ticket );
+    }
+    dispatch();
+    return ticket;
+  }
+
+  /**
+   * @param ticket A ticket
+   * @return <code>true</code> if the ticket was removed from the queue before it
+   *         started
+   */
+  private synchronized boolean cancel( Ticket ticket ) {
+    return queues.get( ticket.priority ).remove( ticket );
+  }
+
+  /**
+   * Called when a download finishes, to free up its capacity for the next one
+   */
+  private void release() {
+    synchronized( this ) {
+      running--;
+    }
+    dispatch();
+  }
+
+  /**
+   * Starts as many queued downloads as we have capacity for
+   */
+  private void dispatch() {
+    List<Ticket> starting = new ArrayList<>();
+    synchronized( this ) {
+      Ticket next;
+      while( running < concurrency && (next = next()) != null ) {
+        queues.get( next.priority ).remove( next );
+        running++;
+        starting.add( next );
+      }
+    }
+    long now = System.nanoTime();
+    for( Ticket ticket : starting ) {
+      started.get( ticket.priority ).incrementAndGet();
+      waitNanos.get( ticket.priority ).addAndGet( now - ticket.queued );
+      ticket.start.run();
+    }
+  }
+
+  /**
+   * @return The ticket that should be the next to start
+   */
+  private Ticket next() {
+    for( Priority p : Priority.values() ) {
+      Ticket head = queues.get( p ).peek();
+      if( head != null ) {
+        return head;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Moves any waiting background download to the interactive queue, typically
+   * because someone has asked for the artifact that it's fetching
+   *
+   * @param key Identifies the download
+   */
+  public synchronized void promote( Object key ) {
+    Deque<Ticket> background = queues.get( Priority.BACKGROUND );
+    for( Ticket ticket : background.toArray( Ticket[]::new ) ) {
+      if( ticket.key.equals( key ) ) {
+        background.remove( ticket );
+        ticket.priority = Priority.INTERACTIVE;
+        queues.get( Priority.INTERACTIVE ).add( ticket );
+      }
+    }
+  }
+
+  /**
+   * Limits the rate at which data can be read from a stream. The limit is shared
+   * by all throttled streams.
+   *
+   * @param in The stream to throttle
+   * @return The throttled stream
+   */
+  public InputStream throttle( InputStream in ) {
+    if( bytesPerSecond <= 0 ) {
+      return in;
+    }
+    return new FilterInputStream( in ) {
+      @Override
+      public int read() throws IOException {
+        int b = super.read();
+        if( b != -1 ) {
+          consume( 1 );
+        }
+        return b;
+      }
+
+      @Override
+      public int read( byte[] b, int off, int len ) throws IOException {
+        int n = super.read( b, off, len );
+        if( n > 0 ) {
+          consume( n );
+        }
+        return n;
+      }
+    };
+  }
+
+  /**
+   * Takes bytes from the bandwidth budget, waiting until they've been paid for
+   *
+   * @param bytes The number of bytes that have been read
+   * @throws InterruptedIOException if interrupted while waiting
+   */
+  private void consume( long bytes ) throws InterruptedIOException {
+    long delay = reserve( bytes );
+    if( delay > 0 ) {
+      try {
+        TimeUnit.NANOSECONDS.sleep( delay );
+      }
+      catch( InterruptedException e ) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException( "Interrupted while throttled" );
+      }
+    }
+  }
+
+  /**
+   * Takes bytes from the bandwidth budget without waiting. It's up to the caller
+   * to hold off on reading any more data until the returned delay has passed. Up
+   * to a second's worth of unused budget can be saved up, so short bursts aren't
+   * penalised.
+   *
+   * @param bytes The number of bytes that have been read
+   * @return The number of nanoseconds to wait before reading more
+   */
+  public long reserve( long bytes ) {
+    if( bytesPerSecond <= 0 ) {
+      return 0;
+    }
+    long delay;
+    synchronized( budgetLock ) {
+      long now = System.nanoTime();
+      nextFree = Math.max( nextFree, now - TimeUnit.SECONDS.toNanos( 1 ) )
+          + TimeUnit.SECONDS.toNanos( bytes ) / bytesPerSecond;
+      delay = nextFree - now;
+    }
+    if( delay > 0 ) {
+      throttleNanos.addAndGet( delay );
+    }
+    return delay;
+  }
+
+  /**
+   * @param priority A priority
+   * @return The number of downloads of that priority that are waiting to start
+   */
+  public synchronized int queued( Priority priority ) {
+    return queues.get( priority ).size();
+  }
+
+  /**
+   * @param priority A priority
+   * @return The number of downloads that have started at that priority
+   */
+  public long started( Priority priority ) {
+    return started.get( priority ).get();
+  }
+
+  /**
+   * @param priority A priority
+   * @return The total time that downloads which started at that priority spent
+   *         waiting to do so
+   */
+  public Duration waited( Priority priority ) {
+    return Duration.ofNanos( waitNanos.get( priority ).get() );
+  }
+
+  /**
+   * @return The total time that downloads have been held back to keep within the
+   *         bandwidth limit
+   */
+  public Duration throttled() {
+    return Duration.ofNanos( throttleNanos.get() );
+  }
+
+  @Override
+  public synchronized String toString() {
+    StringBuilder sb = new StringBuilder()
+        .append( running ).append( "/" ).append( concurrency ).append( " running" );
+    for( Priority p : Priority.values() ) {
+      sb.append( ", " ).append( p.name().toLowerCase() )
+          .append( " " ).append( queues.get( p ).size() ).append( " queued " )
+          .append( started( p ) ).append( " started " )
+          .append( waited( p ).toMillis() ).append( "ms waiting" );
+    }
+    if( bytesPerSecond > 0 ) {
+      sb.append( ", " ).append( throttled().toMillis() ).append( "ms throttled" );
+    }
+    return sb.toString();
+  }
+}
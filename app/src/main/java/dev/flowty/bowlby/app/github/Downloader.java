@@ -0,0 +1,646 @@
+package dev.flowty.bowlby.app.github;
+
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.APPEND;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpHeaders;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpResponse.BodyHandler;
+import java.net.http.HttpResponse.BodySubscribers;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.Channel;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.IntFunction;
+import java.util.function.LongConsumer;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import dev.flowty.bowlby.app.github.GithubApiClient.Download;
+
+/**
+ * Downloads files from links, writing them to disk as they arrive. Large files
+ * are fetched in concurrent range chunks, interrupted downloads are resumed,
+ * and slow single-stream downloads are raced against a second attempt.
+ */
+class Downloader {
+  private static final Logger LOG = LoggerFactory.getLogger( Downloader.class );
+
+  /**
+   * The number of downloaded bytes between progress reports
+   */
+  private static final long PROGRESS_INTERVAL = 64 * 1024;
+
+  private final HttpClient http;
+  private final long chunkSize;
+  private final int chunkConcurrency;
+  /**
+   * Limits our download bandwidth
+   */
+  private DownloadScheduler scheduler = new DownloadScheduler(
+      DownloadScheduler.DEFAULT_CONCURRENCY, 0 );
+  /**
+   * Guards against slow downloads
+   */
+  private Hedge hedge = new Hedge( 0, Duration.ZERO );
+  /**
+   * Does the blocking parts of our downloads: digesting and moving files
+   */
+  private final ExecutorService io = Executors.newCachedThreadPool( r -> {
+    Thread t = new Thread( r, "github-io" );
+    t.setDaemon( true );
+    return t;
+  } );
+
+  /**
+   * @param http             How to make requests
+   * @param chunkSize        The size of the chunks in which large files are
+   *                         downloaded. Files of this size or smaller are
+   *                         downloaded in a single stream, as are all files if
+   *                         this is zero.
+   * @param chunkConcurrency The number of chunks of a file that we'll download at
+   *                         once
+   */
+  Downloader( HttpClient http, long chunkSize, int chunkConcurrency ) {
+    this.http = http;
+    this.chunkSize = chunkSize;
+    this.chunkConcurrency = chunkConcurrency;
+  }
+
+  /**
+   * Sets the scheduler that limits our download bandwidth
+   *
+   * @param downloadScheduler Controls download rate
+   * @return <code>this</code>
+   */
+  Downloader withScheduler( DownloadScheduler downloadScheduler ) {
+    scheduler = downloadScheduler;
+    return this;
+  }
+
+  /**
+   * Sets when we race a second download against a slow one
+   *
+   * @param bytesPerSecond The throughput below which a download is considered
+   *                       slow, or zero to never hedge
+   * @param delay          How long a download has to be slow for before we hedge
+   * @return <code>this</code>
+   */
+  Downloader withHedging( long bytesPerSecond, Duration delay ) {
+    hedge = new Hedge( bytesPerSecond, delay );
+    return this;
+  }
+
+  /**
+   * @return How we guard against slow downloads
+   */
+  Hedge hedge() {
+    return hedge;
+  }
+
+  @Override
+  public String toString() {
+    return "download hedging: " + hedge;
+  }
+
+  /**
+   * Downloads a file. If it already exists then it is assumed to hold what we got
+   * of an earlier interrupted download, and only the remainder is requested.
+   *
+   * @param link     The download link
+   * @param relink   Gets a fresh download link, for when we race a second
+   *                 download against a slow one
+   * @param part     The file to download to
+   * @param size     The expected size of the file, or -1 if we don't know
+   * @param progress Will be given the number of contiguous bytes at the start of
+   *                 the file that are on disk as the download progresses
+   * @return The SHA-256 digest of the complete file, or <code>null</code> on
+   *         failure
+   */
+  CompletableFuture<String> download( URI link, Supplier<CompletableFuture<URI>> relink,
+      Path part, long size, LongConsumer progress ) {
+    return chunked( size, part )
+        ? downloadChunks( link, part, size, progress )
+        : hedged( link, relink, part, progress );
+  }
+
+  /**
+   * @param size The size of the file
+   * @param part The file that we'll download to
+   * @return <code>true</code> if the file should be downloaded in chunks
+   */
+  private boolean chunked( long size, Path part ) {
+    return chunkSize > 0
+        && chunkConcurrency > 1
+        && size > chunkSize
+        // the file holds either the start of an interrupted single-stream
+        // download, which is resumed as such, or some chunks of an interrupted
+        // chunked download
+        && (!Files.exists( part ) || Files.exists( chunkJournal( part ) ));
+  }
+
+  /**
+   * @param part The file that a chunked download is writing to
+   * @return The file where we record which chunks of it are complete
+   */
+  static Path chunkJournal( Path part ) {
+    return part.resolveSibling( part.getFileName() + ".chunks" );
+  }
+
+  /**
+   * Finds the chunks of an interrupted download that were completed
+   *
+   * @param part    The file that the download was writing to
+   * @param journal The record of the completed chunks
+   * @param size    The expected size of the file
+   * @return The indices of the completed chunks
+   */
+  private BitSet completedChunks( Path part, Path journal, long size ) {
+    BitSet completed = new BitSet();
+    try {
+      if( Files.exists( journal ) && Files.exists( part ) && Files.size( part ) == size ) {
+        List<String> lines = Files.readAllLines( journal );
+        if( !lines.isEmpty() && Long.parseLong( lines.get( 0 ) ) == chunkSize ) {
+          lines.stream()
+              .skip( 1 )
+              .mapToInt( Integer::parseInt )
+              .forEach( completed::set );
+        }
+      }
+    }
+    catch( IOException | NumberFormatException | IndexOutOfBoundsException e ) {
+      // we might have been interrupted halfway through a line
+      LOG.warn( "Failed to read chunk journal {}", journal, e );
+      completed.clear();
+    }
+    return completed;
+  }
+
+  /**
+   * Records the completion of a chunk
+   *
+   * @param journal The record of completed chunks
+   * @param chunk   The index of the completed chunk
+   */
+  private static void completed( Path journal, int chunk ) {
+    try {
+      // chunks complete concurrently, and their lines mustn't interleave
+      synchronized( journal ) {
+        Files.writeString( journal, chunk + "\n", APPEND );
+      }
+    }
+    catch( IOException e ) {
+      // the chunk will be downloaded again if we're interrupted
+      LOG.warn( "Failed to record chunk {} in {}", chunk, journal, e );
+    }
+  }
+
+  /**
+   * Downloads a file in concurrent chunks. The file is allocated to its full size
+   * up front and each chunk is written to its own position as it arrives.
+   * Completed chunks are recorded in a journal, so if the download is interrupted
+   * then only the missing chunks are fetched when it is resumed. If the server
+   * doesn't honour our range requests then we fall back to a single stream.
+   *
+   * @param uri      The download link
+   * @param part     The file to download to
+   * @param size     The expected size of the file
+   * @param progress Will be given the extent of the contiguous data at the start
+   *                 of the file
+   * @return The SHA-256 digest of the complete file, or <code>null</code> on
+   *         failure
+   */
+  private CompletableFuture<String> downloadChunks( URI uri, Path part, long size,
+      LongConsumer progress ) {
+    int count = (int) ((size + chunkSize - 1) / chunkSize);
+    Path journal = chunkJournal( part );
+    BitSet completed = completedChunks( part, journal, size );
+    AsynchronousFileChannel file;
+    try {
+      if( completed.isEmpty() ) {
+        // the journal is written first, so the allocated file can't be mistaken
+        // for the start of a single-stream download
+        Files.writeString( journal, chunkSize + "\n", CREATE, WRITE, TRUNCATE_EXISTING );
+        try( FileChannel allocation = FileChannel.open( part,
+            CREATE, WRITE, TRUNCATE_EXISTING ) ) {
+          allocation.write( ByteBuffer.allocate( 1 ), size - 1 );
+        }
+        LOG.info( "Downloading {} bytes to {} in {} chunks", size, part, count );
+      }
+      else {
+        LOG.info( "Resuming download of {} bytes to {}, {} of {} chunks already present",
+            size, part, completed.cardinality(), count );
+      }
+      file = AsynchronousFileChannel.open( part, WRITE );
+    }
+    catch( IOException e ) {
+      return CompletableFuture.failedFuture( e );
+    }
+
+    // the write position of each chunk, from which we can work out how much of the
+    // file is contiguous
+    AtomicLongArray positions = new AtomicLongArray( count );
+    for( int i = 0; i < count; i++ ) {
+      positions.set( i, completed.get( i )
+          ? Math.min( (i + 1) * chunkSize, size )
+          : i * chunkSize );
+    }
+    LongSupplier contiguous = () -> {
+      for( int i = 0; i < count; i++ ) {
+        long position = positions.get( i );
+        if( position < Math.min( (i + 1) * chunkSize, size ) ) {
+          return position;
+        }
+      }
+      return size;
+    };
+    if( !completed.isEmpty() ) {
+      progress.accept( contiguous.getAsLong() );
+    }
+    AtomicInteger next = new AtomicInteger();
+    IntFunction<CompletableFuture<Boolean>> chunks = chunk -> {
+      if( completed.get( chunk ) ) {
+        return CompletableFuture.completedFuture( true );
+      }
+      long from = chunk * chunkSize;
+      long to = Math.min( from + chunkSize, size ) - 1;
+      return downloadChunk( uri, file, from, to, position -> {
+        positions.set( chunk, position );
+        progress.accept( contiguous.getAsLong() );
+      } ).thenApply( done -> {
+        if( done ) {
+          completed( journal, chunk );
+        }
+        else {
+          // no point in starting any more
+          next.set( count );
+        }
+        return done;
+      } );
+    };
+
+    // each lane works through the chunks one at a time, so we only have
+    // chunkConcurrency requests in flight
+    List<CompletableFuture<Boolean>> lanes = new ArrayList<>();
+    for( int i = 0; i < Math.min( chunkConcurrency, count ); i++ ) {
+      lanes.add( lane( next, count, chunks ) );
+    }
+
+    return CompletableFuture.allOf( lanes.toArray( CompletableFuture[]::new ) )
+        .handle( ( v, error ) -> {
+          close( file, part );
+          if( error != null ) {
+            LOG.warn( "Failed to download chunk of {}", part, GithubApiClient.cause( error ) );
+            return false;
+          }
+          return lanes.stream().allMatch( CompletableFuture::join );
+        } )
+        .thenComposeAsync( complete -> {
+          if( complete ) {
+            // the chunks arrived out of order, so we can only digest the result
+            MessageDigest sha256 = sha256();
+            digest( part, sha256 );
+            try {
+              Files.deleteIfExists( journal );
+            }
+            catch( IOException e ) {
+              return CompletableFuture.failedFuture( e );
+            }
+            return CompletableFuture.completedFuture( HexFormat.of().formatHex( sha256.digest() ) );
+          }
+          LOG.warn( "Chunked download of {} failed, falling back to a single stream", part );
+          try {
+            // a single stream can't resume from a file that has holes in it
+            Files.deleteIfExists( journal );
+            Files.deleteIfExists( part );
+          }
+          catch( IOException e ) {
+            return CompletableFuture.failedFuture( e );
+          }
+          return download( uri, part, progress, new CompletableFuture<>() );
+        }, io );
+  }
+
+  /**
+   * Downloads chunks one after the other until there are none left
+   *
+   * @param next   The index of the next chunk to download, shared between lanes
+   * @param count  The number of chunks
+   * @param chunks Downloads a chunk, giving <code>true</code> if it arrived in
+   *               full
+   * @return <code>true</code> if every chunk that this lane tried was downloaded
+   *         in full
+   */
+  private static CompletableFuture<Boolean> lane( AtomicInteger next, int count,
+      IntFunction<CompletableFuture<Boolean>> chunks ) {
+    int chunk = next.getAndIncrement();
+    if( chunk >= count ) {
+      return CompletableFuture.completedFuture( true );
+    }
+    return chunks.apply( chunk ).thenCompose( done -> done
+        ? lane( next, count, chunks )
+        : CompletableFuture.completedFuture( false ) );
+  }
+
+  /**
+   * Downloads one chunk of a file
+   *
+   * @param uri      The download link
+   * @param file     The file to write to
+   * @param first    The index of the first byte of the chunk
+   * @param last     The index of the last byte of the chunk, inclusive
+   * @param progress Will be given the write position as the chunk arrives
+   * @return <code>true</code> if the chunk was downloaded in full
+   */
+  private CompletableFuture<Boolean> downloadChunk( URI uri, AsynchronousFileChannel file,
+      long first, long last, LongConsumer progress ) {
+    return http.sendAsync( HttpRequest.newBuilder()
+        .GET()
+        .uri( uri )
+        .header( "Range", "bytes=" + first + "-" + last )
+        .build(),
+        info -> info.statusCode() == 206 && rangeStart( info.headers() ) == first
+            ? new FileSubscriber( file, first, null, progress, scheduler )
+            : BodySubscribers.replacing( null ) )
+        .thenApply( dl -> {
+          if( dl.body() == null ) {
+            LOG.warn( "Unexpected chunk response status {}", dl.statusCode() );
+            return false;
+          }
+          if( dl.body() <= last ) {
+            LOG.warn( "Chunk {}-{} ended early at {}", first, last, dl.body() );
+            return false;
+          }
+          return true;
+        } );
+  }
+
+  /**
+   * Fetches part of a file, waiting until it has arrived
+   *
+   * @param uri      The download link
+   * @param file     The file to write to
+   * @param first    The index of the first byte to fetch
+   * @param last     The index of the last byte to fetch, inclusive
+   * @param progress Will be given the write position as the bytes arrive
+   * @return <code>true</code> if the range was fetched in full
+   * @throws IOException          on failure
+   * @throws InterruptedException if interrupted
+   */
+  boolean fetchRange( URI uri, FileChannel file, long first, long last,
+      LongConsumer progress ) throws IOException, InterruptedException {
+    HttpResponse<InputStream> dl = http.send( HttpRequest.newBuilder()
+        .GET()
+        .uri( uri )
+        .header( "Range", "bytes=" + first + "-" + last )
+        .build(),
+        info -> info.statusCode() == 206 && rangeStart( info.headers() ) == first
+            ? BodySubscribers.ofInputStream()
+            : BodySubscribers.replacing( null ) );
+
+    if( dl.body() == null ) {
+      LOG.warn( "Unexpected range response status {}", dl.statusCode() );
+      return false;
+    }
+
+    long position = first;
+    try( ReadableByteChannel body = Channels.newChannel( scheduler.throttle( dl.body() ) ) ) {
+      long transferred;
+      while( position <= last && (transferred = file.transferFrom( body, position,
+          Math.min( last + 1 - position, PROGRESS_INTERVAL ) )) > 0 ) {
+        position += transferred;
+        progress.accept( position );
+      }
+    }
+    if( position <= last ) {
+      LOG.warn( "Range {}-{} ended early at {}", first, last, position );
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Downloads a file in a single stream. If the download goes too slowly then we
+   * race another against it, from a fresh link and to a different file. The
+   * winner's file ends up in place.
+   *
+   * @param link     The download link
+   * @param relink   Gets a fresh download link
+   * @param part     The file to download to
+   * @param progress Will be given the size of the file as it grows
+   * @return The SHA-256 digest of the complete file, or <code>null</code> on
+   *         failure
+   */
+  private CompletableFuture<String> hedged( URI link, Supplier<CompletableFuture<URI>> relink,
+      Path part, LongConsumer progress ) {
+    if( !hedge.enabled() ) {
+      return download( link, part, progress, new CompletableFuture<>() );
+    }
+    // named so that it's cleaned up with the other abandoned downloads
+    Path spare = part.resolveSibling( "hedge-" + part.getFileName() );
+    return hedge.race(
+        ( watch, abort ) -> download( link, part, position -> {
+          watch.accept( position );
+          progress.accept( position );
+        }, abort )
+            .thenApply( digest -> digest == null ? null : new Download( part, digest ) ),
+        ( watch, abort ) -> relink.get()
+            .thenCompose( fresh -> fresh == null
+                ? CompletableFuture.completedFuture( null )
+                : download( fresh, spare, watch, abort ) )
+            .thenApply( digest -> digest == null ? null : new Download( spare, digest ) ) )
+        .handleAsync( ( winner, error ) -> {
+          try {
+            if( winner != null && winner.file().equals( spare ) ) {
+              LOG.info( "Hedged download of {} finished first", part );
+              Files.move( spare, part, REPLACE_EXISTING );
+            }
+            else {
+              Files.deleteIfExists( spare );
+            }
+          }
+          catch( IOException e ) {
+            throw new UncheckedIOException( e );
+          }
+          if( error != null ) {
+            throw error instanceof CompletionException ce ? ce : new CompletionException( error );
+          }
+          return winner == null ? null : winner.sha256();
+        }, io );
+  }
+
+  /**
+   * Downloads a file. If the file already exists then we assume that it is the
+   * result of an earlier interrupted download and ask for only the remaining
+   * bytes. The file content is digested as it arrives, so we don't have to read
+   * it again to verify it.
+   *
+   * @param uri      The download link
+   * @param part     The file to download to
+   * @param progress Will be given the size of the file as it grows
+   * @param abort    Completes if the download should be abandoned
+   * @return The SHA-256 digest of the complete file, or <code>null</code> on
+   *         failure
+   */
+  private CompletableFuture<String> download( URI uri, Path part, LongConsumer progress,
+      CompletableFuture<Void> abort ) {
+    long resumeFrom;
+    try {
+      resumeFrom = Files.exists( part ) ? Files.size( part ) : 0;
+    }
+    catch( IOException e ) {
+      return CompletableFuture.failedFuture( e );
+    }
+    HttpRequest.Builder request = HttpRequest.newBuilder()
+        .GET()
+        .uri( uri );
+    MessageDigest sha256 = sha256();
+    CompletableFuture<Void> existing = CompletableFuture.completedFuture( null );
+    if( resumeFrom > 0 ) {
+      LOG.info( "Resuming download of {} from byte {}", part, resumeFrom );
+      request.header( "Range", "bytes=" + resumeFrom + "-" );
+      // we only have to read what we had before, the rest is digested on arrival
+      existing = CompletableFuture.runAsync( () -> digest( part, sha256 ), io );
+    }
+
+    AtomicReference<AsynchronousFileChannel> file = new AtomicReference<>();
+    BodyHandler<Long> handler = info -> {
+      boolean append = info.statusCode() == 206 && rangeStart( info.headers() ) == resumeFrom;
+      if( info.statusCode() != 200 && !append || abort.isDone() ) {
+        return BodySubscribers.replacing( null );
+      }
+      try {
+        file.set( AsynchronousFileChannel.open( part, CREATE, WRITE ) );
+        if( !append ) {
+          file.get().truncate( 0 );
+          sha256.reset();
+        }
+      }
+      catch( IOException e ) {
+        throw new UncheckedIOException( e );
+      }
+      long position = append ? resumeFrom : 0;
+      progress.accept( position );
+      return new FileSubscriber( file.get(), position, sha256, progress, scheduler );
+    };
+
+    // The download link does not count towards API limits
+    return existing
+        .thenCompose( v -> {
+          CompletableFuture<HttpResponse<Long>> sent = http.sendAsync( request.build(), handler );
+          abort.thenRun( () -> sent.cancel( true ) );
+          return sent;
+        } )
+        .whenComplete( ( dl, error ) -> close( file.get(), part ) )
+        .thenCompose( dl -> {
+          if( dl.body() != null ) {
+            return CompletableFuture.completedFuture( HexFormat.of().formatHex( sha256.digest() ) );
+          }
+          if( abort.isDone() ) {
+            return CompletableFuture.completedFuture( null );
+          }
+          if( resumeFrom > 0 && (dl.statusCode() == 206 || dl.statusCode() == 416) ) {
+            // the server doesn't agree with what we've got so far
+            LOG.warn( "Failed to resume {} with status {}, restarting", part, dl.statusCode() );
+            try {
+              Files.delete( part );
+            }
+            catch( IOException e ) {
+              return CompletableFuture.failedFuture( e );
+            }
+            return download( uri, part, progress, abort );
+          }
+          LOG.error( "Unexpected download response status {}", dl.statusCode() );
+          return CompletableFuture.completedFuture( null );
+        } );
+  }
+
+  /**
+   * Feeds the content of a file into a digest
+   *
+   * @param file   The file
+   * @param digest The digest
+   */
+  private static void digest( Path file, MessageDigest digest ) {
+    try( InputStream content = Files.newInputStream( file ) ) {
+      content.transferTo( new DigestOutputStream( OutputStream.nullOutputStream(), digest ) );
+    }
+    catch( IOException e ) {
+      throw new UncheckedIOException( e );
+    }
+  }
+
+  /**
+   * @param channel A file channel, or <code>null</code>
+   * @param file    The file that it's writing to
+   */
+  private static void close( Channel channel, Path file ) {
+    try {
+      if( channel != null ) {
+        channel.close();
+      }
+    }
+    catch( IOException e ) {
+      LOG.warn( "Failed to close {}", file, e );
+    }
+  }
+
+  private static MessageDigest sha256() {
+    try {
+      return MessageDigest.getInstance( "SHA-256" );
+    }
+    catch( NoSuchAlgorithmException e ) {
+      throw new IllegalStateException( "SHA-256 is a required algorithm", e );
+    }
+  }
+
+  /**
+   * @param headers Response headers
+   * @return The first byte index from the <code>content-range</code> header, or
+   *         -1 if that cannot be found
+   */
+  private static long rangeStart( HttpHeaders headers ) {
+    try {
+      return headers.firstValue( "content-range" )
+          .filter( cr -> cr.startsWith( "bytes " ) )
+          .map( cr -> cr.substring( "bytes ".length(), cr.indexOf( '-' ) ) )
+          .map( Long::parseLong )
+          .orElse( -1L );
+    }
+    catch( RuntimeException e ) {
+      return -1;
+    }
+  }
+}
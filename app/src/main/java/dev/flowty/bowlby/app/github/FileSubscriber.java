@@ -0,0 +1,160 @@
+package dev.flowty.bowlby.app.github;
+
+import java.net.http.HttpResponse.BodySubscriber;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.security.MessageDigest;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongConsumer;
+
+/**
+ * Writes a response body to a file as it arrives, without blocking. We don't
+ * ask for more of the body until what we've got has been written, so a slow
+ * disk or a bandwidth limit pushes back on the connection rather than the body
+ * piling up in memory.
+ */
+class FileSubscriber implements BodySubscriber<Long> {
+
+  private final AsynchronousFileChannel file;
+  private final MessageDigest digest;
+  private final LongConsumer progress;
+  private final DownloadScheduler scheduler;
+  private final CompletableFuture<Long> result = new CompletableFuture<>();
+
+  private Flow.Subscription subscription;
+  private volatile long position;
+  /**
+   * Set while we're writing the last batch of the body that we were given
+   */
+  private boolean writing = false;
+  /**
+   * Set once we've been told that there's no more body to come
+   */
+  private boolean complete = false;
+
+  /**
+   * @param file      The file to write to
+   * @param position  Where in the file to write the body
+   * @param digest    Will be updated with the body content, or <code>null</code>
+   * @param progress  Will be given the write position as the body arrives
+   * @param scheduler Limits our bandwidth
+   */
+  FileSubscriber( AsynchronousFileChannel file, long position, MessageDigest digest,
+      LongConsumer progress, DownloadScheduler scheduler ) {
+    this.file = file;
+    this.position = position;
+    this.digest = digest;
+    this.progress = progress;
+    this.scheduler = scheduler;
+  }
+
+  /**
+   * @return The write position at the end of the body
+   */
+  @Override
+  public CompletionStage<Long> getBody() {
+    return result;
+  }
+
+  @Override
+  public void onSubscribe( Flow.Subscription s ) {
+    subscription = s;
+    s.request( 1 );
+  }
+
+  @Override
+  public void onNext( List<ByteBuffer> items ) {
+    synchronized( this ) {
+      writing = true;
+    }
+    long bytes = 0;
+    for( ByteBuffer item : items ) {
+      bytes += item.remaining();
+      if( digest != null ) {
+        digest.update( item.duplicate() );
+      }
+    }
+    write( items, 0, bytes );
+  }
+
+  /**
+   * Writes a batch of body buffers, one after the other
+   *
+   * @param items The buffers
+   * @param index The index of the buffer to write
+   * @param bytes The total size of the batch
+   */
+  private void write( List<ByteBuffer> items, int index, long bytes ) {
+    if( index == items.size() ) {
+      written( bytes );
+      return;
+    }
+    ByteBuffer item = items.get( index );
+    if( !item.hasRemaining() ) {
+      write( items, index + 1, bytes );
+      return;
+    }
+    file.write( item, position, null, new CompletionHandler<Integer, Void>() {
+      @Override
+      public void completed( Integer count, Void attachment ) {
+        position += count;
+        // partial writes will leave the buffer with something remaining
+        write( items, index, bytes );
+      }
+
+      @Override
+      public void failed( Throwable exc, Void attachment ) {
+        subscription.cancel();
+        result.completeExceptionally( exc );
+      }
+    } );
+  }
+
+  /**
+   * Called when a batch has been written, to ask for the next one
+   *
+   * @param bytes The size of the batch
+   */
+  private void written( long bytes ) {
+    progress.accept( position );
+    boolean done;
+    synchronized( this ) {
+      writing = false;
+      done = complete;
+    }
+    if( done ) {
+      result.complete( position );
+      return;
+    }
+    long delay = scheduler.reserve( bytes );
+    if( delay > 0 ) {
+      CompletableFuture.delayedExecutor( delay, TimeUnit.NANOSECONDS )
+          .execute( () -> subscription.request( 1 ) );
+    }
+    else {
+      subscription.request( 1 );
+    }
+  }
+
+  @Override
+  public void onError( Throwable throwable ) {
+    result.completeExceptionally( throwable );
+  }
+
+  @Override
+  public void onComplete() {
+    boolean done;
+    synchronized( this ) {
+      complete = true;
+      done = !writing;
+    }
+    if( done ) {
+      result.complete( position );
+    }
+  }
+}
@@ -1,27 +1,45 @@
 package dev.flowty.bowlby.app.github;
 
-import static java.nio.file.StandardOpenOption.CREATE;
-import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
-import static java.nio.file.StandardOpenOption.WRITE;
 import static java.util.stream.Collectors.joining;
 import static java.util.stream.Collectors.toCollection;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.http.HttpClient;
 import java.net.http.HttpClient.Version;
+import java.net.http.HttpHeaders;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
 import java.net.http.HttpResponse.BodyHandler;
 import java.net.http.HttpResponse.BodyHandlers;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.time.Duration;
 import java.time.Instant;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
+import java.util.Spliterators;
 import java.util.TreeSet;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.Consumer;
+import java.util.function.LongConsumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -35,6 +53,8 @@ import dev.flowty.bowlby.app.github.Entity.Workflow;
 import dev.flowty.bowlby.app.github.Message.GetRepoResponse;
 import dev.flowty.bowlby.app.github.Message.ListWorkflowRunArtifactsResponse;
 import dev.flowty.bowlby.app.github.Message.ListWorkflowRunResponse;
+import dev.flowty.bowlby.app.github.Message.WorkflowRunArtifact;
+import dev.flowty.bowlby.app.zip.RemoteZip;
 
 /**
  * Supports our interactions with the github API.
@@ -51,31 +71,112 @@ public class GithubApiClient {
 
   private static final Logger LOG = LoggerFactory.getLogger( GithubApiClient.class );
 
+  /**
+   * The number of artifact listings that we remember
+   */
+  private static final int LISTING_CAPACITY = 4096;
+
+  /**
+   * The number of API responses that we remember for revalidation
+   */
+  private static final int RESPONSE_CACHE_CAPACITY = 1024;
+
+  /**
+   * The number of artifacts that we ask for in each page of a listing. This is
+   * the most that github will give us.
+   */
+  private static final int ARTIFACT_PAGE_SIZE = 100;
+
+  /**
+   * Picks the next page out of a <code>link</code> header
+   */
+  private static final Pattern NEXT_LINK = Pattern.compile( "<([^>]*)>\\s*;\\s*rel=\"next\"" );
+
   private final String apiHost;
   private final String authToken;
   private final HttpClient http = HttpClient.newBuilder()
       .version( Version.HTTP_1_1 )
       .build();
-
   /**
-   * Holds the last time that we made an api call.
+   * Fetches artifacts once we have their download links
    */
-  private Instant lastCall = Instant.now();
+  private final Downloader downloader;
+
   /**
-   * Holds the current minimum duration required between api calls in order that
-   * we don't break the rate limits. See <a href=
+   * Spaces out our api calls so that we don't break the rate limits. See <a href=
    * "https://docs.github.com/en/rest/using-the-rest-api/rate-limits-for-the-rest-api">
    * the API limit docs</a>.
    */
-  private Duration callInterval = Duration.ZERO;
+  private final RateLimiter rateLimiter = new RateLimiter();
+  /**
+   * The API responses that we can revalidate rather than fetching afresh
+   */
+  private final ResponseCache responseCache = new ResponseCache( RESPONSE_CACHE_CAPACITY );
 
   /**
+   * The artifact details that we've seen in listings, so we can verify and plan
+   * downloads. The least-recently-listed are forgotten to keep this bounded.
+   */
+  private final Map<Artifact, WorkflowRunArtifact> listed = Collections.synchronizedMap(
+      new LinkedHashMap<>( 16, 0.75f, true ) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry( Map.Entry<Artifact, WorkflowRunArtifact> eldest ) {
+          return size() > LISTING_CAPACITY;
+        }
+      } );
+
+  /**
+   * Builds a client that downloads artifacts in a single stream
+   *
    * @param apiHost   The hostname to hit with our requests
    * @param authToken The token to put on our requests
    */
   public GithubApiClient( String apiHost, String authToken ) {
+    this( apiHost, authToken, 0, 1 );
+  }
+
+  /**
+   * @param apiHost          The hostname to hit with our requests
+   * @param authToken        The token to put on our requests
+   * @param chunkSize        The size of the chunks in which large artifacts are
+   *                         downloaded. Artifacts of this size or smaller are
+   *                         downloaded in a single stream, as are all artifacts
+   *                         if this is zero.
+   * @param chunkConcurrency The number of chunks of an artifact that we'll
+   *                         download at once
+   */
+  public GithubApiClient( String apiHost, String authToken, long chunkSize,
+      int chunkConcurrency ) {
     this.apiHost = apiHost;
     this.authToken = authToken;
+    downloader = new Downloader( http, chunkSize, chunkConcurrency );
+  }
+
+  /**
+   * Sets the scheduler that limits our download bandwidth
+   *
+   * @param downloadScheduler Controls download rate
+   * @return <code>this</code>
+   */
+  public GithubApiClient withScheduler( DownloadScheduler downloadScheduler ) {
+    downloader.withScheduler( downloadScheduler );
+    return this;
+  }
+
+  /**
+   * Sets when we race a second download against a slow one. The second download
+   * uses a fresh link, so it's likely to be served from somewhere else.
+   *
+   * @param bytesPerSecond The throughput below which a download is considered
+   *                       slow, or zero to never hedge
+   * @param delay          How long a download has to be slow for before we hedge
+   * @return <code>this</code>
+   */
+  public GithubApiClient withHedging( long bytesPerSecond, Duration delay ) {
+    downloader.withHedging( bytesPerSecond, delay );
+    return this;
   }
 
   /**
@@ -86,51 +187,388 @@ public class GithubApiClient {
    * </ol>
    *
    * @param artifact    The ID of the artifact
+   * @param destination The file to download to. If this already exists then it is
+   *                    assumed to hold the start of the artifact from an earlier
+   *                    interrupted download, and only the remainder will be
+   *                    requested.
+   * @return The completed download, or <code>null</code> on failure
+   * @throws ArtifactAbsentException if github doesn't have the artifact
+   */
+  public Download getArtifact( Artifact artifact, Path destination )
+      throws ArtifactAbsentException {
+    return getArtifact( artifact, destination, length -> {
+      // nobody is interested
+    } );
+  }
+
+  /**
+   * Downloads an artifact, waiting for it to complete. See {@link
+   * #getArtifactAsync(Artifact, Path, LongConsumer)}.
+   *
+   * @param artifact    The ID of the artifact
    * @param destination The file to download to
-   * @return The downloaded file path, or <code>null</code> on failure
+   * @param progress    Will be given the download progress
+   * @return The completed download, or <code>null</code> on failure
+   * @throws ArtifactAbsentException if github doesn't have the artifact
    */
-  public Path getArtifact( Artifact artifact, Path destination ) {
-    LOG.info( "Downloading artifact {} to ", artifact, destination );
+  public Download getArtifact( Artifact artifact, Path destination, LongConsumer progress )
+      throws ArtifactAbsentException {
     try {
-      HttpResponse<String> redirect = send(
-          HttpRequest.newBuilder()
+      return getArtifactAsync( artifact, destination, progress ).join();
+    }
+    catch( CompletionException e ) {
+      if( e.getCause() instanceof ArtifactAbsentException absent ) {
+        throw absent;
+      }
+      throw e;
+    }
+  }
+
+  /**
+   * Downloads an artifact without tying up the calling thread. This is a
+   * two-stage process:
+   * <ol>
+   * <li>Hit the API to get a download link</li>
+   * <li>Use the download link</li>
+   * </ol>
+   * The response body is written to disk as it arrives, and we only ask for more
+   * of it once that's done.
+   *
+   * @param artifact    The ID of the artifact
+   * @param destination The file to download to. If this already exists then it is
+   *                    assumed to hold the start of the artifact from an earlier
+   *                    interrupted download, and only the remainder will be
+   *                    requested.
+   * @param progress    Will be given the number of contiguous bytes at the start
+   *                    of the file that are on disk as the download progresses.
+   *                    This may be called from several threads at once, and the
+   *                    values will not necessarily be in order.
+   * @return The completed download, or <code>null</code> on failure. This will
+   *         complete exceptionally with an {@link ArtifactAbsentException} if
+   *         github doesn't have the artifact.
+   */
+  public CompletableFuture<Download> getArtifactAsync( Artifact artifact, Path destination,
+      LongConsumer progress ) {
+    LOG.info( "Downloading artifact {} to {}", artifact, destination );
+    return downloadLinkAsync( artifact )
+        .thenCompose( link -> {
+          if( link == null ) {
+            return CompletableFuture.completedFuture( null );
+          }
+          LOG.debug( "Downloading from {}", link );
+          try {
+            Files.createDirectories( destination.getParent() );
+          }
+          catch( IOException e ) {
+            return CompletableFuture.failedFuture( e );
+          }
+          return downloader.download( link, () -> downloadLinkAsync( artifact ),
+              destination, expectedSize( artifact ), progress );
+        } )
+        .handle( ( digest, error ) -> {
+          Throwable cause = cause( error );
+          if( cause instanceof ArtifactAbsentException ) {
+            throw new CompletionException( cause );
+          }
+          if( cause != null ) {
+            LOG.error( "Failed to download artifact {}", artifact, cause );
+            return null;
+          }
+          if( digest == null ) {
+            return null;
+          }
+          LOG.info( "Downloaded to {}", destination );
+          return new Download( destination, digest );
+        } );
+  }
+
+  /**
+   * Hits the API to get a download link for an artifact. These links expire after
+   * a short time.
+   *
+   * @param artifact The ID of the artifact
+   * @return The download link, or <code>null</code> on failure
+   * @throws ArtifactAbsentException if github doesn't have the artifact
+   * @throws IOException             on failure
+   * @throws InterruptedException    if interrupted
+   * @throws URISyntaxException      if we get a bad link
+   */
+  private URI downloadLink( Artifact artifact )
+      throws IOException, InterruptedException, URISyntaxException {
+    return downloadLink( artifact, send( linkRequest( artifact ), BodyHandlers.ofString() ) );
+  }
+
+  /**
+   * Gets a download link for an artifact without tying up the calling thread
+   *
+   * @param artifact The ID of the artifact
+   * @return The download link, or <code>null</code> on failure
+   */
+  private CompletableFuture<URI> downloadLinkAsync( Artifact artifact ) {
+    try {
+      return sendAsync( linkRequest( artifact ), BodyHandlers.ofString() )
+          .thenApply( redirect -> {
+            try {
+              return downloadLink( artifact, redirect );
+            }
+            catch( IOException | URISyntaxException e ) {
+              throw new CompletionException( e );
+            }
+          } );
+    }
+    catch( URISyntaxException e ) {
+      return CompletableFuture.failedFuture( e );
+    }
+  }
+
+  /**
+   * @param artifact The ID of the artifact
+   * @return The API request for the artifact's download link
+   * @throws URISyntaxException if the artifact ID is bad
+   */
+  private HttpRequest linkRequest( Artifact artifact ) throws URISyntaxException {
+    return HttpRequest.newBuilder()
+        .GET()
+        .uri( new URI( String.format(
+            "%s/repos/%s/%s/actions/artifacts/%s/zip",
+            apiHost, artifact.repo().owner(), artifact.repo().repo(), artifact.id() ) ) )
+        .header( "Accept", "application/vnd.github+json" )
+        .header( "Authorization", "Bearer " + authToken )
+        .header( "X-GitHub-Api-Version", API_VERSION )
+        .build();
+  }
+
+  /**
+   * Extracts the download link from an API response
+   *
+   * @param artifact The ID of the artifact
+   * @param redirect The response to the {@link #linkRequest(Artifact) link
+   *                 request}
+   * @return The download link, or <code>null</code> on failure
+   * @throws ArtifactAbsentException if github doesn't have the artifact
+   * @throws URISyntaxException      if we get a bad link
+   */
+  private static URI downloadLink( Artifact artifact, HttpResponse<String> redirect )
+      throws ArtifactAbsentException, URISyntaxException {
+    if( redirect.statusCode() == 404 ) {
+      throw new ArtifactAbsentException( artifact, Absence.MISSING );
+    }
+    if( redirect.statusCode() == 410 ) {
+      throw new ArtifactAbsentException( artifact, Absence.EXPIRED );
+    }
+    Optional<String> dlUri = redirect.headers().firstValue( "location" );
+    if( redirect.statusCode() != 302 && dlUri.isEmpty() ) {
+      LOG.error( "Failed to get download URL {}/{}",
+          redirect.statusCode(), redirect.body() );
+      return null;
+    }
+    return new URI( dlUri.get() );
+  }
+
+  /**
+   * Provides access to arbitrary parts of an artifact zip without downloading all
+   * of it. The download link is reused until it stops working.
+   *
+   * @param artifact The ID of the artifact
+   * @return The source of the artifact's bytes
+   */
+  public RemoteZip.Source rangeSource( Artifact artifact ) {
+    return new RemoteZip.Source() {
+      private URI link;
+
+      private synchronized URI link( boolean fresh ) throws IOException {
+        if( link == null || fresh ) {
+          try {
+            link = downloadLink( artifact );
+          }
+          catch( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException( "Interrupted while getting link for " + artifact );
+          }
+          catch( URISyntaxException e ) {
+            throw new IOException( "Bad download link for " + artifact, e );
+          }
+          if( link == null ) {
+            throw new IOException( "No download link for " + artifact );
+          }
+        }
+        return link;
+      }
+
+      @Override
+      public long size() throws IOException {
+        long size = expectedSize( artifact );
+        if( size > 0 ) {
+          return size;
+        }
+        try {
+          HttpResponse<Void> probe = http.send( HttpRequest.newBuilder()
               .GET()
-              .uri( new URI( String.format(
-                  "%s/repos/%s/%s/actions/artifacts/%s/zip",
-                  apiHost, artifact.repo().owner(), artifact.repo().repo(), artifact.id() ) ) )
-              .header( "Accept", "application/vnd.github+json" )
-              .header( "Authorization", "Bearer " + authToken )
-              .header( "X-GitHub-Api-Version", API_VERSION )
+              .uri( link( false ) )
+              .header( "Range", "bytes=0-0" )
               .build(),
-          BodyHandlers.ofString() );
+              BodyHandlers.discarding() );
+          size = probe.statusCode() == 206 ? rangeTotal( probe.headers() ) : -1;
+          if( size <= 0 ) {
+            throw new IOException( "Can't read " + artifact + " remotely, status "
+                + probe.statusCode() + " " + probe.headers().firstValue( "content-range" ) );
+          }
+          return size;
+        }
+        catch( InterruptedException e ) {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException( "Interrupted while sizing " + artifact );
+        }
+      }
 
-      Optional<String> dlUri = redirect.headers().firstValue( "location" );
-      if( redirect.statusCode() != 302 && dlUri.isEmpty() ) {
-        LOG.error( "Failed to get download URL {}/{}",
-            redirect.statusCode(), redirect.body() );
+      @Override
+      public void fetch( long first, long last, FileChannel target ) throws IOException {
+        LongConsumer progress = position -> {
+          // nobody is interested
+        };
+        try {
+          if( !downloader.fetchRange( link( false ), target, first, last, progress )
+              // the link has probably expired
+              && !downloader.fetchRange( link( true ), target, first, last, progress ) ) {
+            throw new IOException( "Failed to fetch bytes " + first + "-" + last
+                + " of " + artifact );
+          }
+        }
+        catch( InterruptedException e ) {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException( "Interrupted while fetching " + artifact );
+        }
       }
-      else {
-        LOG.debug( "Downloading from {}", dlUri.get() );
-        Files.createDirectories( destination.getParent() );
+    };
+  }
 
-        // The download link does not count towards API limits
-        HttpResponse<Path> dl = http.send(
-            HttpRequest.newBuilder()
-                .GET()
-                .uri( new URI( dlUri.get() ) )
-                .build(),
-            BodyHandlers.ofFile( destination, CREATE, TRUNCATE_EXISTING, WRITE ) );
+  /**
+   * Why github can't give us an artifact
+   */
+  public enum Absence {
+    /**
+     * The artifact has never existed, or we're not allowed to see it
+     */
+    MISSING,
+    /**
+     * The artifact existed, but it has expired or been deleted
+     */
+    EXPIRED
+  }
 
-        LOG.info( "Downloaded to {}", dl.body() );
+  /**
+   * Thrown when github tells us that it doesn't have an artifact
+   */
+  public static class ArtifactAbsentException extends IOException {
+    private static final long serialVersionUID = 1L;
 
-        return dl.body();
-      }
+    private final transient Artifact artifact;
+    private final Absence absence;
+
+    /**
+     * @param artifact The artifact
+     * @param absence  Why github doesn't have it
+     */
+    public ArtifactAbsentException( Artifact artifact, Absence absence ) {
+      super( "Artifact " + artifact + " is " + absence.name().toLowerCase() );
+      this.artifact = artifact;
+      this.absence = absence;
+    }
+
+    /**
+     * @return The artifact
+     */
+    public Artifact artifact() {
+      return artifact;
     }
-    catch( IOException | InterruptedException | URISyntaxException e ) {
-      LOG.error( "Failed to download artifact {}", artifact, e );
+
+    /**
+     * @return Why github doesn't have it
+     */
+    public Absence absence() {
+      return absence;
     }
+  }
 
-    return null;
+  /**
+   * A completed artifact download
+   *
+   * @param file   The downloaded file
+   * @param sha256 The hex-encoded SHA-256 digest of the file content
+   */
+  public record Download(Path file, String sha256) {
+  }
+
+  /**
+   * @return The number of slow downloads that we've raced another download
+   *         against
+   */
+  public long hedged() {
+    return downloader.hedge().hedged();
+  }
+
+  /**
+   * @return The number of hedging downloads that finished before the slow
+   *         download that they were racing
+   */
+  public long hedgesWon() {
+    return downloader.hedge().won();
+  }
+
+  /**
+   * @param artifact An artifact
+   * @return The digest that github reported for the artifact when it was last
+   *         listed, in <code>algorithm:hex</code> form, or <code>null</code> if
+   *         we don't know it
+   */
+  public String expectedDigest( Artifact artifact ) {
+    return Optional.ofNullable( listed.get( artifact ) )
+        .map( msg -> msg.digest )
+        .orElse( null );
+  }
+
+  /**
+   * @param artifact An artifact
+   * @return The size that github reported for the artifact when it was last
+   *         listed, or -1 if we don't know it
+   */
+  public long expectedSize( Artifact artifact ) {
+    return Optional.ofNullable( listed.get( artifact ) )
+        .filter( msg -> msg.sizeInBytes > 0 )
+        .map( msg -> msg.sizeInBytes )
+        .orElse( -1L );
+  }
+
+  /**
+   * @param error A failure from a future
+   * @return The underlying cause of the failure, or <code>null</code> if there
+   *         was none
+   */
+  static Throwable cause( Throwable error ) {
+    Throwable cause = error;
+    while( (cause instanceof CompletionException || cause instanceof UncheckedIOException)
+        && cause.getCause() != null ) {
+      cause = cause.getCause();
+    }
+    return cause;
+  }
+
+  /**
+   * @param headers Response headers
+   * @return The complete size from the <code>content-range</code> header, or -1
+   *         if that cannot be found
+   */
+  private static long rangeTotal( HttpHeaders headers ) {
+    try {
+      return headers.firstValue( "content-range" )
+          .filter( cr -> cr.startsWith( "bytes " ) )
+          .map( cr -> cr.substring( cr.indexOf( '/' ) + 1 ) )
+          .map( Long::parseLong )
+          .orElse( -1L );
+    }
+    catch( RuntimeException e ) {
+      return -1;
+    }
   }
 
   /**
@@ -142,9 +580,21 @@ public class GithubApiClient {
    *         <code>null</code> on failure
    */
   public Run getLatestRun( Workflow workflow, Branch branch ) {
+    return getLatestRunAsync( workflow, branch ).join();
+  }
+
+  /**
+   * Gets the latest runs of a workflow, without waiting for the response
+   *
+   * @param workflow The workflow
+   * @param branch   The branch on which the workflow was run
+   * @return The latest run ID of that workflow on that branch, or
+   *         <code>null</code> on failure
+   */
+  public CompletableFuture<Run> getLatestRunAsync( Workflow workflow, Branch branch ) {
     LOG.info( "Getting latest run of {}", workflow );
     try {
-      HttpResponse<ListWorkflowRunResponse> response = send( HttpRequest.newBuilder()
+      return sendAsync( HttpRequest.newBuilder()
           .GET()
           .uri( new URI( String.format(
               "%s/repos/%s/%s/actions/workflows/%s/runs?branch=%s&status=completed&per_page=1",
@@ -154,27 +604,32 @@ public class GithubApiClient {
           .header( "Authorization", "Bearer " + authToken )
           .header( "X-GitHub-Api-Version", API_VERSION )
           .build(),
-          ListWorkflowRunResponse.HANDLER );
-
-      if( response.statusCode() != 200 ) {
-        LOG.error( "Unexpected response status {}. Run with {} to see the full response.",
-            response.statusCode(),
-            "-Dorg.slf4j.simpleLogger.defaultLogLevel=trace" );
-        return null;
-      }
+          ListWorkflowRunResponse.HANDLER )
+              .thenApply( response -> {
+                if( response.statusCode() != 200 ) {
+                  LOG.error( "Unexpected response status {}. Run with {} to see the full response.",
+                      response.statusCode(),
+                      "-Dorg.slf4j.simpleLogger.defaultLogLevel=trace" );
+                  return null;
+                }
 
-      return Optional.ofNullable( response )
-          .map( HttpResponse::body )
-          .map( b -> b.runs )
-          .filter( l -> !l.isEmpty() )
-          .map( l -> l.get( 0 ) )
-          .map( msg -> new Run( workflow, msg.id ) )
-          .orElse( null );
+                return Optional.ofNullable( response )
+                    .map( HttpResponse::body )
+                    .map( b -> b.runs )
+                    .filter( l -> !l.isEmpty() )
+                    .map( l -> l.get( 0 ) )
+                    .map( msg -> new Run( workflow, msg.id ) )
+                    .orElse( null );
+              } )
+              .exceptionally( e -> {
+                LOG.error( "Failed to find latest run of {}", workflow, e );
+                return null;
+              } );
     }
-    catch( IOException | InterruptedException | URISyntaxException e ) {
+    catch( URISyntaxException e ) {
       LOG.error( "Failed to find latest run of {}", workflow, e );
     }
-    return null;
+    return CompletableFuture.completedFuture( null );
   }
 
   /**
@@ -184,43 +639,50 @@ public class GithubApiClient {
    * @return The set of artifacts from the run, or <code>null</code> on failure
    */
   public Set<NamedArtifact> getArtifacts( Run run ) {
-    LOG.info( "Getting artifacts of {}", run );
-    try {
-      HttpResponse<ListWorkflowRunArtifactsResponse> response = send( HttpRequest.newBuilder()
-          .GET()
-          .uri( new URI( String.format(
-              "%s/repos/%s/%s/actions/runs/%s/artifacts",
-              apiHost,
-              run.flow().repo().owner(), run.flow().repo().repo(), run.id() ) ) )
-          .header( "Accept", "application/vnd.github+json" )
-          .header( "Authorization", "Bearer " + authToken )
-          .header( "X-GitHub-Api-Version", API_VERSION )
-          .build(),
-          ListWorkflowRunArtifactsResponse.HANDLER );
-
-      if( response.statusCode() != 200 ) {
-        LOG.error( "Unexpected response status {}. Run with {} to see the full response.",
-            response.statusCode(),
-            "-Dorg.slf4j.simpleLogger.defaultLogLevel=trace" );
-        return null;
-      }
-
-      return Optional.ofNullable( response )
-          .map( HttpResponse::body )
-          .map( body -> body.artifacts )
-          .map( list -> list.stream()
-              .map( msg -> new NamedArtifact(
-                  new Artifact( run.flow().repo(), msg.id ),
-                  msg.name ) )
-              .collect( toCollection( () -> new TreeSet<>( NamedArtifact.ORDER ) ) ) )
-          .orElse( new TreeSet<>() );
+    try( Stream<NamedArtifact> artifacts = streamArtifacts( run ) ) {
+      return artifacts.collect( toCollection( () -> new TreeSet<>( NamedArtifact.ORDER ) ) );
     }
-    catch( IOException | InterruptedException | URISyntaxException e ) {
+    catch( UncheckedIOException e ) {
       LOG.error( "Failed to find artifacts of {}", run, e );
     }
     return null;
   }
 
+  /**
+   * Gets the names and IDs of the artifacts on a workflow run, as they arrive.
+   * The listing is paginated: once the first page tells us how many artifacts
+   * there are we ask for the rest of the pages all at once, and if it doesn't
+   * then we follow the <code>next</code> links. Artifacts can be taken from the
+   * stream as soon as their page arrives, so they're in no particular order.
+   *
+   * @param run The run ID of that workflow
+   * @return The artifacts from the run. If a page of the listing can't be had
+   *         then consuming the stream will throw an {@link UncheckedIOException}.
+   */
+  public Stream<NamedArtifact> streamArtifacts( Run run ) {
+    LOG.info( "Getting artifacts of {}", run );
+    Listing listing = new Listing( run );
+    listing.page( 1 )
+        .thenCompose( listing::rest )
+        .whenComplete( ( done, error ) -> listing.end( error ) );
+    return StreamSupport.stream( listing, false );
+  }
+
+  /**
+   * Finds the URI of the next page of a paginated response
+   *
+   * @param headers The response headers
+   * @return The URI of the next page, or <code>null</code> if this is the last
+   */
+  private static String nextPage( HttpHeaders headers ) {
+    return headers.allValues( "link" ).stream()
+        .map( NEXT_LINK::matcher )
+        .filter( Matcher::find )
+        .map( m -> m.group( 1 ) )
+        .findFirst()
+        .orElse( null );
+  }
+
   /**
    * Gets the default branch of a repository
    *
@@ -228,9 +690,19 @@ public class GithubApiClient {
    * @return The default branch name
    */
   public Branch getDefaultBranch( Repository repo ) {
+    return getDefaultBranchAsync( repo ).join();
+  }
+
+  /**
+   * Gets the default branch of a repository, without waiting for the response
+   *
+   * @param repo The repository
+   * @return The default branch name, or <code>null</code> on failure
+   */
+  public CompletableFuture<Branch> getDefaultBranchAsync( Repository repo ) {
     LOG.info( "Getting details of {}", repo );
     try {
-      HttpResponse<GetRepoResponse> response = send( HttpRequest.newBuilder()
+      return sendAsync( HttpRequest.newBuilder()
           .GET()
           .uri( new URI( String.format(
               "%s/repos/%s/%s",
@@ -240,82 +712,111 @@ public class GithubApiClient {
           .header( "Authorization", "Bearer " + authToken )
           .header( "X-GitHub-Api-Version", API_VERSION )
           .build(),
-          GetRepoResponse.HANDLER );
-
-      if( response.statusCode() != 200 ) {
-        LOG.error( "Unexpected response status {}. Run with {} to see the full response.",
-            response.statusCode(),
-            "-Dorg.slf4j.simpleLogger.defaultLogLevel=trace" );
-        return null;
-      }
+          GetRepoResponse.HANDLER )
+              .thenApply( response -> {
+                if( response.statusCode() != 200 ) {
+                  LOG.error( "Unexpected response status {}. Run with {} to see the full response.",
+                      response.statusCode(),
+                      "-Dorg.slf4j.simpleLogger.defaultLogLevel=trace" );
+                  return null;
+                }
 
-      return new Branch( repo, response.body().defaultBranch );
+                return new Branch( repo, response.body().defaultBranch );
+              } )
+              .exceptionally( e -> {
+                LOG.error( "Failed to get details of {}", repo, e );
+                return null;
+              } );
     }
-    catch( IOException | InterruptedException | URISyntaxException e ) {
+    catch( URISyntaxException e ) {
       LOG.error( "Failed to get details of {}", repo, e );
     }
-    return null;
+    return CompletableFuture.completedFuture( null );
   }
 
   /**
-   * Sends a API request, while trying to keep within the rate limits. The
-   * rate-limiting behaviour is the reason for the synchronization - it
-   * <i>might</i> work in a multithreaded context, but it's difficult to tell. I
-   * expect our API usage to be low enough that the synchronization will never be
-   * a problem.
+   * Sends a API request, while trying to keep within the rate limits
    *
    * @param <T>     Response body type
    * @param request API request
    * @param handler How to turn the response body into the desired type
    * @return API response
    * @throws IOException          on failure
-   * @throws InterruptedException seems unlikely
+   * @throws InterruptedException if interrupted while waiting
    */
-  private synchronized <T> HttpResponse<T> send( HttpRequest request, BodyHandler<T> handler )
+  private <T> HttpResponse<T> send( HttpRequest request, BodyHandler<T> handler )
       throws IOException, InterruptedException {
-
-    Instant next = lastCall.plus( callInterval );
-    Instant now = Instant.now();
-    while( now.isBefore( next ) ) {
-      try {
-        Thread.sleep( Duration.between( now, next ).toMillis() );
-      }
-      catch( InterruptedException e ) {
-        LOG.warn( "unexpected interruption", e );
+    try {
+      return sendAsync( request, handler ).get();
+    }
+    catch( ExecutionException e ) {
+      if( e.getCause() instanceof IOException ioe ) {
+        throw ioe;
       }
-      now = Instant.now();
+      throw new IOException( "Failed to send " + request.uri(), e.getCause() );
     }
+  }
 
-    if( LOG.isDebugEnabled() ) {
-      LOG.debug( "Sending request\n{} {}\n{}",
-          request.method(), request.uri(),
-          request.headers().map().entrySet().stream()
-              .map( e -> e.getKey() + ": " + e.getValue().stream()
-                  .map( v -> "authorization".equalsIgnoreCase( e.getKey() )
-                      ? "_masked_secret_"
-                      : v )
-                  .collect( joining( ", " ) ) )
-              .collect( joining( "\n" ) ) );
-    }
-    HttpResponse<T> response = http.send( request, handler );
-    if( LOG.isDebugEnabled() ) {
-      LOG.debug( "Got response\n{} {}\n{}\n{}",
-          response.version(), response.statusCode(),
-          response.headers().map().entrySet().stream()
-              .map( e -> e.getKey() + ": " + e.getValue().stream().collect( joining( ", " ) ) )
-              .collect( joining( "\n" ) ),
-          Message.toJson( response.body() ) );
-    }
+  /**
+   * Sends a API request, while trying to keep within the rate limits. No thread
+   * is tied up while we wait for our turn or for the response. Requests that
+   * we've seen a response to before are made conditional, so we can reuse that
+   * response if it's still current.
+   *
+   * @param <T>     Response body type
+   * @param request API request
+   * @param handler How to turn the response body into the desired type
+   * @return API response
+   */
+  private <T> CompletableFuture<HttpResponse<T>> sendAsync( HttpRequest request,
+      BodyHandler<T> handler ) {
+    return responseCache.send( request, handler, this::sendLimited );
+  }
 
-    lastCall = Instant.now();
-    updateInterval(
-        response.headers().firstValue( "x-ratelimit-remaining" ),
-        response.headers().firstValue( "x-ratelimit-reset" ) );
+  /**
+   * Sends a API request once the rate limits allow it
+   *
+   * @param <T>     Response body type
+   * @param request API request
+   * @param handler How to turn the response body into the desired type
+   * @return API response
+   */
+  private <T> CompletableFuture<HttpResponse<T>> sendLimited( HttpRequest request,
+      BodyHandler<T> handler ) {
+    return rateLimiter.acquire()
+        .thenCompose( permitted -> {
+          if( LOG.isDebugEnabled() ) {
+            LOG.debug( "Sending request\n{} {}\n{}",
+                request.method(), request.uri(),
+                request.headers().map().entrySet().stream()
+                    .map( e -> e.getKey() + ": " + e.getValue().stream()
+                        .map( v -> "authorization".equalsIgnoreCase( e.getKey() )
+                            ? "_masked_secret_"
+                            : v )
+                        .collect( joining( ", " ) ) )
+                    .collect( joining( "\n" ) ) );
+          }
+          return http.sendAsync( request, handler );
+        } )
+        .thenApply( response -> {
+          if( LOG.isDebugEnabled() ) {
+            LOG.debug( "Got response\n{} {}\n{}\n{}",
+                response.version(), response.statusCode(),
+                response.headers().map().entrySet().stream()
+                    .map( e -> e.getKey() + ": "
+                        + e.getValue().stream().collect( joining( ", " ) ) )
+                    .collect( joining( "\n" ) ),
+                Message.toJson( response.body() ) );
+          }
 
-    return response;
+          updateRateLimit(
+              response.headers().firstValue( "x-ratelimit-remaining" ),
+              response.headers().firstValue( "x-ratelimit-reset" ) );
+          return response;
+        } );
   }
 
-  private void updateInterval( Optional<String> remainingCount, Optional<String> resetUTC ) {
+  private void updateRateLimit( Optional<String> remainingCount, Optional<String> resetUTC ) {
     try {
       if( remainingCount.isEmpty() || resetUTC.isEmpty() ) {
         LOG.warn( "Missing rate-limit headers!" );
@@ -323,8 +824,13 @@ public class GithubApiClient {
       }
       int remaining = Integer.parseInt( remainingCount.get() );
       Instant reset = Instant.ofEpochSecond( Long.parseLong( resetUTC.get() ) );
-      Duration toReset = Duration.between( lastCall, reset );
-      callInterval = toReset.dividedBy( remaining );
+      Duration toReset = Duration.between( Instant.now(), reset );
+      if( remaining <= 0 ) {
+        LOG.warn( "Rate limit exhausted! No more calls for the next {}", toReset );
+        rateLimiter.pause( toReset );
+        return;
+      }
+      Duration callInterval = toReset.dividedBy( remaining );
       LOG.debug( "New API call interval {}, thanks to {} calls remaining for the next {}",
           callInterval, remaining, toReset );
 
@@ -338,10 +844,181 @@ public class GithubApiClient {
              Interval increased to {}""",
             remaining, toReset, callInterval );
       }
+      rateLimiter.update( remaining, callInterval );
     }
     catch( Exception e ) {
       LOG.error( "Failed to update rate limiting from remaining {} and reset {}",
           remainingCount, resetUTC, e );
     }
   }
+
+  /**
+   * @return The number of API requests that were answered with a response that we
+   *         already had
+   */
+  public long notModified() {
+    return responseCache.notModified();
+  }
+
+  /**
+   * @return The state of our API response cache
+   */
+  public String responseCache() {
+    return responseCache.toString();
+  }
+
+  /**
+   * @return Sources of statistics on our API calls and downloads, which
+   *         describe their current state when logged
+   */
+  public List<Object> statistics() {
+    return List.of( rateLimiter, responseCache, downloader );
+  }
+
+  /**
+   * A paginated listing of the artifacts on a run. Artifacts are queued up as
+   * their page arrives, and taken from the queue by whoever is consuming the
+   * listing.
+   */
+  private class Listing extends Spliterators.AbstractSpliterator<NamedArtifact> {
+    /**
+     * Marks the end of the listing
+     */
+    private static final NamedArtifact END = new NamedArtifact( null, null );
+
+    private final Run run;
+    private final BlockingQueue<NamedArtifact> arrivals = new LinkedBlockingQueue<>();
+    private volatile Throwable failure;
+
+    Listing( Run run ) {
+      super( Long.MAX_VALUE, NONNULL );
+      this.run = run;
+    }
+
+    /**
+     * Requests a page of the listing by number
+     *
+     * @param page The page number, starting from 1
+     * @return The response
+     */
+    CompletableFuture<HttpResponse<ListWorkflowRunArtifactsResponse>> page( int page ) {
+      return fetch( String.format(
+          "%s/repos/%s/%s/actions/runs/%s/artifacts?per_page=%s&page=%s",
+          apiHost,
+          run.flow().repo().owner(), run.flow().repo().repo(), run.id(),
+          ARTIFACT_PAGE_SIZE, page ) );
+    }
+
+    /**
+     * Requests a page of the listing
+     *
+     * @param uri The page address
+     * @return The response
+     */
+    private CompletableFuture<HttpResponse<ListWorkflowRunArtifactsResponse>> fetch(
+        String uri ) {
+      HttpRequest request;
+      try {
+        request = HttpRequest.newBuilder()
+            .GET()
+            .uri( new URI( uri ) )
+            .header( "Accept", "application/vnd.github+json" )
+            .header( "Authorization", "Bearer " + authToken )
+            .header( "X-GitHub-Api-Version", API_VERSION )
+            .build();
+      }
+      catch( URISyntaxException e ) {
+        return CompletableFuture.failedFuture( e );
+      }
+      return sendAsync( request, ListWorkflowRunArtifactsResponse.HANDLER )
+          .thenApply( response -> {
+            if( response.statusCode() != 200 ) {
+              LOG.error( "Unexpected response status {}. Run with {} to see the full response.",
+                  response.statusCode(),
+                  "-Dorg.slf4j.simpleLogger.defaultLogLevel=trace" );
+              throw new CompletionException( new IOException(
+                  "Unexpected response status " + response.statusCode() + " from " + uri ) );
+            }
+            Optional.ofNullable( response.body() )
+                .map( body -> body.artifacts )
+                .ifPresent( list -> list.forEach( msg -> {
+                  Artifact artifact = new Artifact( run.flow().repo(), msg.id );
+                  listed.put( artifact, msg );
+                  arrivals.add( new NamedArtifact( artifact, msg.name ) );
+                } ) );
+            return response;
+          } );
+    }
+
+    /**
+     * Requests the pages that follow the first
+     *
+     * @param first The first page
+     * @return Completes when all pages have arrived
+     */
+    CompletableFuture<Void> rest( HttpResponse<ListWorkflowRunArtifactsResponse> first ) {
+      Integer total = Optional.ofNullable( first.body() )
+          .map( body -> body.totalCount )
+          .orElse( null );
+      if( total == null ) {
+        return following( first );
+      }
+      int pages = (total + ARTIFACT_PAGE_SIZE - 1) / ARTIFACT_PAGE_SIZE;
+      return CompletableFuture.allOf( IntStream.rangeClosed( 2, pages )
+          .mapToObj( this::page )
+          .toArray( CompletableFuture[]::new ) );
+    }
+
+    /**
+     * Follows the <code>next</code> links to the end of the listing
+     *
+     * @param response The latest page
+     * @return Completes when all pages have arrived
+     */
+    private CompletableFuture<Void> following(
+        HttpResponse<ListWorkflowRunArtifactsResponse> response ) {
+      String next = nextPage( response.headers() );
+      if( next == null ) {
+        return CompletableFuture.completedFuture( null );
+      }
+      return fetch( next ).thenCompose( this::following );
+    }
+
+    /**
+     * Called when the listing is over
+     *
+     * @param error The failure, or <code>null</code> if all pages arrived
+     */
+    void end( Throwable error ) {
+      failure = error instanceof CompletionException ce && ce.getCause() != null
+          ? ce.getCause()
+          : error;
+      arrivals.add( END );
+    }
+
+    @Override
+    public boolean tryAdvance( Consumer<? super NamedArtifact> action ) {
+      NamedArtifact next;
+      try {
+        next = arrivals.take();
+      }
+      catch( InterruptedException e ) {
+        Thread.currentThread().interrupt();
+        throw new UncheckedIOException( new InterruptedIOException(
+            "Interrupted while listing artifacts of " + run ) );
+      }
+      if( next == END ) {
+        // leave the marker for any later calls
+        arrivals.add( END );
+        if( failure != null ) {
+          throw new UncheckedIOException( failure instanceof IOException ioe
+              ? ioe
+              : new IOException( "Failed to list artifacts of " + run, failure ) );
+        }
+        return false;
+      }
+      action.accept( next );
+      return true;
+    }
+  }
 }
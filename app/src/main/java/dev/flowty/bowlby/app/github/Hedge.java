@@ -0,0 +1,225 @@
+package dev.flowty.bowlby.app.github;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongConsumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Guards against downloads that crawl. If a download's throughput stays below a
+ * floor for too long then a second attempt is raced against it. Whichever
+ * attempt succeeds first wins, and the other is abandoned.
+ */
+class Hedge {
+  private static final Logger LOG = LoggerFactory.getLogger( Hedge.class );
+
+  /**
+   * One attempt at a download
+   *
+   * @param <T> The result type
+   */
+  interface Attempt<T> {
+
+    /**
+     * Starts the attempt
+     *
+     * @param progress Must be given the write position as data arrives
+     * @param abort    Completes when the attempt should be abandoned
+     * @return The result, or <code>null</code> on failure
+     */
+    CompletableFuture<T> start( LongConsumer progress, CompletableFuture<Void> abort );
+  }
+
+  private final long bytesPerSecond;
+  private final Duration delay;
+
+  private final AtomicLong hedged = new AtomicLong();
+  private final AtomicLong won = new AtomicLong();
+
+  /**
+   * @param bytesPerSecond The throughput below which we try again, or zero to
+   *                       never do so
+   * @param delay          How long the throughput has to stay below that
+   */
+  Hedge( long bytesPerSecond, Duration delay ) {
+    this.bytesPerSecond = bytesPerSecond;
+    this.delay = delay;
+  }
+
+  /**
+   * @return <code>true</code> if slow downloads will be hedged
+   */
+  boolean enabled() {
+    return bytesPerSecond > 0 && delay.toMillis() > 0;
+  }
+
+  /**
+   * Runs a download, racing a second attempt against it if it goes too slowly
+   *
+   * @param <T>     The result type
+   * @param primary The first attempt
+   * @param hedge   The attempt to start if the first is too slow
+   * @return The result of whichever attempt succeeds first. If neither does then
+   *         this is the outcome of the first attempt. Either way, it only
+   *         completes once both attempts are over.
+   */
+  <T> CompletableFuture<T> race( Attempt<T> primary, Attempt<T> hedge ) {
+    if( !enabled() ) {
+      return primary.start( position -> {
+        // nobody is watching
+      }, new CompletableFuture<>() );
+    }
+    Race<T> race = new Race<>( hedge );
+    race.start( primary );
+    watch( race, 0 );
+    return race.result;
+  }
+
+  /**
+   * Checks on the throughput of a race's first attempt, after a delay
+   *
+   * @param race The race
+   * @param last The number of bytes that had been received at the last check
+   */
+  private void watch( Race<?> race, long last ) {
+    CompletableFuture.delayedExecutor( delay.toMillis(), TimeUnit.MILLISECONDS ).execute( () -> {
+      long received = race.received();
+      if( race.decided() ) {
+        return;
+      }
+      if( (received - last) * 1000 < bytesPerSecond * delay.toMillis() ) {
+        race.hedge();
+      }
+      else {
+        watch( race, received );
+      }
+    } );
+  }
+
+  /**
+   * @return The number of second attempts that have been started
+   */
+  long hedged() {
+    return hedged.get();
+  }
+
+  /**
+   * @return The number of second attempts that finished first
+   */
+  long won() {
+    return won.get();
+  }
+
+  @Override
+  public String toString() {
+    return hedged() + " hedged, " + won() + " won";
+  }
+
+  /**
+   * The state of one hedged download
+   *
+   * @param <T> The result type
+   */
+  private class Race<T> {
+    private final Attempt<T> spare;
+    private final CompletableFuture<T> result = new CompletableFuture<>();
+    private final CompletableFuture<Void> abortPrimary = new CompletableFuture<>();
+    private final CompletableFuture<Void> abortHedge = new CompletableFuture<>();
+
+    private final AtomicLong firstPosition = new AtomicLong( -1 );
+    private final AtomicLong position = new AtomicLong( -1 );
+
+    private CompletableFuture<T> primary;
+    private CompletableFuture<T> hedge;
+    private boolean decided = false;
+
+    Race( Attempt<T> spare ) {
+      this.spare = spare;
+    }
+
+    /**
+     * Starts the first attempt
+     *
+     * @param attempt The attempt
+     */
+    void start( Attempt<T> attempt ) {
+      CompletableFuture<T> started = attempt.start( p -> {
+        firstPosition.compareAndSet( -1, p );
+        position.accumulateAndGet( p, Math::max );
+      }, abortPrimary );
+      synchronized( this ) {
+        primary = started;
+      }
+      started.whenComplete( ( value, error ) -> finished( true, value, error ) );
+    }
+
+    /**
+     * @return The number of bytes that the first attempt has received
+     */
+    long received() {
+      long p = position.get();
+      return p == -1 ? 0 : p - firstPosition.get();
+    }
+
+    synchronized boolean decided() {
+      return decided;
+    }
+
+    /**
+     * Starts the second attempt
+     */
+    synchronized void hedge() {
+      if( decided || hedge != null ) {
+        return;
+      }
+      hedged.incrementAndGet();
+      LOG.info( "Download is slower than {} bytes per second, hedging", bytesPerSecond );
+      hedge = spare.start( p -> {
+        // we only watch the first attempt
+      }, abortHedge );
+      hedge.whenComplete( ( value, error ) -> finished( false, value, error ) );
+    }
+
+    /**
+     * Called when an attempt is over
+     *
+     * @param first <code>true</code> if it's the first attempt
+     * @param value The attempt's result
+     * @param error The attempt's failure
+     */
+    synchronized void finished( boolean first, T value, Throwable error ) {
+      if( decided ) {
+        return;
+      }
+      CompletableFuture<T> other = first ? hedge : primary;
+      if( error == null && value != null ) {
+        decided = true;
+        if( !first ) {
+          won.incrementAndGet();
+        }
+        (first ? abortHedge : abortPrimary).complete( null );
+        // the loser might be holding on to files that the winner's caller wants
+        CompletableFuture<?> settled = other == null
+            ? CompletableFuture.completedFuture( null )
+            : other.handle( ( v, e ) -> null );
+        settled.thenRun( () -> result.complete( value ) );
+      }
+      else if( other == null || other.isDone() ) {
+        // nothing left to wait for
+        decided = true;
+        primary.whenComplete( ( v, e ) -> {
+          if( e != null ) {
+            result.completeExceptionally( e );
+          }
+          else {
+            result.complete( v );
+          }
+        } );
+      }
+    }
+  }
+}
@@ -0,0 +1,65 @@
+package dev.flowty.bowlby.app.github;
+
+import java.time.Duration;
+import java.util.Arrays;
+
+/**
+ * Remembers how long the most recent occurrences of something took, so we can
+ * report on the tail of the distribution
+ */
+class Latencies {
+
+  private final long[] samples;
+  private int count = 0;
+  private int next = 0;
+
+  /**
+   * @param capacity The number of samples to keep
+   */
+  Latencies( int capacity ) {
+    samples = new long[capacity];
+  }
+
+  /**
+   * Records a sample, displacing the oldest if we're full
+   *
+   * @param latency How long it took
+   */
+  synchronized void record( Duration latency ) {
+    samples[next] = latency.toNanos();
+    next = (next + 1) % samples.length;
+    count = Math.min( count + 1, samples.length );
+  }
+
+  /**
+   * @param percentile A percentile, between 0 and 100
+   * @return The latency at that percentile, or <code>null</code> if we have no
+   *         samples
+   */
+  synchronized Duration percentile( double percentile ) {
+    if( count == 0 ) {
+      return null;
+    }
+    long[] sorted = Arrays.copyOf( samples, count );
+    Arrays.sort( sorted );
+    int rank = (int) Math.ceil( percentile / 100 * count );
+    return Duration.ofNanos( sorted[Math.max( 0, Math.min( count, rank ) - 1 )] );
+  }
+
+  /**
+   * @return The number of samples that we hold
+   */
+  synchronized int size() {
+    return count;
+  }
+
+  @Override
+  public synchronized String toString() {
+    if( count == 0 ) {
+      return "no samples";
+    }
+    return String.format( "p50 %sms, p90 %sms, p99 %sms over %s samples",
+        percentile( 50 ).toMillis(), percentile( 90 ).toMillis(), percentile( 99 ).toMillis(),
+        count );
+  }
+}
@@ -1,21 +1,34 @@
 package dev.flowty.bowlby.app.github;
 
+import static java.util.stream.Collectors.toSet;
+
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.UncheckedIOException;
 import java.net.http.HttpResponse;
 import java.net.http.HttpResponse.BodySubscriber;
-import java.net.http.HttpResponse.BodySubscribers;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Flow;
+import java.util.stream.Stream;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
 import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.async.ByteBufferFeeder;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.databind.util.TokenBuffer;
 
 /**
  * API message definitions and de/serialisation utilities. Note that these
@@ -27,6 +40,16 @@ class Message {
   private static final ObjectMapper JSON = new ObjectMapper()
       .enable( SerializationFeature.INDENT_OUTPUT )
       .enable( SerializationFeature.ORDER_MAP_ENTRIES_BY_KEYS );
+  /**
+   * The names of the fields that our messages declare. The values of other fields
+   * are discarded as they're parsed.
+   */
+  private static final Set<String> FIELDS = Stream.of( Message.class.getDeclaredClasses() )
+      .flatMap( c -> Stream.of( c.getDeclaredFields() ) )
+      .map( f -> f.getAnnotation( JsonProperty.class ) )
+      .filter( Objects::nonNull )
+      .map( JsonProperty::value )
+      .collect( toSet() );
 
   private Message() {
     // no instances
@@ -65,20 +88,132 @@ class Message {
 
     @Override
     public BodySubscriber<T> apply( HttpResponse.ResponseInfo responseInfo ) {
-      return HttpResponse.BodySubscribers.mapping(
-          BodySubscribers.ofString( StandardCharsets.UTF_8 ),
-          body -> {
-            try {
-              if( LOG.isTraceEnabled() ) {
-                LOG.trace( "Full response body {}",
-                    JSON.writeValueAsString( JSON.readValue( body, Object.class ) ) );
-              }
-              return JSON.readValue( body, type );
-            }
-            catch( IOException e ) {
-              throw new UncheckedIOException( e );
+      return new JsonBodySubscriber<>( type );
+    }
+  }
+
+  /**
+   * Parses the response body as it arrives. Each chunk of the body is fed to a
+   * non-blocking parser and then released, so the body is never held in full.
+   * Only the values of fields that our messages declare are kept, and they're
+   * bound to the parsed type once the body is complete.
+   *
+   * @param <T> The parsed type
+   */
+  private static class JsonBodySubscriber<T> implements BodySubscriber<T> {
+    private final Class<T> type;
+    private final CompletableFuture<T> result = new CompletableFuture<>();
+    private final JsonParser parser;
+    private final ByteBufferFeeder feeder;
+    private final TokenBuffer tokens = new TokenBuffer( JSON, false );
+    /**
+     * A copy of the raw body, if we're tracing
+     */
+    private final ByteArrayOutputStream raw = LOG.isTraceEnabled()
+        ? new ByteArrayOutputStream()
+        : null;
+
+    private Flow.Subscription subscription;
+    /**
+     * The depth of the value that we're skipping, -1 if we're about to skip a
+     * value, or 0 if we're not skipping
+     */
+    private int skipping = 0;
+
+    /**
+     * @param type The parsed type
+     */
+    JsonBodySubscriber( Class<T> type ) {
+      this.type = type;
+      try {
+        parser = JSON.getFactory().createNonBlockingByteBufferParser();
+      }
+      catch( IOException e ) {
+        throw new UncheckedIOException( e );
+      }
+      feeder = (ByteBufferFeeder) parser.getNonBlockingInputFeeder();
+    }
+
+    @Override
+    public CompletionStage<T> getBody() {
+      return result;
+    }
+
+    @Override
+    public void onSubscribe( Flow.Subscription s ) {
+      subscription = s;
+      s.request( 1 );
+    }
+
+    @Override
+    public void onNext( List<ByteBuffer> items ) {
+      try {
+        for( ByteBuffer item : items ) {
+          if( raw != null ) {
+            ByteBuffer copy = item.duplicate();
+            while( copy.hasRemaining() ) {
+              raw.write( copy.get() );
             }
-          } );
+          }
+          feeder.feedInput( item );
+          drain();
+        }
+        subscription.request( 1 );
+      }
+      catch( IOException e ) {
+        subscription.cancel();
+        result.completeExceptionally( e );
+      }
+    }
+
+    /**
+     * Copies the tokens that are available to the buffer
+     *
+     * @throws IOException on failure
+     */
+    private void drain() throws IOException {
+      JsonToken token;
+      while( (token = parser.nextToken()) != null && token != JsonToken.NOT_AVAILABLE ) {
+        if( skipping != 0 ) {
+          if( skipping == -1 ) {
+            skipping = token.isStructStart() ? 1 : 0;
+          }
+          else if( token.isStructStart() ) {
+            skipping++;
+          }
+          else if( token.isStructEnd() ) {
+            skipping--;
+          }
+        }
+        else if( token == JsonToken.FIELD_NAME && !FIELDS.contains( parser.currentName() ) ) {
+          skipping = -1;
+        }
+        else {
+          tokens.copyCurrentEvent( parser );
+        }
+      }
+    }
+
+    @Override
+    public void onError( Throwable throwable ) {
+      result.completeExceptionally( throwable );
+    }
+
+    @Override
+    public void onComplete() {
+      try {
+        feeder.endOfInput();
+        drain();
+        if( raw != null ) {
+          LOG.trace( "Full response body {}", raw.toString( StandardCharsets.UTF_8 ) );
+        }
+        try( JsonParser bound = tokens.asParser( JSON ) ) {
+          result.complete( JSON.readValue( bound, type ) );
+        }
+      }
+      catch( IOException e ) {
+        result.completeExceptionally( e );
+      }
     }
   }
 
@@ -133,11 +268,15 @@ class Message {
     static JsonBodyHandler<ListWorkflowRunArtifactsResponse> HANDLER = new JsonBodyHandler<>(
         ListWorkflowRunArtifactsResponse.class );
 
+    @JsonProperty("total_count")
+    public final Integer totalCount;
     @JsonProperty("artifacts")
     public final List<WorkflowRunArtifact> artifacts;
 
     public ListWorkflowRunArtifactsResponse(
+        @JsonProperty("total_count") Integer totalCount,
         @JsonProperty("artifacts") List<WorkflowRunArtifact> artifacts ) {
+      this.totalCount = totalCount;
       this.artifacts = artifacts;
     }
   }
@@ -150,12 +289,20 @@ class Message {
     public final String id;
     @JsonProperty("name")
     public final String name;
+    @JsonProperty("digest")
+    public final String digest;
+    @JsonProperty("size_in_bytes")
+    public final long sizeInBytes;
 
     public WorkflowRunArtifact(
         @JsonProperty("id") String id,
-        @JsonProperty("name") String name ) {
+        @JsonProperty("name") String name,
+        @JsonProperty("digest") String digest,
+        @JsonProperty("size_in_bytes") long sizeInBytes ) {
       this.id = id;
       this.name = name;
+      this.digest = digest;
+      this.sizeInBytes = sizeInBytes;
     }
   }
 
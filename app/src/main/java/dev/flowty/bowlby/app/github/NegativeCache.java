@@ -0,0 +1,108 @@
+package dev.flowty.bowlby.app.github;
+
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.LongSupplier;
+
+import dev.flowty.bowlby.app.github.Entity.Artifact;
+import dev.flowty.bowlby.app.github.GithubApiClient.Absence;
+
+/**
+ * Remembers the artifacts that github has told us it doesn't have, so repeated
+ * requests for them don't cost us API calls. Entries are forgotten once they
+ * reach a certain age, and the oldest are forgotten early to keep this bounded.
+ */
+class NegativeCache {
+
+  /**
+   * Why and until when an artifact is unavailable
+   *
+   * @param absence Why it's unavailable
+   * @param expiry  When we'll forget about it, in epoch milliseconds
+   */
+  private record Miss(Absence absence, long expiry) {
+  }
+
+  private final int capacity;
+  private final long ttl;
+  private final LongSupplier clock;
+
+  private final Map<Artifact, Miss> misses = new LinkedHashMap<>();
+
+  /**
+   * @param capacity The maximum number of artifacts to remember
+   * @param ttl      How long to remember them for
+   */
+  NegativeCache( int capacity, Duration ttl ) {
+    this( capacity, ttl, System::currentTimeMillis );
+  }
+
+  /**
+   * @param capacity The maximum number of artifacts to remember
+   * @param ttl      How long to remember them for
+   * @param clock    The source of time, in epoch milliseconds
+   */
+  NegativeCache( int capacity, Duration ttl, LongSupplier clock ) {
+    this.capacity = capacity;
+    this.ttl = ttl.toMillis();
+    this.clock = clock;
+  }
+
+  /**
+   * Records that an artifact is unavailable
+   *
+   * @param artifact The artifact
+   * @param absence  Why it's unavailable
+   */
+  synchronized void put( Artifact artifact, Absence absence ) {
+    if( capacity <= 0 || ttl <= 0 ) {
+      return;
+    }
+    // re-insert so the map stays in expiry order
+    misses.remove( artifact );
+    misses.put( artifact, new Miss( absence, clock.getAsLong() + ttl ) );
+    while( misses.size() > capacity ) {
+      misses.remove( misses.keySet().iterator().next() );
+    }
+  }
+
+  /**
+   * Checks if an artifact is known to be unavailable
+   *
+   * @param artifact The artifact
+   * @return Why the artifact is unavailable, or <code>null</code> if we don't
+   *         know that it is
+   */
+  synchronized Absence get( Artifact artifact ) {
+    Miss miss = misses.get( artifact );
+    if( miss == null ) {
+      return null;
+    }
+    if( miss.expiry() <= clock.getAsLong() ) {
+      misses.remove( artifact );
+      return null;
+    }
+    return miss.absence();
+  }
+
+  /**
+   * Forgets about the artifacts that have reached their expiry
+   */
+  synchronized void purge() {
+    long now = clock.getAsLong();
+    misses.values().removeIf( miss -> miss.expiry() <= now );
+  }
+
+  /**
+   * @return The number of artifacts that we remember
+   */
+  synchronized int size() {
+    return misses.size();
+  }
+
+  @Override
+  public synchronized String toString() {
+    return misses.size() + " unavailable artifacts";
+  }
+}
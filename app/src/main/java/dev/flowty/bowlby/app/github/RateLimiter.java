@@ -0,0 +1,153 @@
+package dev.flowty.bowlby.app.github;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * Keeps our API calls within github's rate limit. The budget that github
+ * reports is turned into permits that are issued at an even rate until the
+ * budget resets. A few permits can build up while we're idle, so independent
+ * calls can go ahead together. Permits are reserved without locking, and
+ * callers that have to wait for one do so asynchronously rather than tying up a
+ * thread.
+ */
+class RateLimiter {
+
+  /**
+   * The most permits that we let build up
+   */
+  static final int MAX_BURST = 8;
+
+  private final LongSupplier clock;
+
+  /**
+   * The time between permits, in nanoseconds
+   */
+  private volatile long interval = 0;
+  /**
+   * The number of permits that can build up
+   */
+  private volatile int burst = MAX_BURST;
+  /**
+   * When the next permit would be issued if none had built up, in clock
+   * nanoseconds. Reserving a permit pushes this back by an interval.
+   */
+  private final AtomicLong due;
+
+  private final AtomicLong granted = new AtomicLong();
+  private final AtomicLong delayed = new AtomicLong();
+
+  /**
+   * Creates a limiter that issues permits freely until it's told otherwise
+   */
+  RateLimiter() {
+    this( System::nanoTime );
+  }
+
+  /**
+   * @param clock The source of time, in nanoseconds
+   */
+  RateLimiter( LongSupplier clock ) {
+    this.clock = clock;
+    due = new AtomicLong( clock.getAsLong() );
+  }
+
+  /**
+   * Updates the rate at which permits are issued
+   *
+   * @param remaining The number of calls that we can make before the budget
+   *                  resets
+   * @param spacing   The time to leave between calls
+   */
+  void update( long remaining, Duration spacing ) {
+    interval = spacing.isNegative() ? 0 : spacing.toNanos();
+    burst = (int) Math.max( 1, Math.min( MAX_BURST, remaining ) );
+  }
+
+  /**
+   * Stops issuing permits for a while, because the budget is exhausted
+   *
+   * @param duration How long until the budget resets
+   */
+  void pause( Duration duration ) {
+    if( !duration.isNegative() ) {
+      due.accumulateAndGet( clock.getAsLong() + duration.toNanos() + tolerance(),
+          Math::max );
+    }
+  }
+
+  /**
+   * Reserves a permit
+   *
+   * @return How long to wait before using the permit, in nanoseconds
+   */
+  long reserve() {
+    long now = clock.getAsLong();
+    long step = interval;
+    long tolerance = tolerance();
+    while( true ) {
+      long current = due.get();
+      if( due.compareAndSet( current, Math.max( current, now ) + step ) ) {
+        long wait = Math.max( 0, current - tolerance - now );
+        granted.incrementAndGet();
+        if( wait > 0 ) {
+          delayed.incrementAndGet();
+        }
+        return wait;
+      }
+    }
+  }
+
+  /**
+   * Gets a permit
+   *
+   * @return Completes when the permit can be used
+   */
+  CompletableFuture<Void> acquire() {
+    long wait = reserve();
+    if( wait == 0 ) {
+      return CompletableFuture.completedFuture( null );
+    }
+    return CompletableFuture.runAsync( () -> {
+      // the delay is all we want
+    }, CompletableFuture.delayedExecutor( wait, TimeUnit.NANOSECONDS ) );
+  }
+
+  /**
+   * @return How far ahead of time a built-up permit can be used, in nanoseconds
+   */
+  private long tolerance() {
+    return (burst - 1) * interval;
+  }
+
+  /**
+   * @return The time between permits
+   */
+  Duration interval() {
+    return Duration.ofNanos( interval );
+  }
+
+  /**
+   * @return The number of permits that have been issued
+   */
+  long granted() {
+    return granted.get();
+  }
+
+  /**
+   * @return The number of permits that had to be waited for
+   */
+  long delayed() {
+    return delayed.get();
+  }
+
+  @Override
+  public String toString() {
+    return String.format(
+        "API rate limiter: a permit every %s in bursts of %s, %s granted, %s delayed",
+        interval(), burst, granted(), delayed() );
+  }
+}
@@ -0,0 +1,232 @@
+package dev.flowty.bowlby.app.github;
+
+import java.net.URI;
+import java.net.http.HttpClient.Version;
+import java.net.http.HttpHeaders;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpResponse.BodyHandler;
+import java.net.http.HttpResponse.BodySubscribers;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiFunction;
+
+import javax.net.ssl.SSLSession;
+
+/**
+ * Remembers API responses along with the validators that github gave us for
+ * them, so that we can make conditional requests. github doesn't count a
+ * <code>304 Not Modified</code> response against our rate limit, and we get to
+ * reuse the body that we've already parsed. The least-recently-used responses
+ * are forgotten to keep this bounded.
+ */
+class ResponseCache {
+
+  /**
+   * How to send a request
+   *
+   * @param <T> The response body type
+   */
+  interface Sender<T> extends
+      BiFunction<HttpRequest, BodyHandler<T>, CompletableFuture<HttpResponse<T>>> {
+  }
+
+  /**
+   * A response that we can revalidate
+   *
+   * @param response     The response
+   * @param etag         The entity tag, or <code>null</code>
+   * @param lastModified The modification time, or <code>null</code>
+   */
+  private record Stored(HttpResponse<?> response, String etag, String lastModified) {
+  }
+
+  private final int capacity;
+  private final Map<URI, Stored> responses;
+
+  private final AtomicLong requests = new AtomicLong();
+  private final AtomicLong conditional = new AtomicLong();
+  private final AtomicLong notModified = new AtomicLong();
+
+  /**
+   * @param capacity The maximum number of responses to remember
+   */
+  ResponseCache( int capacity ) {
+    this.capacity = capacity;
+    responses = new LinkedHashMap<>( 16, 0.75f, true ) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry( Map.Entry<URI, Stored> eldest ) {
+        return size() > ResponseCache.this.capacity;
+      }
+    };
+  }
+
+  /**
+   * Sends a request, conditionally if we've seen a response to it before
+   *
+   * @param <T>     The response body type
+   * @param request The request
+   * @param handler How to parse the response body
+   * @param sender  How to send the request
+   * @return The response. If github tells us that our stored response is still
+   *         current then we get that instead.
+   */
+  <T> CompletableFuture<HttpResponse<T>> send( HttpRequest request, BodyHandler<T> handler,
+      Sender<T> sender ) {
+    if( capacity <= 0 || !"GET".equals( request.method() ) ) {
+      return sender.apply( request, handler );
+    }
+    requests.incrementAndGet();
+    Stored stored;
+    synchronized( responses ) {
+      stored = responses.get( request.uri() );
+    }
+    HttpRequest sent = request;
+    if( stored != null ) {
+      conditional.incrementAndGet();
+      HttpRequest.Builder builder = HttpRequest.newBuilder( request, ( n, v ) -> true );
+      if( stored.etag() != null ) {
+        builder.header( "If-None-Match", stored.etag() );
+      }
+      if( stored.lastModified() != null ) {
+        builder.header( "If-Modified-Since", stored.lastModified() );
+      }
+      sent = builder.build();
+    }
+    return sender.apply( sent, info -> info.statusCode() == 304
+        ? BodySubscribers.replacing( null )
+        : handler.apply( info ) )
+        .thenApply( response -> {
+          if( response.statusCode() == 304 && stored != null ) {
+            notModified.incrementAndGet();
+            return new Revalidated<>( response, stored );
+          }
+          if( response.statusCode() == 200 ) {
+            store( request.uri(), response );
+          }
+          return response;
+        } );
+  }
+
+  private void store( URI uri, HttpResponse<?> response ) {
+    String etag = response.headers().firstValue( "etag" ).orElse( null );
+    String lastModified = response.headers().firstValue( "last-modified" ).orElse( null );
+    synchronized( responses ) {
+      if( etag != null || lastModified != null ) {
+        responses.put( uri, new Stored( response, etag, lastModified ) );
+      }
+      else {
+        responses.remove( uri );
+      }
+    }
+  }
+
+  /**
+   * @return The number of responses that we remember
+   */
+  int size() {
+    synchronized( responses ) {
+      return responses.size();
+    }
+  }
+
+  /**
+   * @return The number of requests that we've sent through the cache
+   */
+  long requests() {
+    return requests.get();
+  }
+
+  /**
+   * @return The number of requests that we could make conditional
+   */
+  long conditional() {
+    return conditional.get();
+  }
+
+  /**
+   * @return The number of requests that were answered from the cache
+   */
+  long notModified() {
+    return notModified.get();
+  }
+
+  @Override
+  public String toString() {
+    return String.format(
+        "API response cache: %s responses, %s of %s requests conditional, %s not modified",
+        size(), conditional(), requests(), notModified() );
+  }
+
+  /**
+   * A stored response that github has told us is still current. This looks like
+   * the stored response, but with the headers of the revalidation.
+   *
+   * @param <T> The body type
+   */
+  private static class Revalidated<T> implements HttpResponse<T> {
+    private final HttpResponse<T> revalidation;
+    private final HttpResponse<?> stored;
+    private final HttpHeaders headers;
+
+    Revalidated( HttpResponse<T> revalidation, Stored stored ) {
+      this.revalidation = revalidation;
+      this.stored = stored.response();
+      // the revalidation only carries the headers that have changed, so the rest
+      // (e.g. the pagination links) have to come from the stored response
+      Map<String, List<String>> merged = new TreeMap<>( String.CASE_INSENSITIVE_ORDER );
+      merged.putAll( this.stored.headers().map() );
+      merged.putAll( revalidation.headers().map() );
+      headers = HttpHeaders.of( merged, ( name, value ) -> true );
+    }
+
+    @Override
+    public int statusCode() {
+      return stored.statusCode();
+    }
+
+    @Override
+    public HttpRequest request() {
+      return revalidation.request();
+    }
+
+    @Override
+    public Optional<HttpResponse<T>> previousResponse() {
+      return Optional.of( revalidation );
+    }
+
+    @Override
+    public HttpHeaders headers() {
+      return headers;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public T body() {
+      // a URI is always parsed into the same type
+      return (T) stored.body();
+    }
+
+    @Override
+    public Optional<SSLSession> sslSession() {
+      return revalidation.sslSession();
+    }
+
+    @Override
+    public URI uri() {
+      return revalidation.uri();
+    }
+
+    @Override
+    public Version version() {
+      return revalidation.version();
+    }
+  }
+}
@@ -1,31 +1,48 @@
 package dev.flowty.bowlby.app.srv;
 
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import static java.nio.charset.StandardCharsets.UTF_8;
 import static java.util.stream.Collectors.toCollection;
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.UncheckedIOException;
-import java.nio.file.FileSystem;
-import java.nio.file.FileSystems;
 import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Deque;
+import java.util.List;
 import java.util.Optional;
 import java.util.Set;
-import java.util.TreeSet;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.function.BiConsumer;
 import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import java.util.zip.ZipException;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.sun.net.httpserver.Headers;
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
 
 import dev.flowty.bowlby.app.github.Artifacts;
 import dev.flowty.bowlby.app.github.Entity.Artifact;
 import dev.flowty.bowlby.app.github.Entity.Repository;
+import dev.flowty.bowlby.app.github.GithubApiClient.Absence;
+import dev.flowty.bowlby.app.srv.ByteRanges.Range;
+import dev.flowty.bowlby.app.srv.HandlePool.Lease;
 import dev.flowty.bowlby.app.xml.Html;
+import dev.flowty.bowlby.app.zip.PartialZip;
+import dev.flowty.bowlby.app.zip.RemoteZip;
+import dev.flowty.bowlby.app.zip.ZipArchive;
+import dev.flowty.bowlby.app.zip.ZipIndex;
+import dev.flowty.bowlby.app.zip.ZipIndex.Entry;
 
 /**
  * Handles requests to <code>/artifacts/owner/repo/artifactId</code>, serves
@@ -34,6 +51,12 @@ import dev.flowty.bowlby.app.xml.Html;
 class ArtifactHandler implements HttpHandler {
   private static final Logger LOG = LoggerFactory.getLogger( ArtifactHandler.class );
 
+  /**
+   * How many times we'll try to open an artifact zip that keeps being removed
+   * from the cache before we can open it
+   */
+  private static final int OPEN_ATTEMPTS = 3;
+
   /**
    * The set of repos that we allow ourselves to serve from
    */
@@ -43,15 +66,25 @@ class ArtifactHandler implements HttpHandler {
    */
   private final Artifacts artifacts;
 
+  /**
+   * Open artifact zips, so we don't have to open the same zip for every request.
+   * These are keyed by file, so artifacts that share a zip share its handle.
+   */
+  private final HandlePool<Path, ZipArchive> zips;
+
   private final ServeUtil serveUtil;
 
   /**
    * @param repos     The set of repos that we allow ourselves to serve from
    * @param artifacts The source of the content we serve
+   * @param zips      The pool of open artifact zips
+   * @param serveUtil context-aware utility functions
    */
-  public ArtifactHandler( Set<Repository> repos, Artifacts artifacts, ServeUtil serveUtil ) {
+  public ArtifactHandler( Set<Repository> repos, Artifacts artifacts,
+      HandlePool<Path, ZipArchive> zips, ServeUtil serveUtil ) {
     this.repos = repos;
     this.artifacts = artifacts;
+    this.zips = zips;
     this.serveUtil = serveUtil;
   }
 
@@ -94,58 +127,344 @@ class ArtifactHandler implements HttpHandler {
   }
 
   private void handleArtifactRequest( HttpExchange exchange, Repository repo,
-      Deque<String> path ) throws IOException {
+      Deque<String> path ) throws IOException, InterruptedException {
 
     Artifact artifact = new Artifact( repo, path.poll() );
-    Path zip = artifacts.get( artifact );
-    if( zip == null ) {
-      serveUtil.showLinkForm( exchange, 404, "No such artifact" );
+    String internal = normalise( path );
+    if( serveRemote( exchange, artifact, internal )
+        || serveEarly( exchange, artifact, internal ) ) {
       return;
     }
 
-    try( FileSystem fs = FileSystems.newFileSystem( zip ) ) {
-      Path internal = fs.getPath( "/" );
-      while( !path.isEmpty() ) {
-        internal = internal.resolve( path.poll() );
-      }
+    Lease<ZipArchive> lease = open( exchange, artifact );
+    if( lease == null ) {
+      return;
+    }
 
-      if( Files.isRegularFile( internal ) ) {
-        serve( exchange, internal );
+    try( lease ) {
+      ZipArchive archive = lease.handle();
+
+      Entry entry = archive.index().find( internal );
+      if( entry != null && !entry.isDirectory() ) {
+        serve( exchange, artifact, archive, entry, true );
       }
-      else if( Files.isDirectory( internal ) ) {
-        listDirectory( exchange, internal );
+      else if( archive.index().isDirectory( internal ) ) {
+        listDirectory( exchange, artifact, archive.index(), internal );
       }
-      else if( !Files.exists( internal ) ) {
+      else {
         serveUtil.showLinkForm( exchange, 404, "No such file!" );
       }
-      else {
-        throw new IllegalStateException( "Unexpected file state! " + zip + "/" + internal );
+    }
+  }
+
+  /**
+   * Opens an artifact's zip, downloading it if necessary
+   *
+   * @param exchange The exchange
+   * @param artifact The artifact
+   * @return A lease on the open zip, or <code>null</code> if the request has been
+   *         answered with an error
+   * @throws IOException on failure
+   */
+  private Lease<ZipArchive> open( HttpExchange exchange, Artifact artifact )
+      throws IOException {
+    for( int attempt = 1;; attempt++ ) {
+      Path zip = artifacts.get( artifact );
+      if( zip == null ) {
+        if( artifacts.unavailable( artifact ) == Absence.EXPIRED ) {
+          serveUtil.showLinkForm( exchange, 410, "Artifact expired" );
+        }
+        else {
+          serveUtil.showLinkForm( exchange, 404, "No such artifact" );
+        }
+        return null;
+      }
+
+      try {
+        return zips.acquire( zip, z -> ZipArchive.open( z )
+            .withInflationListener( artifacts::grow ) );
+      }
+      catch( NoSuchFileException nsfe ) {
+        if( attempt >= OPEN_ATTEMPTS ) {
+          throw nsfe;
+        }
+        // it was evicted after we found it, so we'll have to get it again
+        LOG.debug( "{} was removed before we could open it", zip );
+      }
+      catch( ZipException ze ) {
+        // get rid of it, so the next request will download it afresh
+        artifacts.quarantine( artifact, ze.getMessage() );
+        serveUtil.showLinkForm( exchange, 500, "Corrupt artifact" );
+        return null;
       }
     }
+  }
 
+  /**
+   * Serves a file from an artifact that we don't have, by fetching only that
+   * file, if remote reading is enabled and the artifact is big enough to be worth
+   * it
+   *
+   * @param exchange The exchange
+   * @param artifact The artifact
+   * @param internal The file path within the artifact
+   * @return <code>true</code> if the request was served
+   * @throws IOException on failure
+   */
+  private boolean serveRemote( HttpExchange exchange, Artifact artifact, String internal )
+      throws IOException {
+    RemoteZip remote = artifacts.getRemote( artifact );
+    if( remote == null ) {
+      return false;
+    }
+    ZipIndex index;
+    Entry entry;
+    try {
+      index = remote.index();
+      entry = index.find( internal );
+      if( entry != null && !entry.isDirectory() ) {
+        remote.fetch( entry );
+      }
+    }
+    catch( IOException e ) {
+      LOG.warn( "Failed to read {} remotely", artifact, e );
+      return false;
+    }
+
+    if( entry != null && !entry.isDirectory() ) {
+      try( ZipArchive archive = remote.open() ) {
+        serve( exchange, artifact, archive, entry, true );
+      }
+    }
+    else if( index.isDirectory( internal ) ) {
+      listDirectory( exchange, artifact, index, internal );
+    }
+    else {
+      serveUtil.showLinkForm( exchange, 404, "No such file!" );
+    }
+    return true;
   }
 
-  private static void serve( HttpExchange exchange, Path file ) {
+  /**
+   * Serves a file from an artifact that is still being downloaded, if progressive
+   * serving is enabled and the file arrives before the download completes
+   *
+   * @param exchange The exchange
+   * @param artifact The artifact
+   * @param internal The file path within the artifact
+   * @return <code>true</code> if the request was served
+   * @throws IOException          on failure
+   * @throws InterruptedException if interrupted while waiting for the file
+   */
+  private boolean serveEarly( HttpExchange exchange, Artifact artifact, String internal )
+      throws IOException, InterruptedException {
+    PartialZip partial = artifacts.getPartial( artifact );
+    if( partial == null || internal.isEmpty() ) {
+      // directory listings need the complete index
+      return false;
+    }
+    Entry entry = partial.await( internal );
+    if( entry == null || entry.isDirectory() ) {
+      return false;
+    }
+    try( ZipArchive archive = partial.open() ) {
+      // the download hasn't been verified yet
+      serve( exchange, artifact, archive, entry, false );
+    }
+    return true;
+  }
+
+  /**
+   * @param path The path elements within the artifact
+   * @return The corresponding zip entry name
+   */
+  private static String normalise( Deque<String> path ) {
+    Deque<String> names = new ArrayDeque<>();
+    for( String name : path ) {
+      if( "..".equals( name ) ) {
+        names.pollLast();
+      }
+      else if( !".".equals( name ) ) {
+        names.add( name );
+      }
+    }
+    return String.join( "/", names );
+  }
+
+  /**
+   * Serves a file from an artifact
+   *
+   * @param exchange The exchange
+   * @param artifact The artifact
+   * @param archive  The artifact zip
+   * @param entry    The file within the zip
+   * @param verified <code>false</code> if the artifact zip hasn't been checked
+   *                 against its digest yet. The content might yet turn out to be
+   *                 bad, so we don't let it be cached or tagged.
+   */
+  private static void serve( HttpExchange exchange, Artifact artifact, ZipArchive archive,
+      Entry entry, boolean verified ) {
     try {
-      Optional.ofNullable( Files.probeContentType( file ) )
-          .ifPresent( ct -> exchange.getResponseHeaders()
-              .add( "content-type", ct ) );
+      Headers headers = exchange.getResponseHeaders();
+      headers.add( "accept-ranges", "bytes" );
+
+      // Entry content is immutable, so the checksum and size are enough to
+      // identify it. The gzip-encoded form is a different representation and so
+      // needs a different tag.
+      boolean deflated = entry.method() == Entry.DEFLATED;
+      String etag = verified
+          ? ServeUtil.etag( artifact.id(), Integer.toHexString( entry.crc() ),
+              Long.toHexString( entry.size() ) )
+          : null;
+      String gzipEtag = verified && deflated
+          ? ServeUtil.etag( artifact.id(), Integer.toHexString( entry.crc() ),
+              Long.toHexString( entry.size() ), "gzip" )
+          : null;
+      String cacheControl = verified
+          ? "max-age=31536000, immutable"
+          : "no-store";
+      boolean gzip = deflated && ServeUtil.acceptsEncoding(
+          exchange.getRequestHeaders().getFirst( "accept-encoding" ), "gzip" );
+
+      String ifNoneMatch = exchange.getRequestHeaders().getFirst( "if-none-match" );
+      if( ServeUtil.etagMatches( ifNoneMatch, etag )
+          || ServeUtil.etagMatches( ifNoneMatch, gzipEtag ) ) {
+        headers.add( "cache-control", cacheControl );
+        headers.add( "etag", gzip ? gzipEtag : etag );
+        if( deflated ) {
+          headers.add( "vary", "accept-encoding" );
+        }
+        exchange.sendResponseHeaders( 304, -1 );
+        return;
+      }
+
+      List<Range> ranges = null;
+      String ifRange = exchange.getRequestHeaders().getFirst( "if-range" );
+      if( ifRange == null || etag != null && ifRange.trim().equals( etag ) ) {
+        // ranges are always served from the unencoded form, and if-range demands a
+        // strong comparison against that. Dates are not precise enough to count.
+        ranges = ByteRanges.parse( exchange.getRequestHeaders().getFirst( "range" ),
+            entry.size() );
+      }
+      if( ranges != null && ranges.isEmpty() ) {
+        headers.add( "content-range", "bytes */" + entry.size() );
+        exchange.sendResponseHeaders( 416, -1 );
+        return;
+      }
+
+      String contentType = contentType( entry.name() );
+      headers.add( "cache-control", cacheControl );
+      if( deflated ) {
+        headers.add( "vary", "accept-encoding" );
+      }
+
+      if( ranges == null ) {
+        Optional.ofNullable( contentType )
+            .ifPresent( ct -> headers.add( "content-type", ct ) );
+        Optional.ofNullable( gzip ? gzipEtag : etag )
+            .ifPresent( et -> headers.add( "etag", et ) );
+        serveWhole( exchange, archive, entry, gzip );
+      }
+      else if( ranges.size() == 1 ) {
+        Optional.ofNullable( contentType )
+            .ifPresent( ct -> headers.add( "content-type", ct ) );
+        Optional.ofNullable( etag )
+            .ifPresent( et -> headers.add( "etag", et ) );
+        Range range = ranges.get( 0 );
+        headers.add( "content-range", range.contentRange( entry.size() ) );
+        exchange.sendResponseHeaders( 206, range.length() );
+        try( OutputStream os = exchange.getResponseBody() ) {
+          archive.transfer( entry, range.first(), range.length(), os );
+        }
+      }
+      else {
+        Optional.ofNullable( etag )
+            .ifPresent( et -> headers.add( "etag", et ) );
+        serveMultipart( exchange, archive, entry, contentType, ranges );
+      }
+    }
+    catch( IOException ioe ) {
+      throw new UncheckedIOException( ioe );
+    }
+  }
+
+  private static void serveWhole( HttpExchange exchange, ZipArchive archive, Entry entry,
+      boolean gzip ) throws IOException {
+    if( gzip ) {
+      // the client can do the inflation
       exchange.getResponseHeaders()
-          .add( "cache-control", "max-age=31536000, immutable" );
-      exchange.sendResponseHeaders( 200, Files.size( file ) );
+          .add( "content-encoding", "gzip" );
+      exchange.sendResponseHeaders( 200, ZipArchive.gzipLength( entry ) );
       ServeUtil.transfer(
-          () -> Files.newInputStream( file ),
+          () -> archive.gzip( entry ),
           exchange::getResponseBody );
+      return;
     }
-    catch( IOException ioe ) {
-      throw new UncheckedIOException( ioe );
+
+    exchange.sendResponseHeaders( 200, entry.size() );
+    ServeUtil.transfer(
+        () -> archive.open( entry ),
+        exchange::getResponseBody );
+  }
+
+  private static void serveMultipart( HttpExchange exchange, ZipArchive archive, Entry entry,
+      String contentType, List<Range> ranges ) throws IOException {
+    String boundary = Long.toHexString( ThreadLocalRandom.current().nextLong() );
+
+    List<byte[]> partHeaders = new ArrayList<>();
+    long length = 0;
+    for( Range range : ranges ) {
+      StringBuilder sb = new StringBuilder( "\r\n--" ).append( boundary ).append( "\r\n" );
+      if( contentType != null ) {
+        sb.append( "content-type: " ).append( contentType ).append( "\r\n" );
+      }
+      sb.append( "content-range: " ).append( range.contentRange( entry.size() ) )
+          .append( "\r\n\r\n" );
+      byte[] bytes = sb.toString().getBytes( US_ASCII );
+      partHeaders.add( bytes );
+      length += bytes.length + range.length();
+    }
+    byte[] end = ("\r\n--" + boundary + "--\r\n").getBytes( US_ASCII );
+    length += end.length;
+
+    exchange.getResponseHeaders()
+        .add( "content-type", "multipart/byteranges; boundary=" + boundary );
+    exchange.sendResponseHeaders( 206, length );
+    try( OutputStream os = exchange.getResponseBody() ) {
+      for( int i = 0; i < ranges.size(); i++ ) {
+        Range range = ranges.get( i );
+        os.write( partHeaders.get( i ) );
+        archive.transfer( entry, range.first(), range.length(), os );
+      }
+      os.write( end );
+    }
+  }
+
+  private static String contentType( String name ) throws IOException {
+    try {
+      return Files.probeContentType( Paths.get( name.substring( name.lastIndexOf( '/' ) + 1 ) ) );
+    }
+    catch( InvalidPathException ipe ) {
+      return null;
     }
   }
 
-  private void listDirectory( HttpExchange exchange, Path directory ) throws IOException {
+  private void listDirectory( HttpExchange exchange, Artifact artifact, ZipIndex index,
+      String directory ) throws IOException {
     if( exchange.getRequestURI().getPath().endsWith( "/" ) ) {
       // list dir
-      ServeUtil.respond( exchange, 200, dirIndex( directory ) );
+      String listing = dirIndex( index, directory );
+      CRC32 crc = new CRC32();
+      crc.update( listing.getBytes( UTF_8 ) );
+      String etag = ServeUtil.etag( artifact.id(), Long.toHexString( crc.getValue() ) );
+      exchange.getResponseHeaders().add( "etag", etag );
+      if( ServeUtil.etagMatches(
+          exchange.getRequestHeaders().getFirst( "if-none-match" ), etag ) ) {
+        exchange.sendResponseHeaders( 304, -1 );
+      }
+      else {
+        ServeUtil.respond( exchange, 200, listing );
+      }
     }
     else {
       // no trailing '/': redirect to the explicit dir list. Relative link behaviour
@@ -154,17 +473,8 @@ class ArtifactHandler implements HttpHandler {
     }
   }
 
-  private String dirIndex( Path dir ) throws IOException {
-    Set<Path> all = new TreeSet<>();
-    try( Stream<Path> list = Files.list( dir ) ) {
-      list.forEach( all::add );
-    }
-
-    BiConsumer<Html, Path> pathLink = ( h, p ) -> {
-      String href = dir.relativize( p ).toString() + (Files.isDirectory( p ) ? "/" : "");
-      h.a( href, href );
-    };
-    BiConsumer<Html, Path> linkItem = ( h, p ) -> h.li( i -> pathLink.accept( i, p ) );
+  private String dirIndex( ZipIndex index, String dir ) {
+    BiConsumer<Html, String> linkItem = ( h, href ) -> h.li( i -> i.a( href, href ) );
 
     return new Html()
         .head( h -> h
@@ -174,8 +484,8 @@ class ArtifactHandler implements HttpHandler {
                 .a( serveUtil.contextPath() + "/", "bowlby" ) )
             .ul( l -> l
                 // link to the parent dir if we're not already at the root
-                .conditional( c -> c.li( i -> i.a( "../", "../" ) ) ).on( dir.getNameCount() > 0 )
-                .repeat( linkItem ).over( all ) ) )
+                .conditional( c -> c.li( i -> i.a( "../", "../" ) ) ).on( !dir.isEmpty() )
+                .repeat( linkItem ).over( index.list( dir ) ) ) )
         .toString();
   }
 }
@@ -0,0 +1,107 @@
+package dev.flowty.bowlby.app.srv;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Parses the <code>range</code> request header
+ */
+class ByteRanges {
+
+  /**
+   * We'll ignore requests for more ranges than this and just send the whole
+   * thing. Large numbers of small ranges are more likely to be abuse than a
+   * legitimate client.
+   */
+  static final int MAX_RANGES = 16;
+
+  private ByteRanges() {
+    // no instances
+  }
+
+  /**
+   * A satisfiable byte range
+   *
+   * @param first The index of the first byte
+   * @param last  The index of the last byte, inclusive
+   */
+  record Range(long first, long last) {
+    /**
+     * @return The number of bytes in the range
+     */
+    long length() {
+      return last - first + 1;
+    }
+
+    /**
+     * @param size The size of the complete representation
+     * @return The <code>content-range</code> header value for this range
+     */
+    String contentRange( long size ) {
+      return "bytes " + first + "-" + last + "/" + size;
+    }
+  }
+
+  /**
+   * Parses a range header
+   *
+   * @param header The value of the <code>range</code> header, or
+   *               <code>null</code>
+   * @param size   The size of the complete representation
+   * @return The satisfiable ranges, in the order that they were requested. This
+   *         will be empty if none of the ranges can be satisfied, and
+   *         <code>null</code> if the header is absent, malformed or otherwise
+   *         ignorable, in which case the complete representation should be sent
+   */
+  static List<Range> parse( String header, long size ) {
+    if( header == null ) {
+      return null;
+    }
+    String spec = header.trim();
+    if( !spec.regionMatches( true, 0, "bytes=", 0, "bytes=".length() ) ) {
+      return null;
+    }
+
+    String[] elements = spec.substring( "bytes=".length() ).split( "," );
+    if( elements.length > MAX_RANGES ) {
+      return null;
+    }
+
+    List<Range> ranges = new ArrayList<>();
+    for( String element : elements ) {
+      String e = element.trim();
+      int dash = e.indexOf( '-' );
+      if( dash == -1 ) {
+        return null;
+      }
+      try {
+        String from = e.substring( 0, dash ).trim();
+        String to = e.substring( dash + 1 ).trim();
+        if( from.isEmpty() ) {
+          // suffix range, the last n bytes
+          long suffix = Long.parseLong( to );
+          if( suffix < 0 ) {
+            return null;
+          }
+          if( suffix > 0 && size > 0 ) {
+            ranges.add( new Range( Math.max( 0, size - suffix ), size - 1 ) );
+          }
+        }
+        else {
+          long first = Long.parseLong( from );
+          long last = to.isEmpty() ? Long.MAX_VALUE : Long.parseLong( to );
+          if( first < 0 || last < first ) {
+            return null;
+          }
+          if( first < size ) {
+            ranges.add( new Range( first, Math.min( last, size - 1 ) ) );
+          }
+        }
+      }
+      catch( NumberFormatException nfe ) {
+        return null;
+      }
+    }
+    return ranges;
+  }
+}
@@ -0,0 +1,316 @@
+package dev.flowty.bowlby.app.srv;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A bounded pool of expensive-to-open handles. Handles are reference-counted,
+ * so they are never closed while in use: once the pool is over capacity or a
+ * handle has been invalidated it will be closed when the last user releases it.
+ * Handles that go unused for a while are closed in the background.
+ *
+ * @param <K> The key type
+ * @param <H> The handle type
+ */
+class HandlePool<K, H extends Closeable> implements Closeable {
+  private static final Logger LOG = LoggerFactory.getLogger( HandlePool.class );
+
+  /**
+   * How to open a handle
+   *
+   * @param <K> The key type
+   * @param <H> The handle type
+   */
+  @FunctionalInterface
+  interface Opener<K, H> {
+    /**
+     * @param key The handle key
+     * @return The opened handle
+     * @throws IOException on failure
+     */
+    H open( K key ) throws IOException;
+  }
+
+  /**
+   * A claim on a pooled handle. Close it when you're done with the handle.
+   *
+   * @param <H> The handle type
+   */
+  interface Lease<H> extends AutoCloseable {
+    /**
+     * @return The handle
+     */
+    H handle();
+
+    @Override
+    void close();
+  }
+
+  private final String name;
+  private final int capacity;
+  private final Duration idleTimeout;
+  private final Map<K, Entry> entries = new HashMap<>();
+  private final ScheduledExecutorService sweeper;
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong closes = new AtomicLong();
+
+  /**
+   * @param name        The pool name, for logging
+   * @param capacity    The number of handles that we aim to keep open
+   * @param idleTimeout How long a handle can go unused before it is closed
+   */
+  HandlePool( String name, int capacity, Duration idleTimeout ) {
+    this.name = name;
+    this.capacity = capacity;
+    this.idleTimeout = idleTimeout;
+    sweeper = Executors.newSingleThreadScheduledExecutor( r -> {
+      Thread t = new Thread( r, name + "-sweeper" );
+      t.setDaemon( true );
+      return t;
+    } );
+    long period = Math.max( 1, idleTimeout.toMillis() / 2 );
+    sweeper.scheduleWithFixedDelay( this::closeIdle, period, period, TimeUnit.MILLISECONDS );
+  }
+
+  /**
+   * Acquires a handle, opening it if necessary
+   *
+   * @param key    The handle key
+   * @param opener How to open the handle if it's not already open
+   * @return A lease on the handle
+   * @throws IOException if the handle could not be opened
+   */
+  Lease<H> acquire( K key, Opener<K, H> opener ) throws IOException {
+    Entry entry;
+    synchronized( this ) {
+      entry = entries.computeIfAbsent( key, Entry::new );
+      entry.refs++;
+    }
+
+    try {
+      if( entry.open( opener ) ) {
+        misses.incrementAndGet();
+      }
+      else {
+        hits.incrementAndGet();
+      }
+    }
+    catch( IOException | RuntimeException e ) {
+      synchronized( this ) {
+        entries.remove( key, entry );
+        entry.retired = true;
+      }
+      entry.release();
+      throw e;
+    }
+
+    trim();
+    return new Lease<>() {
+      private boolean released = false;
+
+      @Override
+      public H handle() {
+        return entry.handle;
+      }
+
+      @Override
+      public void close() {
+        if( !released ) {
+          released = true;
+          entry.release();
+        }
+      }
+    };
+  }
+
+  /**
+   * Removes a handle from the pool. It will be closed once it is no longer in
+   * use.
+   *
+   * @param key The handle key
+   */
+  void invalidate( K key ) {
+    Entry entry;
+    synchronized( this ) {
+      entry = entries.remove( key );
+      if( entry == null ) {
+        return;
+      }
+      entry.retired = true;
+    }
+    entry.closeIfUnused();
+  }
+
+  /**
+   * Closes idle handles if we're over capacity
+   */
+  private void trim() {
+    List<Entry> victims = new ArrayList<>();
+    synchronized( this ) {
+      if( entries.size() <= capacity ) {
+        return;
+      }
+      entries.values().stream()
+          .filter( e -> e.refs == 0 )
+          .sorted( Comparator.comparingLong( e -> e.lastUsed ) )
+          .limit( entries.size() - capacity )
+          .forEach( victims::add );
+      victims.forEach( v -> {
+        entries.remove( v.key, v );
+        v.retired = true;
+      } );
+    }
+    victims.forEach( Entry::closeIfUnused );
+  }
+
+  /**
+   * Closes handles that have not been used recently
+   */
+  private void closeIdle() {
+    long threshold = System.nanoTime() - idleTimeout.toNanos();
+    List<Entry> victims = new ArrayList<>();
+    synchronized( this ) {
+      entries.values().stream()
+          .filter( e -> e.refs == 0 && e.lastUsed - threshold < 0 )
+          .forEach( victims::add );
+      victims.forEach( v -> {
+        entries.remove( v.key, v );
+        v.retired = true;
+      } );
+    }
+    victims.forEach( Entry::closeIfUnused );
+    if( !victims.isEmpty() ) {
+      LOG.debug( "{}", this );
+    }
+  }
+
+  /**
+   * @return The number of acquisitions that found an open handle
+   */
+  long hits() {
+    return hits.get();
+  }
+
+  /**
+   * @return The number of acquisitions that had to open a handle
+   */
+  long misses() {
+    return misses.get();
+  }
+
+  /**
+   * @return The number of handles that have been closed
+   */
+  long closes() {
+    return closes.get();
+  }
+
+  /**
+   * @return The number of handles in the pool
+   */
+  synchronized int size() {
+    return entries.size();
+  }
+
+  @Override
+  public String toString() {
+    return String.format( "%s pool: %s open of %s, %s hits, %s misses, %s closed",
+        name, size(), capacity, hits(), misses(), closes() );
+  }
+
+  /**
+   * Stops the background sweep and closes unused handles. Handles that are in use
+   * will be closed when they are released.
+   */
+  @Override
+  public void close() {
+    sweeper.shutdownNow();
+    List<Entry> all;
+    synchronized( this ) {
+      all = new ArrayList<>( entries.values() );
+      entries.clear();
+      all.forEach( e -> e.retired = true );
+    }
+    all.forEach( Entry::closeIfUnused );
+  }
+
+  /**
+   * A pooled handle and its usage
+   */
+  private class Entry {
+    private final K key;
+    /**
+     * The number of outstanding leases. Guarded by the pool monitor
+     */
+    private int refs = 0;
+    /**
+     * Set when the entry has been removed from the pool. Guarded by the pool
+     * monitor
+     */
+    private boolean retired = false;
+    private volatile long lastUsed = System.nanoTime();
+    private H handle;
+
+    Entry( K key ) {
+      this.key = key;
+    }
+
+    /**
+     * Opens the handle if that hasn't already been done
+     *
+     * @return <code>true</code> if we opened the handle
+     */
+    synchronized boolean open( Opener<K, H> opener ) throws IOException {
+      if( handle == null ) {
+        handle = opener.open( key );
+        return true;
+      }
+      return false;
+    }
+
+    void release() {
+      lastUsed = System.nanoTime();
+      synchronized( HandlePool.this ) {
+        refs--;
+      }
+      closeIfUnused();
+    }
+
+    void closeIfUnused() {
+      synchronized( HandlePool.this ) {
+        if( !retired || refs > 0 ) {
+          return;
+        }
+      }
+      H toClose;
+      synchronized( this ) {
+        toClose = handle;
+        handle = null;
+      }
+      if( toClose != null ) {
+        try {
+          toClose.close();
+          closes.incrementAndGet();
+        }
+        catch( IOException e ) {
+          LOG.warn( "Failed to close {} handle {}", name, key, e );
+        }
+      }
+    }
+  }
+}
@@ -4,14 +4,19 @@ import static java.util.stream.Collectors.joining;
 import static java.util.stream.Collectors.toCollection;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.time.Duration;
 import java.time.Instant;
 import java.util.ArrayDeque;
 import java.util.Deque;
-import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.BiConsumer;
+import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.stream.Stream;
 
@@ -21,6 +26,7 @@ import org.slf4j.LoggerFactory;
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
 
+import dev.flowty.bowlby.app.github.Entity.Artifact;
 import dev.flowty.bowlby.app.github.Entity.Branch;
 import dev.flowty.bowlby.app.github.Entity.NamedArtifact;
 import dev.flowty.bowlby.app.github.Entity.Repository;
@@ -44,24 +50,64 @@ class LatestArtifactHandler implements HttpHandler {
   private final Set<Repository> repos;
   private final GithubApiClient client;
   private final Duration cacheValidity;
+  private final Duration branchValidity;
   private final ServeUtil serveUtil;
+  private final Consumer<Artifact> prefetch;
 
   private record LatestArtifact(Set<NamedArtifact> artifacts, Instant expiry) {
   }
 
-  private final Map<Workflow, LatestArtifact> artifactCache = new HashMap<>();
+  /**
+   * A lookup that is shared by everyone who wants its result
+   *
+   * @param <T>    The result type
+   * @param result The result, which will be <code>null</code> or exceptional on
+   *               failure
+   * @param expiry When the result goes stale
+   */
+  private record Lookup<T>(CompletableFuture<T> result, Instant expiry) {
+
+    /**
+     * @param now The current time
+     * @return <code>true</code> if the lookup is still worth sharing
+     */
+    boolean current( Instant now ) {
+      return expiry.isAfter( now )
+          && !(result.isDone() && (result.isCompletedExceptionally() || result.join() == null));
+    }
+  }
+
+  private final Map<Workflow, LatestArtifact> artifactCache = new ConcurrentHashMap<>();
+  /**
+   * Default branches hardly ever change, so we check them much less often than we
+   * check for new runs
+   */
+  private final Map<Repository, Lookup<Branch>> branchCache = new ConcurrentHashMap<>();
+  /**
+   * The workflow lookups that are in flight, so concurrent requests for a
+   * workflow don't repeat them
+   */
+  private final Map<Workflow, CompletableFuture<LatestArtifact>> lookups =
+      new ConcurrentHashMap<>();
 
   /**
-   * @param repos         The set of repos that we allow ourselves to serve from
-   * @param client        How to interact with github
-   * @param cacheValidity How long latest artifact IDs will be cached for
+   * @param repos          The set of repos that we allow ourselves to serve from
+   * @param client         How to interact with github
+   * @param cacheValidity  How long latest artifact IDs will be cached for
+   * @param branchValidity How long the default branches of repositories will be
+   *                       cached for
+   * @param prefetch       Will be given the latest artifacts when we find them,
+   *                       so they can be downloaded before they're requested
    */
   public LatestArtifactHandler( Set<Repository> repos, GithubApiClient client,
-      Duration cacheValidity, ServeUtil serveUtil ) {
+      Duration cacheValidity, Duration branchValidity, ServeUtil serveUtil,
+      Consumer<Artifact> prefetch ) {
     this.repos = repos;
     this.client = client;
     this.cacheValidity = cacheValidity;
+    this.branchValidity = branchValidity;
     this.serveUtil = serveUtil;
+    this.prefetch = prefetch;
   }
 
   @Override
@@ -92,19 +138,25 @@ class LatestArtifactHandler implements HttpHandler {
       }
       Workflow workflow = new Workflow( repo, path.poll() );
 
-      LatestArtifact latest = getLatest( workflow );
+      String desired = path.poll();
+      LatestArtifact latest = getLatest( workflow, desired,
+          ( selected, expiry ) -> redirect( exchange, workflow, selected, expiry, path ) );
+      if( exchange.getResponseCode() != -1 ) {
+        // we found the desired artifact while the listing was still arriving
+        return;
+      }
+
       if( latest == null ) {
         serveUtil.showLinkForm( exchange, 502, "Failed to find latest artifacts of " + workflow );
         return;
       }
 
-      if( path.isEmpty() ) {
+      if( desired == null ) {
         // the path has no indication of which artifact we're interested in
         showArtifactLinks( exchange, 300, workflow, latest );
         return;
       }
 
-      String desired = path.poll();
       NamedArtifact selected = latest.artifacts().stream()
           .filter( a -> a.name().equals( desired ) )
           .findFirst()
@@ -116,15 +168,7 @@ class LatestArtifactHandler implements HttpHandler {
         return;
       }
 
-      Duration cacheLife = Duration.between( Instant.now(), latest.expiry() );
-      exchange.getResponseHeaders().add( "cache-control",
-          "public; immutable; max-age=" + cacheLife.getSeconds() );
-      serveUtil.redirect( exchange, String.format(
-          "/artifacts/%s/%s/%s/%s",
-          workflow.repo().owner(), workflow.repo().repo(), selected.artifact().id(),
-          // append the remaining path to the redirect so you can generate a stable link
-          // to a file within the latest artifact
-          path.stream().collect( joining( "/" ) ) ) );
+      redirect( exchange, workflow, selected, latest.expiry(), path );
     }
     catch( Exception e ) {
       LOG.error( "request handling failure!", e );
@@ -132,42 +176,145 @@ class LatestArtifactHandler implements HttpHandler {
     }
   }
 
+  private void redirect( HttpExchange exchange, Workflow workflow, NamedArtifact selected,
+      Instant expiry, Deque<String> path ) throws IOException {
+    Duration cacheLife = Duration.between( Instant.now(), expiry );
+    exchange.getResponseHeaders().add( "cache-control",
+        "public; immutable; max-age=" + cacheLife.getSeconds() );
+    serveUtil.redirect( exchange, String.format(
+        "/artifacts/%s/%s/%s/%s",
+        workflow.repo().owner(), workflow.repo().repo(), selected.artifact().id(),
+        // append the remaining path to the redirect so you can generate a stable link
+        // to a file within the latest artifact
+        path.stream().collect( joining( "/" ) ) ) );
+  }
+
+  /**
+   * Called when the desired artifact turns up in a listing
+   */
+  @FunctionalInterface
+  interface Found {
+    /**
+     * @param artifact The desired artifact
+     * @param expiry   When our knowledge of the artifact goes stale
+     * @throws IOException on failure
+     */
+    void found( NamedArtifact artifact, Instant expiry ) throws IOException;
+  }
+
   /**
    * The latest artifact probably won't change very often, so let's avoid hitting
-   * the API every time
+   * the API every time. Concurrent requests for a workflow share one lookup.
    *
    * @param workflow The workflow
+   * @param desired  The name of the artifact that we're interested in, or
+   *                 <code>null</code>
+   * @param found    Will be given the desired artifact as soon as it turns up in
+   *                 a fresh listing, without waiting for the rest of the listing
    * @return The latest set of artifacts from that workflow
+   * @throws IOException if the desired artifact can't be acted on
    */
-  public LatestArtifact getLatest( Workflow workflow ) {
+  public LatestArtifact getLatest( Workflow workflow, String desired, Found found )
+      throws IOException {
 
-    // prune the cache
+    // prune the caches
     Instant now = Instant.now();
     artifactCache.values().removeIf( v -> v.expiry.isBefore( now ) );
+    branchCache.values().removeIf( v -> !v.current( now ) );
 
     LatestArtifact cached = artifactCache.get( workflow );
     if( cached != null ) {
       LOG.debug( "using cached artifact for {}, valid until {}",
           workflow, cached.expiry );
+      return cached;
     }
-    else {
-      Branch defaultBranch = client.getDefaultBranch( workflow.repo() );
-      if( defaultBranch == null ) {
-        return null;
-      }
-      Run latest = client.getLatestRun( workflow, defaultBranch );
+
+    CompletableFuture<LatestArtifact> lookup = new CompletableFuture<>();
+    CompletableFuture<LatestArtifact> concurrent = lookups.putIfAbsent( workflow, lookup );
+    if( concurrent != null ) {
+      // someone else is already asking github, so we can just wait for their answer
+      LOG.debug( "awaiting concurrent lookup of {}", workflow );
+      return concurrent.join();
+    }
+
+    try {
+      Run latest = latestRun( workflow, now ).join();
       if( latest == null ) {
         return null;
       }
-      Set<NamedArtifact> artifacts = client.getArtifacts( latest );
-      if( artifacts == null ) {
+      Instant expiry = now.plus( cacheValidity );
+      Set<NamedArtifact> artifacts = new TreeSet<>( NamedArtifact.ORDER );
+      IOException failure = null;
+      try( Stream<NamedArtifact> listing = client.streamArtifacts( latest ) ) {
+        Iterator<NamedArtifact> arrivals = listing.iterator();
+        boolean seen = false;
+        while( arrivals.hasNext() ) {
+          NamedArtifact artifact = arrivals.next();
+          artifacts.add( artifact );
+          prefetch.accept( artifact.artifact() );
+          if( !seen && artifact.name().equals( desired ) ) {
+            seen = true;
+            try {
+              found.found( artifact, expiry );
+            }
+            catch( IOException e ) {
+              // that's our problem, not the problem of anyone waiting on the lookup
+              failure = e;
+            }
+          }
+        }
+      }
+      catch( UncheckedIOException e ) {
+        LOG.error( "Failed to find artifacts of {}", latest, e );
         return null;
       }
-      cached = new LatestArtifact( artifacts, now.plus( cacheValidity ) );
+      cached = new LatestArtifact( artifacts, expiry );
       artifactCache.put( workflow, cached );
+      lookup.complete( cached );
+      if( failure != null ) {
+        throw failure;
+      }
+      return cached;
+    }
+    finally {
+      // has no effect if we've succeeded
+      lookup.complete( null );
+      lookups.remove( workflow, lookup );
     }
+  }
+
+  /**
+   * Finds the latest run of a workflow on its default branch. The default branch
+   * is only looked up when our knowledge of it has gone stale.
+   *
+   * @param workflow The workflow
+   * @param now      The current time
+   * @return The latest run, or <code>null</code> on failure
+   */
+  private CompletableFuture<Run> latestRun( Workflow workflow, Instant now ) {
+    return defaultBranch( workflow.repo(), now )
+        .thenCompose( branch -> branch == null
+            ? CompletableFuture.completedFuture( null )
+            : client.getLatestRunAsync( workflow, branch ) )
+        .exceptionally( e -> {
+          LOG.error( "Failed to find latest run of {}", workflow, e );
+          return null;
+        } );
+  }
 
-    return cached;
+  /**
+   * @param repo The repository
+   * @param now  The current time
+   * @return The default branch of the repository, or <code>null</code> on failure
+   */
+  private CompletableFuture<Branch> defaultBranch( Repository repo, Instant now ) {
+    return branchCache.compute( repo, ( r, cached ) -> {
+      if( cached != null && cached.current( now ) ) {
+        LOG.debug( "using cached default branch for {}, valid until {}", r, cached.expiry() );
+        return cached;
+      }
+      return new Lookup<>( client.getDefaultBranchAsync( r ), now.plus( branchValidity ) );
+    } ).result();
   }
 
   private void showArtifactLinks( HttpExchange exchange, int status, Workflow workflow,
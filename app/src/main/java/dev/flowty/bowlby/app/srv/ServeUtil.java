@@ -155,6 +155,85 @@ class ServeUtil {
     }
   }
 
+  /**
+   * Determines if a client will accept a content coding
+   *
+   * @param acceptEncoding The value of the <code>accept-encoding</code> request
+   *                       header, or <code>null</code> if there was none
+   * @param coding         The content coding
+   * @return <code>true</code> if that coding is acceptable
+   */
+  public static boolean acceptsEncoding( String acceptEncoding, String coding ) {
+    if( acceptEncoding == null ) {
+      return false;
+    }
+    Boolean wildcard = null;
+    for( String element : acceptEncoding.split( "," ) ) {
+      String[] parts = element.split( ";" );
+      String name = parts[0].trim();
+      boolean accepted = true;
+      for( int i = 1; i < parts.length; i++ ) {
+        String[] param = parts[i].trim().split( "=", 2 );
+        if( param.length == 2 && "q".equalsIgnoreCase( param[0].trim() ) ) {
+          try {
+            accepted = Double.parseDouble( param[1].trim() ) > 0;
+          }
+          catch( NumberFormatException nfe ) {
+            accepted = false;
+          }
+        }
+      }
+      if( name.equalsIgnoreCase( coding ) ) {
+        return accepted;
+      }
+      if( "*".equals( name ) ) {
+        wildcard = accepted;
+      }
+    }
+    return Boolean.TRUE.equals( wildcard );
+  }
+
+  /**
+   * Builds a strong entity tag
+   *
+   * @param parts The values that identify the representation. These should not
+   *              contain <code>"</code> characters
+   * @return The entity tag
+   */
+  public static String etag( String... parts ) {
+    return "\"" + String.join( "-", parts ) + "\"";
+  }
+
+  /**
+   * Determines if an entity tag is listed in an <code>if-none-match</code>
+   * header. This uses the weak comparison, as is appropriate for that header.
+   *
+   * @param ifNoneMatch The value of the <code>if-none-match</code> request
+   *                    header, or <code>null</code> if there was none
+   * @param etag        The entity tag of the current representation, or
+   *                    <code>null</code> if there is none
+   * @return <code>true</code> if the header matches the tag
+   */
+  public static boolean etagMatches( String ifNoneMatch, String etag ) {
+    if( ifNoneMatch == null || etag == null ) {
+      return false;
+    }
+    if( "*".equals( ifNoneMatch.trim() ) ) {
+      return true;
+    }
+    String opaque = etag.startsWith( "W/" ) ? etag.substring( 2 ) : etag;
+    for( String candidate : ifNoneMatch.split( "," ) ) {
+      String c = candidate.trim();
+      if( c.startsWith( "W/" ) ) {
+        c = c.substring( 2 );
+      }
+      if( c.equals( opaque ) ) {
+        return true;
+      }
+    }
+    return false;
+  }
+
   /**
    * Serves the default bowlby page
    *
@@ -3,6 +3,7 @@ package dev.flowty.bowlby.app.srv;
 import java.io.IOException;
 import java.io.UncheckedIOException;
 import java.net.InetSocketAddress;
+import java.nio.file.Path;
 import java.time.Duration;
 import java.util.Set;
 import java.util.concurrent.Executors;
@@ -15,14 +16,26 @@ import com.sun.net.httpserver.HttpServer;
 import dev.flowty.bowlby.app.github.Artifacts;
 import dev.flowty.bowlby.app.github.Entity.Repository;
 import dev.flowty.bowlby.app.github.GithubApiClient;
+import dev.flowty.bowlby.app.zip.ZipArchive;
 
 /**
  * Provides the HTTP server by which artifacts are requested and served
  */
 public class Server {
   private static final Logger LOG = org.slf4j.LoggerFactory.getLogger( Server.class );
+  /**
+   * The number of artifact zips that we aim to keep open
+   */
+  private static final int OPEN_ZIP_CAPACITY = 64;
+  /**
+   * How long an artifact zip can go unused before we close it
+   */
+  private static final Duration OPEN_ZIP_IDLE = Duration.ofMinutes( 2 );
+
   private final HttpServer server;
   private final ServerListeners listeners = new ServerListeners();
+  private final HandlePool<Path, ZipArchive> zips = new HandlePool<>(
+      "zip", OPEN_ZIP_CAPACITY, OPEN_ZIP_IDLE );
 
   /**
    * Creates a new server
@@ -33,20 +46,31 @@ public class Server {
    * @param artifacts                   Manages artifact downloads
    * @param latestArtifactCacheDuration The minimum time between checks for the
    *                                    latest run of a workflow
+   * @param defaultBranchCacheDuration  The minimum time between checks for the
+   *                                    default branch of a repository
+   * @param prefetch                    Whether to download the latest artifacts
+   *                                    of a workflow as soon as we find them
    */
   @SuppressWarnings("resource")
   public Server( int port, Set<Repository> repos, GithubApiClient ghClient, Artifacts artifacts,
-      Duration latestArtifactCacheDuration, String contextPath ) {
+      Duration latestArtifactCacheDuration, Duration defaultBranchCacheDuration,
+      String contextPath, boolean prefetch ) {
     try {
       ServeUtil serveUtil = new ServeUtil( contextPath );
+      artifacts.withRemovalListener( zips::invalidate )
+          .withStatistics( zips );
       server = HttpServer.create( new InetSocketAddress( port ), 0 );
       server.setExecutor( Executors.newCachedThreadPool() );
       server.createContext( "/favicon.ico", listeners.wrap(
           new ResourceHandler( "/favicon.ico", "image/vnd.microsoft.icon", serveUtil ) ) );
       server.createContext( "/artifacts", listeners.wrap(
-          new ArtifactHandler( repos, artifacts, serveUtil ) ) );
+          new ArtifactHandler( repos, artifacts, zips, serveUtil ) ) );
       server.createContext( "/latest", listeners.wrap(
-          new LatestArtifactHandler( repos, ghClient, latestArtifactCacheDuration, serveUtil ) ) );
+          new LatestArtifactHandler( repos, ghClient, latestArtifactCacheDuration,
+              defaultBranchCacheDuration, serveUtil,
+              prefetch ? artifacts::prefetch : a -> {
+                // downloads wait for the first request
+              } ) ) );
       server.createContext( "/", listeners.wrap(
           new LinkHandler( serveUtil ) ) );
     }
@@ -84,6 +108,7 @@ public class Server {
    */
   public void stop() {
     server.stop( 0 );
-    LOG.info( "shut down" );
+    zips.close();
+    LOG.info( "shut down, {}", zips );
   }
 }
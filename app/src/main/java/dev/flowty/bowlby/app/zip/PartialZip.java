@@ -0,0 +1,366 @@
+package dev.flowty.bowlby.app.zip;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardOpenOption.READ;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import dev.flowty.bowlby.app.zip.ZipIndex.Entry;
+
+/**
+ * Tracks the entries of a zip file that is still being downloaded. The local
+ * file headers are parsed as the bytes arrive, so entries can be served as soon
+ * as their data is on disk rather than when the central directory finally turns
+ * up at the end of the file. Parsing can be done off the threads that deliver
+ * the download data, so it doesn't slow the download down.
+ */
+public class PartialZip {
+  private static final Logger LOG = LoggerFactory.getLogger( PartialZip.class );
+
+  private static final int LOC_SIG = 0x04034b50;
+  private static final int LOC_SIZE = 30;
+  private static final int DESCRIPTOR_SIG = 0x08074b50;
+  private static final int ZIP64_EXTRA = 0x0001;
+  private static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+  /**
+   * The general purpose flag that indicates the sizes and CRC follow the data
+   * rather than being in the local header
+   */
+  private static final int DESCRIPTOR_FLAG = 0x08;
+
+  private final Path zip;
+  private final Path part;
+  private final Executor parser;
+
+  /**
+   * The latest progress report
+   */
+  private final AtomicLong arrived = new AtomicLong();
+  /**
+   * Set while a parsing pass is scheduled or running
+   */
+  private final AtomicBoolean parsing = new AtomicBoolean();
+
+  /**
+   * The entries whose data is complete
+   */
+  private final Map<String, Entry> entries = new HashMap<>();
+  /**
+   * The number of contiguous bytes at the start of the file that are on disk
+   */
+  private long available = 0;
+  /**
+   * The offset of the next local file header
+   */
+  private long scan = 0;
+  /**
+   * The entry that we're inflating to find the end of, or <code>null</code>
+   */
+  private Entry pending;
+  private long pendingData;
+  private boolean pendingZip64;
+  private long inflatePosition;
+  private Inflater inflater;
+  private final byte[] discard = new byte[64 * 1024];
+
+  /**
+   * <code>true</code> once we've reached the central directory or something we
+   * can't parse
+   */
+  private boolean parsed = false;
+  /**
+   * <code>true</code> once the download is over
+   */
+  private boolean finished = false;
+  private FileChannel channel;
+
+  /**
+   * Creates a partial zip that parses on the threads that report progress
+   *
+   * @param zip  Where the zip file will be once it's complete
+   * @param part The file that the zip is being downloaded to
+   */
+  public PartialZip( Path zip, Path part ) {
+    this( zip, part, Runnable::run );
+  }
+
+  /**
+   * @param zip    Where the zip file will be once it's complete
+   * @param part   The file that the zip is being downloaded to
+   * @param parser Where to parse the downloaded data
+   */
+  public PartialZip( Path zip, Path part, Executor parser ) {
+    this.zip = zip;
+    this.part = part;
+    this.parser = parser;
+  }
+
+  /**
+   * Called as the download progresses. This only records the progress - the new
+   * data is parsed later by the parsing executor, with at most one pass in flight
+   * at a time.
+   *
+   * @param length The number of contiguous bytes at the start of the file that
+   *               are now on disk
+   */
+  public void advance( long length ) {
+    arrived.accumulateAndGet( length, Math::max );
+    if( !parsing.getAndSet( true ) ) {
+      parser.execute( this::parse );
+    }
+  }
+
+  /**
+   * Parses up to the latest progress report, and keeps going while more reports
+   * arrive
+   */
+  private void parse() {
+    long length;
+    do {
+      length = arrived.get();
+      parse( length );
+      parsing.set( false );
+      // progress that was reported while we were busy didn't schedule a pass
+    } while( arrived.get() > length && !parsing.getAndSet( true ) );
+  }
+
+  /**
+   * Parses the newly-arrived data
+   *
+   * @param length The number of contiguous bytes at the start of the file that
+   *               are now on disk
+   */
+  private synchronized void parse( long length ) {
+    if( finished || parsed || length <= available ) {
+      return;
+    }
+    available = length;
+    try {
+      if( channel == null ) {
+        channel = FileChannel.open( part, READ );
+      }
+      int before = entries.size();
+      while( !parsed && (pending != null ? inflate() : header()) ) {
+        // keep going while we're making progress
+      }
+      if( entries.size() > before ) {
+        notifyAll();
+      }
+    }
+    catch( IOException | DataFormatException e ) {
+      LOG.warn( "Abandoning early parse of {}", part, e );
+      parsed = true;
+    }
+  }
+
+  /**
+   * Attempts to parse the local file header at {@link #scan}
+   *
+   * @return <code>true</code> if we made progress
+   * @throws IOException on failure
+   */
+  private boolean header() throws IOException {
+    if( available < scan + LOC_SIZE ) {
+      return false;
+    }
+    ByteBuffer loc = ZipIndex.read( channel, scan, LOC_SIZE );
+    if( loc.getInt( 0 ) != LOC_SIG ) {
+      // we've reached the central directory
+      parsed = true;
+      return false;
+    }
+    int flags = loc.getShort( 6 ) & 0xFFFF;
+    int method = loc.getShort( 8 ) & 0xFFFF;
+    int dosTime = loc.getInt( 10 );
+    int crc = loc.getInt( 14 );
+    long compressedSize = loc.getInt( 18 ) & ZIP64_MAGIC;
+    long size = loc.getInt( 22 ) & ZIP64_MAGIC;
+    int nameLength = loc.getShort( 26 ) & 0xFFFF;
+    int extraLength = loc.getShort( 28 ) & 0xFFFF;
+    long data = scan + LOC_SIZE + nameLength + extraLength;
+    if( available < data ) {
+      return false;
+    }
+
+    ByteBuffer variable = ZipIndex.read( channel, scan + LOC_SIZE, nameLength + extraLength );
+    byte[] nameBytes = new byte[nameLength];
+    variable.get( 0, nameBytes );
+    String name = new String( nameBytes, UTF_8 );
+    while( name.startsWith( "/" ) ) {
+      name = name.substring( 1 );
+    }
+
+    // unlike the central directory, both zip64 sizes are present in the local
+    // header's extra field
+    boolean zip64 = false;
+    int extra = nameLength;
+    while( extra + 4 <= nameLength + extraLength ) {
+      int id = variable.getShort( extra ) & 0xFFFF;
+      int length = variable.getShort( extra + 2 ) & 0xFFFF;
+      if( id == ZIP64_EXTRA && length >= 16 ) {
+        zip64 = true;
+        size = variable.getLong( extra + 4 );
+        compressedSize = variable.getLong( extra + 12 );
+        break;
+      }
+      extra += 4 + length;
+    }
+
+    if( (flags & DESCRIPTOR_FLAG) == 0 ) {
+      if( available < data + compressedSize ) {
+        return false;
+      }
+      add( new Entry( name, scan, compressedSize, size, method, crc, dosTime ) );
+      scan = data + compressedSize;
+      return true;
+    }
+    if( method != Entry.DEFLATED ) {
+      // there's no way to tell where the data ends
+      LOG.debug( "Can't find the end of {} in {}", name, part );
+      parsed = true;
+      return false;
+    }
+    // we'll have to inflate the data to find where it ends
+    pending = new Entry( name, scan, 0, 0, method, 0, dosTime );
+    pendingData = data;
+    pendingZip64 = zip64;
+    inflatePosition = data;
+    if( inflater == null ) {
+      inflater = new Inflater( true );
+    }
+    else {
+      inflater.reset();
+    }
+    return true;
+  }
+
+  /**
+   * Feeds the available data of the {@link #pending} entry through the inflater,
+   * and reads the data descriptor once it's finished
+   *
+   * @return <code>true</code> if we completed the entry
+   * @throws IOException         on failure
+   * @throws DataFormatException if the entry data is not valid
+   */
+  private boolean inflate() throws IOException, DataFormatException {
+    while( !inflater.finished() ) {
+      if( inflater.needsInput() ) {
+        if( inflatePosition >= available ) {
+          return false;
+        }
+        int length = (int) Math.min( discard.length, available - inflatePosition );
+        ByteBuffer input = ZipIndex.read( channel, inflatePosition, length );
+        inflater.setInput( input );
+        inflatePosition += length;
+      }
+      if( inflater.inflate( discard ) == 0 && inflater.needsDictionary() ) {
+        throw new DataFormatException( "Unexpected dictionary requirement" );
+      }
+    }
+
+    long descriptor = pendingData + inflater.getBytesRead();
+    int sizeLength = pendingZip64 ? 8 : 4;
+    if( available < descriptor + 4 ) {
+      return false;
+    }
+    if( ZipIndex.read( channel, descriptor, 4 ).getInt( 0 ) == DESCRIPTOR_SIG ) {
+      // the signature is optional
+      descriptor += 4;
+    }
+    int descriptorLength = 4 + 2 * sizeLength;
+    if( available < descriptor + descriptorLength ) {
+      return false;
+    }
+    int crc = ZipIndex.read( channel, descriptor, 4 ).getInt( 0 );
+    add( new Entry( pending.name(), pending.headerOffset(),
+        inflater.getBytesRead(), inflater.getBytesWritten(),
+        pending.method(), crc, pending.dosTime() ) );
+    scan = descriptor + descriptorLength;
+    pending = null;
+    return true;
+  }
+
+  private void add( Entry entry ) {
+    if( !entry.name().isEmpty() ) {
+      entries.put( entry.name(), entry );
+    }
+  }
+
+  /**
+   * Called when the download is over, whether it succeeded or not. Anyone still
+   * waiting for an entry will give up.
+   */
+  public synchronized void finish() {
+    if( !finished ) {
+      finished = true;
+      if( inflater != null ) {
+        inflater.end();
+      }
+      try {
+        if( channel != null ) {
+          channel.close();
+        }
+      }
+      catch( IOException e ) {
+        LOG.warn( "Failed to close {}", part, e );
+      }
+      notifyAll();
+    }
+  }
+
+  /**
+   * Waits for an entry's data to be completely on disk
+   *
+   * @param name The entry name
+   * @return The entry, or <code>null</code> if the download finished without it
+   *         becoming available
+   * @throws InterruptedException if interrupted while waiting
+   */
+  public synchronized Entry await( String name ) throws InterruptedException {
+    while( !entries.containsKey( name ) && !finished ) {
+      wait();
+    }
+    return entries.get( name );
+  }
+
+  /**
+   * @return The number of entries that are available
+   */
+  public synchronized int size() {
+    return entries.size();
+  }
+
+  /**
+   * Opens the available entries for reading
+   *
+   * @return An archive of the entries that are available
+   * @throws IOException on failure
+   */
+  public ZipArchive open() throws IOException {
+    ZipIndex index;
+    synchronized( this ) {
+      index = ZipIndex.of( entries.values() );
+    }
+    try {
+      return ZipArchive.open( zip, part, index );
+    }
+    catch( NoSuchFileException e ) {
+      // the download completed while we were working
+      return ZipArchive.open( zip, zip, index );
+    }
+  }
+}
@@ -0,0 +1,289 @@
+package dev.flowty.bowlby.app.zip;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.ZipException;
+
+import dev.flowty.bowlby.app.zip.ZipIndex.Entry;
+
+/**
+ * Provides random access to a zip file that we don't have, by fetching only the
+ * parts of it that we need. The central directory is fetched from the end of
+ * the file first, and then the data of individual entries as they're requested.
+ * Everything that we fetch is written at its proper position in a sparse local
+ * copy of the file, from which entries are read as usual.
+ */
+public class RemoteZip implements Closeable {
+
+  /**
+   * Where the bytes of the zip come from
+   */
+  public interface Source {
+
+    /**
+     * @return The size of the remote file
+     * @throws IOException on failure
+     */
+    long size() throws IOException;
+
+    /**
+     * Fetches a range of the remote file
+     *
+     * @param first  The index of the first byte to fetch
+     * @param last   The index of the last byte to fetch, inclusive
+     * @param target Where to write the bytes, at the same positions that they
+     *               occupy in the remote file. This will already be the same size
+     *               as the remote file.
+     * @throws IOException on failure
+     */
+    void fetch( long first, long last, FileChannel target ) throws IOException;
+  }
+
+  private static final int LOC_SIG = 0x04034b50;
+  private static final int LOC_SIZE = 30;
+  /**
+   * The end of central directory record, its maximum comment, and the zip64
+   * locator and record that precede it
+   */
+  private static final int TAIL_SIZE = 22 + 0xFFFF + 20 + 56;
+  /**
+   * The size of extra field that we expect in local headers. We fetch this much
+   * along with the entry data to save a round trip in the common case.
+   */
+  private static final int EXTRA_ALLOWANCE = 1024;
+
+  private final Source source;
+  private final Path zip;
+  private final Path sparse;
+  private final long minimumSize;
+
+  private long size = -1;
+  private ZipIndex index;
+  private FileChannel channel;
+
+  /**
+   * The regions of the file that we've fetched, mapping from start offset to end
+   * offset, exclusive
+   */
+  private final TreeMap<Long, Long> present = new TreeMap<>();
+  /**
+   * Guards the fetching of entries, keyed on entry header offset
+   */
+  private final Map<Long, Object> fetching = new ConcurrentHashMap<>();
+  private final AtomicLong fetched = new AtomicLong();
+  private volatile long lastAccess = System.currentTimeMillis();
+
+  /**
+   * @param source      Where the bytes come from
+   * @param zip         Where the zip file will be if we download all of it, which
+   *                    determines where inflated entries are kept
+   * @param sparse      Where to keep the parts of the file that we've fetched
+   * @param minimumSize The size below which it isn't worth reading the file
+   *                    remotely
+   */
+  public RemoteZip( Source source, Path zip, Path sparse, long minimumSize ) {
+    this.source = source;
+    this.zip = zip;
+    this.sparse = sparse;
+    this.minimumSize = minimumSize;
+  }
+
+  /**
+   * Gets the index of the remote zip, fetching the central directory if we
+   * haven't already
+   *
+   * @return The index, or <code>null</code> if the file is too small to be worth
+   *         reading remotely
+   * @throws IOException on failure
+   */
+  public synchronized ZipIndex index() throws IOException {
+    lastAccess = System.currentTimeMillis();
+    if( index == null ) {
+      if( size == -1 ) {
+        size = source.size();
+      }
+      if( size < minimumSize ) {
+        return null;
+      }
+      if( channel == null ) {
+        Files.createDirectories( sparse.getParent() );
+        channel = FileChannel.open( sparse, CREATE, READ, WRITE, TRUNCATE_EXISTING );
+        // the rest of the file stays as holes until we fetch it
+        channel.write( ByteBuffer.allocate( 1 ), size - 1 );
+      }
+      fetch( Math.max( 0, size - TAIL_SIZE ), size );
+      ZipIndex.Directory directory = ZipIndex.directory( channel );
+      fetch( directory.offset(), directory.offset() + directory.size() );
+      index = ZipIndex.read( channel );
+    }
+    return index;
+  }
+
+  /**
+   * Makes sure that an entry's data is present locally
+   *
+   * @param entry An entry from the {@link #index()}
+   * @throws IOException on failure
+   */
+  public void fetch( Entry entry ) throws IOException {
+    lastAccess = System.currentTimeMillis();
+    synchronized( fetching.computeIfAbsent( entry.headerOffset(), k -> new Object() ) ) {
+      long header = entry.headerOffset();
+      // the local header's name and extra field lengths can differ from those in
+      // the central directory, so we can only guess at where the data ends
+      fetch( header, Math.min( size, header + LOC_SIZE
+          + entry.name().getBytes( UTF_8 ).length + EXTRA_ALLOWANCE
+          + entry.compressedSize() ) );
+      ByteBuffer loc = ZipIndex.read( channel, header, LOC_SIZE );
+      if( loc.getInt( 0 ) != LOC_SIG ) {
+        throw new ZipException( "Bad local header for " + entry.name() );
+      }
+      long data = header + LOC_SIZE
+          + (loc.getShort( 26 ) & 0xFFFF) + (loc.getShort( 28 ) & 0xFFFF);
+      // in case our guess was too small
+      fetch( data, data + entry.compressedSize() );
+    }
+  }
+
+  /**
+   * Fetches whatever we don't already have of a region of the file
+   *
+   * @param from The start of the region
+   * @param to   The end of the region, exclusive
+   * @throws IOException on failure
+   */
+  private void fetch( long from, long to ) throws IOException {
+    for( Region gap : missing( from, to ) ) {
+      source.fetch( gap.from(), gap.to() - 1, channel );
+      fetched.addAndGet( gap.to() - gap.from() );
+      add( gap );
+    }
+  }
+
+  /**
+   * A region of the file
+   *
+   * @param from The start offset
+   * @param to   The end offset, exclusive
+   */
+  private record Region(long from, long to) {
+  }
+
+  /**
+   * @param from The start of a region
+   * @param to   The end of the region, exclusive
+   * @return The parts of that region that we haven't fetched
+   */
+  private List<Region> missing( long from, long to ) {
+    List<Region> gaps = new ArrayList<>();
+    synchronized( present ) {
+      long position = from;
+      Map.Entry<Long, Long> floor = present.floorEntry( position );
+      if( floor != null && floor.getValue() > position ) {
+        position = Math.min( floor.getValue(), to );
+      }
+      for( Map.Entry<Long, Long> region : present.subMap( position, to ).entrySet() ) {
+        if( region.getKey() > position ) {
+          gaps.add( new Region( position, region.getKey() ) );
+        }
+        position = Math.max( position, region.getValue() );
+      }
+      if( position < to ) {
+        gaps.add( new Region( position, to ) );
+      }
+    }
+    return gaps;
+  }
+
+  /**
+   * Records that we've fetched a region, merging it with any that it touches
+   *
+   * @param region The fetched region
+   */
+  private void add( Region region ) {
+    synchronized( present ) {
+      long from = region.from();
+      long to = region.to();
+      Map.Entry<Long, Long> floor = present.floorEntry( from );
+      if( floor != null && floor.getValue() >= from ) {
+        from = floor.getKey();
+        to = Math.max( to, floor.getValue() );
+      }
+      Map.Entry<Long, Long> next;
+      while( (next = present.ceilingEntry( from )) != null && next.getKey() <= to ) {
+        to = Math.max( to, next.getValue() );
+        present.remove( next.getKey() );
+      }
+      present.put( from, to );
+    }
+  }
+
+  /**
+   * Opens the fetched parts of the zip for reading. Only the entries that have
+   * been {@link #fetch(Entry) fetched} can be read.
+   *
+   * @return The archive
+   * @throws IOException on failure
+   */
+  public ZipArchive open() throws IOException {
+    ZipIndex idx = index();
+    try {
+      return ZipArchive.open( zip, sparse, idx );
+    }
+    catch( NoSuchFileException e ) {
+      // the complete zip was downloaded while we were working
+      return ZipArchive.open( zip, zip, idx );
+    }
+  }
+
+  /**
+   * @return The size of the remote file, or -1 if we don't know it yet
+   */
+  public synchronized long size() {
+    return size;
+  }
+
+  /**
+   * @return The number of bytes that we've fetched
+   */
+  public long fetched() {
+    return fetched.get();
+  }
+
+  /**
+   * @return When we were last asked for something, in epoch milliseconds
+   */
+  public long lastAccess() {
+    return lastAccess;
+  }
+
+  /**
+   * Discards the parts of the file that we've fetched. Entries that have been
+   * inflated to disk are left in place - it's up to the caller to adopt or delete
+   * them.
+   */
+  @Override
+  public synchronized void close() throws IOException {
+    if( channel != null ) {
+      channel.close();
+    }
+    Files.deleteIfExists( sparse );
+  }
+}
@@ -0,0 +1,440 @@
+package dev.flowty.bowlby.app.zip;
+
+import static java.nio.file.StandardOpenOption.READ;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.ObjLongConsumer;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import dev.flowty.bowlby.app.zip.ZipIndex.Entry;
+
+/**
+ * An open zip file and its entry index. Entry content is read with positional
+ * reads, so a single instance can safely serve many concurrent readers.
+ */
+public class ZipArchive implements Closeable {
+  private static final Logger LOG = LoggerFactory.getLogger( ZipArchive.class );
+
+  private static final int LOC_SIG = 0x04034b50;
+  private static final int LOC_SIZE = 30;
+
+  /**
+   * A minimal gzip member header: magic, the deflate method, no flags, no
+   * modification time, no extra flags, unknown OS
+   */
+  private static final byte[] GZIP_HEADER = {
+      0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, (byte) 0xff };
+  /**
+   * CRC32 and uncompressed size
+   */
+  private static final int GZIP_TRAILER_SIZE = 8;
+
+  /**
+   * Deflated entries at least this big are inflated to disk on their first
+   * partial read, so later reads can seek rather than inflating everything that
+   * precedes the requested range
+   */
+  static final long INFLATE_THRESHOLD = 1024 * 1024;
+
+  private final Path zip;
+  private final FileChannel channel;
+  private final ZipIndex index;
+  /**
+   * Guards the inflation of entries to disk, keyed on entry header offset
+   */
+  private final Map<Long, Object> inflating = new ConcurrentHashMap<>();
+  private volatile ObjLongConsumer<Path> inflationListener = ( zip, bytes ) -> {
+    // nobody is interested
+  };
+
+  private ZipArchive( Path zip, FileChannel channel, ZipIndex index ) {
+    this.zip = zip;
+    this.channel = channel;
+    this.index = index;
+  }
+
+  /**
+   * Opens a zip file. The persisted index will be used if it exists, otherwise
+   * the zip's central directory will be parsed and the index persisted.
+   *
+   * @param zip The zip file
+   * @return The open archive
+   * @throws IOException on failure
+   */
+  @SuppressWarnings("resource")
+  public static ZipArchive open( Path zip ) throws IOException {
+    FileChannel channel = FileChannel.open( zip, READ );
+    try {
+      Path indexFile = indexPath( zip );
+      ZipIndex index = null;
+      if( Files.exists( indexFile ) ) {
+        try {
+          index = ZipIndex.load( indexFile );
+        }
+        catch( IOException e ) {
+          LOG.warn( "Rebuilding bad index {}", indexFile, e );
+        }
+      }
+      if( index == null ) {
+        index = ZipIndex.read( channel );
+        index.write( indexFile );
+      }
+      return new ZipArchive( zip, channel, index );
+    }
+    catch( IOException | RuntimeException e ) {
+      channel.close();
+      throw e;
+    }
+  }
+
+  /**
+   * Opens a zip file with a known index
+   *
+   * @param zip   The zip file, which determines where inflated entries are kept
+   * @param data  The file that actually holds the zip data
+   * @param index The entries to expose
+   * @return The open archive
+   * @throws IOException on failure
+   */
+  static ZipArchive open( Path zip, Path data, ZipIndex index ) throws IOException {
+    return new ZipArchive( zip, FileChannel.open( data, READ ), index );
+  }
+
+  /**
+   * Sets the inflation listener
+   *
+   * @param listener will be supplied with the zip file and the size of the copy
+   *                 whenever an entry is inflated to disk
+   * @return <code>this</code>
+   */
+  public ZipArchive withInflationListener( ObjLongConsumer<Path> listener ) {
+    inflationListener = listener;
+    return this;
+  }
+
+  /**
+   * Parses a zip's central directory and persists the resulting index
+   *
+   * @param zip The zip file
+   * @return The index
+   * @throws IOException on failure
+   */
+  public static ZipIndex index( Path zip ) throws IOException {
+    ZipIndex index = ZipIndex.read( zip );
+    index.write( indexPath( zip ) );
+    return index;
+  }
+
+  /**
+   * @param zip A zip file
+   * @return The path of the persisted index for that zip
+   */
+  public static Path indexPath( Path zip ) {
+    String name = zip.getFileName().toString();
+    if( name.endsWith( ".zip" ) ) {
+      name = name.substring( 0, name.length() - ".zip".length() );
+    }
+    return zip.resolveSibling( name + ".idx" );
+  }
+
+  /**
+   * @param zip A zip file
+   * @return The directory that holds inflated copies of that zip's entries
+   */
+  public static Path inflatedPath( Path zip ) {
+    Path idx = indexPath( zip );
+    String name = idx.getFileName().toString();
+    return zip.resolveSibling( name.substring( 0, name.length() - ".idx".length() ) + ".inflated" );
+  }
+
+  /**
+   * Deletes a zip file along with its index and inflated entries
+   *
+   * @param zip The zip file
+   * @throws IOException on failure
+   */
+  public static void delete( Path zip ) throws IOException {
+    Files.deleteIfExists( zip );
+    Files.deleteIfExists( indexPath( zip ) );
+    Path inflated = inflatedPath( zip );
+    if( Files.exists( inflated ) ) {
+      try( Stream<Path> files = Files.walk( inflated ) ) {
+        for( Path file : files.sorted( Comparator.reverseOrder() ).toList() ) {
+          Files.deleteIfExists( file );
+        }
+      }
+    }
+  }
+
+  /**
+   * @return The entry index
+   */
+  public ZipIndex index() {
+    return index;
+  }
+
+  /**
+   * Finds where an entry's data starts. This requires a read of the entry's local
+   * header, as the size of that is not recorded in the central directory.
+   *
+   * @param entry The entry
+   * @return The offset of the entry's data in the zip file
+   * @throws IOException on failure
+   */
+  public long dataOffset( Entry entry ) throws IOException {
+    ByteBuffer loc = ZipIndex.read( channel, entry.headerOffset(), LOC_SIZE );
+    if( loc.getInt( 0 ) != LOC_SIG ) {
+      throw new ZipException( "Bad local header for " + entry.name() );
+    }
+    int nameLength = loc.getShort( 26 ) & 0xFFFF;
+    int extraLength = loc.getShort( 28 ) & 0xFFFF;
+    return entry.headerOffset() + LOC_SIZE + nameLength + extraLength;
+  }
+
+  /**
+   * Opens an entry's content
+   *
+   * @param entry The entry
+   * @return A stream of the entry's uncompressed content
+   * @throws IOException on failure
+   */
+  public InputStream open( Entry entry ) throws IOException {
+    InputStream raw = raw( entry );
+    if( entry.method() == Entry.STORED ) {
+      return raw;
+    }
+    if( entry.method() == Entry.DEFLATED ) {
+      Inflater inflater = new Inflater( true );
+      return new InflaterInputStream( raw, inflater, 8192 ) {
+        private boolean closed = false;
+
+        @Override
+        public void close() throws IOException {
+          if( !closed ) {
+            closed = true;
+            super.close();
+            inflater.end();
+          }
+        }
+      };
+    }
+    throw new ZipException(
+        "Unsupported compression method " + entry.method() + " for " + entry.name() );
+  }
+
+  /**
+   * Opens an entry's data as it is stored in the zip
+   *
+   * @param entry The entry
+   * @return A stream of the entry's data, which may be compressed
+   * @throws IOException on failure
+   */
+  public InputStream raw( Entry entry ) throws IOException {
+    return new RegionInputStream( channel, dataOffset( entry ), entry.compressedSize() );
+  }
+
+  /**
+   * Copies part of an entry's content to a stream. Stored entries are copied
+   * directly from the zip. Large deflated entries are inflated to disk in their
+   * entirety on first access and copied from there, smaller ones are inflated up
+   * to the end of the requested range.
+   *
+   * @param entry  The entry
+   * @param offset The offset of the first byte to copy
+   * @param count  The number of bytes to copy
+   * @param target Where to copy the content to
+   * @return The number of bytes copied
+   * @throws IOException on failure
+   */
+  public long transfer( Entry entry, long offset, long count, OutputStream target )
+      throws IOException {
+    if( offset < 0 || count < 0 || offset + count > entry.size() ) {
+      throw new IllegalArgumentException( String.format(
+          "Range %s+%s is outside of %s bytes of %s", offset, count, entry.size(), entry.name() ) );
+    }
+    if( entry.method() == Entry.STORED ) {
+      return copy( channel, dataOffset( entry ) + offset, count, target, entry );
+    }
+    if( entry.size() >= INFLATE_THRESHOLD ) {
+      try( FileChannel inflated = FileChannel.open( inflate( entry ), READ ) ) {
+        return copy( inflated, offset, count, target, entry );
+      }
+    }
+    try( InputStream content = open( entry ) ) {
+      content.skipNBytes( offset );
+      byte[] buff = new byte[(int) Math.min( count, 64 * 1024 )];
+      long remaining = count;
+      while( remaining > 0 ) {
+        int read = content.read( buff, 0, (int) Math.min( remaining, buff.length ) );
+        if( read == -1 ) {
+          throw new EOFException( "Truncated data for " + entry.name() );
+        }
+        target.write( buff, 0, read );
+        remaining -= read;
+      }
+      return count;
+    }
+  }
+
+  private static long copy( FileChannel source, long position, long count,
+      OutputStream target, Entry entry ) throws IOException {
+    byte[] buff = new byte[(int) Math.min( count, 64 * 1024 )];
+    long remaining = count;
+    while( remaining > 0 ) {
+      int read = source.read(
+          ByteBuffer.wrap( buff, 0, (int) Math.min( remaining, buff.length ) ),
+          position + count - remaining );
+      if( read <= 0 ) {
+        throw new EOFException( "Truncated data for " + entry.name() );
+      }
+      target.write( buff, 0, read );
+      remaining -= read;
+    }
+    return count;
+  }
+
+  /**
+   * Makes sure that an inflated copy of an entry exists on disk
+   *
+   * @param entry A deflated entry
+   * @return The path to the inflated copy of that entry
+   * @throws IOException on failure
+   */
+  private Path inflate( Entry entry ) throws IOException {
+    Path dir = inflatedPath( zip );
+    Path file = dir.resolve( String.valueOf( entry.headerOffset() ) );
+    synchronized( inflating.computeIfAbsent( entry.headerOffset(), k -> new Object() ) ) {
+      if( Files.exists( file ) ) {
+        return file;
+      }
+      Files.createDirectories( dir );
+      Path tmp = Files.createTempFile( dir, file.getFileName().toString(), ".part" );
+      try {
+        CRC32 crc = new CRC32();
+        try( InputStream content = new CheckedInputStream( open( entry ), crc ) ) {
+          long size = Files.copy( content, tmp, StandardCopyOption.REPLACE_EXISTING );
+          if( size != entry.size() || (int) crc.getValue() != entry.crc() ) {
+            throw new ZipException( "Corrupt data for " + entry.name() );
+          }
+        }
+        Files.move( tmp, file, StandardCopyOption.ATOMIC_MOVE );
+        LOG.debug( "Inflated {} from {}", entry.name(), zip );
+        inflationListener.accept( zip, entry.size() );
+        return file;
+      }
+      finally {
+        Files.deleteIfExists( tmp );
+      }
+    }
+  }
+
+  /**
+   * Frames a deflated entry's data as a gzip stream, without decompressing it.
+   * The zip entry already holds everything gzip needs: the raw deflate data, the
+   * CRC32 of the content and its size.
+   *
+   * @param entry A {@link Entry#DEFLATED} entry
+   * @return A gzip stream of the entry's content
+   * @throws IOException on failure
+   * @see #gzipLength(Entry)
+   */
+  public InputStream gzip( Entry entry ) throws IOException {
+    if( entry.method() != Entry.DEFLATED ) {
+      throw new ZipException( entry.name() + " is not deflated" );
+    }
+    ByteBuffer trailer = ByteBuffer.allocate( GZIP_TRAILER_SIZE )
+        .order( ByteOrder.LITTLE_ENDIAN )
+        .putInt( entry.crc() )
+        .putInt( (int) entry.size() );
+    return new SequenceInputStream( Collections.enumeration( List.of(
+        new ByteArrayInputStream( GZIP_HEADER ),
+        raw( entry ),
+        new ByteArrayInputStream( trailer.array() ) ) ) );
+  }
+
+  /**
+   * @param entry A {@link Entry#DEFLATED} entry
+   * @return The number of bytes in the stream that {@link #gzip(Entry)} will
+   *         produce for that entry
+   */
+  public static long gzipLength( Entry entry ) {
+    return GZIP_HEADER.length + entry.compressedSize() + GZIP_TRAILER_SIZE;
+  }
+
+  @Override
+  public void close() throws IOException {
+    channel.close();
+  }
+
+  /**
+   * Reads a region of a file via positional reads, so it doesn't disturb other
+   * readers of the same channel
+   */
+  private static class RegionInputStream extends InputStream {
+    private final FileChannel channel;
+    private long position;
+    private final long end;
+
+    RegionInputStream( FileChannel channel, long position, long length ) {
+      this.channel = channel;
+      this.position = position;
+      end = position + length;
+    }
+
+    @Override
+    public int read() throws IOException {
+      byte[] b = new byte[1];
+      return read( b, 0, 1 ) == -1 ? -1 : b[0] & 0xFF;
+    }
+
+    @Override
+    public int read( byte[] b, int off, int len ) throws IOException {
+      if( position >= end ) {
+        return -1;
+      }
+      int toRead = (int) Math.min( len, end - position );
+      int read = channel.read( ByteBuffer.wrap( b, off, toRead ), position );
+      if( read > 0 ) {
+        position += read;
+      }
+      return read;
+    }
+
+    @Override
+    public long skip( long n ) {
+      long skipped = Math.max( 0, Math.min( n, end - position ) );
+      position += skipped;
+      return skipped;
+    }
+
+    @Override
+    public int available() {
+      return (int) Math.min( Integer.MAX_VALUE, end - position );
+    }
+  }
+}
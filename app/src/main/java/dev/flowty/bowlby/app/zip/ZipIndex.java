@@ -0,0 +1,399 @@
+package dev.flowty.bowlby.app.zip;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.READ;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.zip.ZipException;
+
+/**
+ * A sorted index of the entries in a zip file, built by parsing the zip's
+ * central directory. The index can be persisted in a compact binary form
+ * alongside the zip so that we never have to parse the central directory again.
+ */
+public final class ZipIndex {
+
+  /**
+   * Identifies our persisted index format
+   */
+  private static final byte[] MAGIC = "BWLZIX01".getBytes( UTF_8 );
+
+  private static final int EOCD_SIG = 0x06054b50;
+  private static final int EOCD_SIZE = 22;
+  private static final int ZIP64_LOCATOR_SIG = 0x07064b50;
+  private static final int ZIP64_LOCATOR_SIZE = 20;
+  private static final int ZIP64_EOCD_SIG = 0x06064b50;
+  private static final int CEN_SIG = 0x02014b50;
+  private static final int CEN_SIZE = 46;
+  private static final int ZIP64_EXTRA = 0x0001;
+  private static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+
+  /**
+   * A single entry in a zip file
+   *
+   * @param name           The entry name, which will end with <code>/</code> for
+   *                       directory entries
+   * @param headerOffset   The offset of the entry's local file header in the zip
+   * @param compressedSize The number of bytes of entry data in the zip
+   * @param size           The size of the uncompressed entry data
+   * @param method         The compression method
+   * @param crc            The CRC-32 of the uncompressed data
+   * @param dosTime        The last-modified time, in MS-DOS format
+   */
+  public record Entry(String name, long headerOffset, long compressedSize, long size,
+      int method, int crc, int dosTime) {
+
+    /**
+     * The compression method for uncompressed entries
+     */
+    public static final int STORED = 0;
+    /**
+     * The compression method for deflate-compressed entries
+     */
+    public static final int DEFLATED = 8;
+
+    /**
+     * @return <code>true</code> if this is a directory entry
+     */
+    public boolean isDirectory() {
+      return name.endsWith( "/" );
+    }
+  }
+
+  private final Entry[] entries;
+
+  private ZipIndex( Entry[] entries ) {
+    this.entries = entries;
+    Arrays.sort( this.entries, Comparator.comparing( Entry::name ) );
+  }
+
+  /**
+   * @param entries Some zip entries
+   * @return An index of those entries
+   */
+  static ZipIndex of( Collection<Entry> entries ) {
+    return new ZipIndex( entries.toArray( Entry[]::new ) );
+  }
+
+  /**
+   * @return The number of entries in the zip
+   */
+  public int size() {
+    return entries.length;
+  }
+
+  /**
+   * Finds an entry by name
+   *
+   * @param name The entry name, with no leading <code>/</code>
+   * @return The entry, or <code>null</code> if there is no such entry
+   */
+  public Entry find( String name ) {
+    int idx = search( name );
+    return idx >= 0 ? entries[idx] : null;
+  }
+
+  /**
+   * Determines if a path is a directory. Zip files do not always have explicit
+   * directory entries, so any path that is a prefix of an entry name counts.
+   *
+   * @param path A path, with no leading or trailing <code>/</code>. The empty
+   *             string denotes the root directory
+   * @return <code>true</code> if that path is a directory in the zip
+   */
+  public boolean isDirectory( String path ) {
+    if( path.isEmpty() ) {
+      return true;
+    }
+    String prefix = path + "/";
+    int idx = insertionPoint( prefix );
+    return idx < entries.length && entries[idx].name().startsWith( prefix );
+  }
+
+  /**
+   * Lists the contents of a directory
+   *
+   * @param path A directory path, with no leading or trailing <code>/</code>. The
+   *             empty string denotes the root directory
+   * @return The names of the files and subdirectories in that directory, in
+   *         order. Subdirectory names have a trailing <code>/</code>
+   */
+  public Set<String> list( String path ) {
+    String prefix = path.isEmpty() ? "" : path + "/";
+    Set<String> children = new TreeSet<>(
+        Comparator.comparing( ( String c ) -> c.endsWith( "/" )
+            ? c.substring( 0, c.length() - 1 )
+            : c )
+            .thenComparing( Comparator.naturalOrder() ) );
+    for( int i = insertionPoint( prefix ); i < entries.length
+        && entries[i].name().startsWith( prefix ); i++ ) {
+      String remainder = entries[i].name().substring( prefix.length() );
+      int slash = remainder.indexOf( '/' );
+      if( slash == -1 && !remainder.isEmpty() ) {
+        children.add( remainder );
+      }
+      else if( slash > 0 ) {
+        children.add( remainder.substring( 0, slash + 1 ) );
+      }
+    }
+    return children;
+  }
+
+  private int search( String name ) {
+    return Arrays.binarySearch( entries, new Entry( name, 0, 0, 0, 0, 0, 0 ),
+        Comparator.comparing( Entry::name ) );
+  }
+
+  private int insertionPoint( String name ) {
+    int idx = search( name );
+    return idx >= 0 ? idx : -idx - 1;
+  }
+
+  /**
+   * Builds an index by parsing the central directory of a zip file
+   *
+   * @param zip The zip file
+   * @return The index
+   * @throws IOException if the zip cannot be read or is malformed
+   */
+  public static ZipIndex read( Path zip ) throws IOException {
+    try( FileChannel channel = FileChannel.open( zip, READ ) ) {
+      return read( channel );
+    }
+  }
+
+  /**
+   * Builds an index by parsing the central directory of a zip file
+   *
+   * @param zip The zip file
+   * @return The index
+   * @throws IOException if the zip cannot be read or is malformed
+   */
+  public static ZipIndex read( FileChannel zip ) throws IOException {
+    Directory directory = directory( zip );
+    ByteBuffer cen = read( zip, directory.offset(), (int) directory.size() );
+    long count = directory.count();
+    List<Entry> entries = new ArrayList<>();
+    int pos = 0;
+    for( long i = 0; i < count; i++ ) {
+      if( pos + CEN_SIZE > cen.limit() || cen.getInt( pos ) != CEN_SIG ) {
+        throw new ZipException( "Bad central directory entry " + i );
+      }
+      int method = cen.getShort( pos + 10 ) & 0xFFFF;
+      int dosTime = cen.getInt( pos + 12 );
+      int crc = cen.getInt( pos + 16 );
+      long compressedSize = cen.getInt( pos + 20 ) & ZIP64_MAGIC;
+      long size = cen.getInt( pos + 24 ) & ZIP64_MAGIC;
+      int nameLength = cen.getShort( pos + 28 ) & 0xFFFF;
+      int extraLength = cen.getShort( pos + 30 ) & 0xFFFF;
+      int commentLength = cen.getShort( pos + 32 ) & 0xFFFF;
+      long headerOffset = cen.getInt( pos + 42 ) & ZIP64_MAGIC;
+
+      int next = pos + CEN_SIZE + nameLength + extraLength + commentLength;
+      if( next > cen.limit() ) {
+        throw new ZipException( "Truncated central directory entry " + i );
+      }
+
+      byte[] nameBytes = new byte[nameLength];
+      cen.get( pos + CEN_SIZE, nameBytes );
+      String name = new String( nameBytes, UTF_8 );
+
+      // zip64 values are in the extra field, in this order, but only if the
+      // corresponding header value is maxed out
+      int extra = pos + CEN_SIZE + nameLength;
+      int extraEnd = extra + extraLength;
+      while( extra + 4 <= extraEnd ) {
+        int id = cen.getShort( extra ) & 0xFFFF;
+        int length = cen.getShort( extra + 2 ) & 0xFFFF;
+        if( id == ZIP64_EXTRA ) {
+          int field = extra + 4;
+          if( size == ZIP64_MAGIC && field + 8 <= extraEnd ) {
+            size = cen.getLong( field );
+            field += 8;
+          }
+          if( compressedSize == ZIP64_MAGIC && field + 8 <= extraEnd ) {
+            compressedSize = cen.getLong( field );
+            field += 8;
+          }
+          if( headerOffset == ZIP64_MAGIC && field + 8 <= extraEnd ) {
+            headerOffset = cen.getLong( field );
+          }
+          break;
+        }
+        extra += 4 + length;
+      }
+
+      // strip any leading slashes so lookups are consistent
+      while( name.startsWith( "/" ) ) {
+        name = name.substring( 1 );
+      }
+      if( !name.isEmpty() ) {
+        entries.add( new Entry( name, headerOffset, compressedSize, size, method, crc, dosTime ) );
+      }
+      pos = next;
+    }
+
+    return new ZipIndex( entries.toArray( Entry[]::new ) );
+  }
+
+  /**
+   * The location of a zip's central directory
+   *
+   * @param offset The offset of the first central directory entry
+   * @param size   The size of the central directory
+   * @param count  The number of entries in the central directory
+   */
+  record Directory(long offset, long size, long count) {
+  }
+
+  /**
+   * Finds the central directory of a zip file. This only reads the end of the
+   * file, so the central directory itself need not be present yet.
+   *
+   * @param zip The zip file
+   * @return The location of the central directory
+   * @throws IOException if the zip cannot be read or is malformed
+   */
+  static Directory directory( FileChannel zip ) throws IOException {
+    long fileSize = zip.size();
+    if( fileSize < EOCD_SIZE ) {
+      throw new ZipException( "Too small to be a zip" );
+    }
+
+    // The end of central directory record is followed by a variable-length
+    // comment, so we have to search backwards for it
+    int tailSize = (int) Math.min( fileSize, EOCD_SIZE + 0xFFFF );
+    ByteBuffer tail = read( zip, fileSize - tailSize, tailSize );
+    int eocd = -1;
+    for( int i = tailSize - EOCD_SIZE; i >= 0; i-- ) {
+      if( tail.getInt( i ) == EOCD_SIG ) {
+        eocd = i;
+        break;
+      }
+    }
+    if( eocd == -1 ) {
+      throw new ZipException( "No end of central directory record" );
+    }
+
+    long count = tail.getShort( eocd + 10 ) & 0xFFFF;
+    long cenSize = tail.getInt( eocd + 12 ) & ZIP64_MAGIC;
+    long cenOffset = tail.getInt( eocd + 16 ) & ZIP64_MAGIC;
+
+    long eocdPosition = fileSize - tailSize + eocd;
+    if( (count == 0xFFFF || cenSize == ZIP64_MAGIC || cenOffset == ZIP64_MAGIC)
+        && eocdPosition >= ZIP64_LOCATOR_SIZE ) {
+      ByteBuffer locator = read( zip, eocdPosition - ZIP64_LOCATOR_SIZE, ZIP64_LOCATOR_SIZE );
+      if( locator.getInt( 0 ) == ZIP64_LOCATOR_SIG ) {
+        ByteBuffer eocd64 = read( zip, locator.getLong( 8 ), 56 );
+        if( eocd64.getInt( 0 ) != ZIP64_EOCD_SIG ) {
+          throw new ZipException( "Bad zip64 end of central directory record" );
+        }
+        count = eocd64.getLong( 32 );
+        cenSize = eocd64.getLong( 40 );
+        cenOffset = eocd64.getLong( 48 );
+      }
+    }
+
+    if( cenOffset + cenSize > fileSize || cenSize > Integer.MAX_VALUE ) {
+      throw new ZipException( "Bad central directory bounds" );
+    }
+    return new Directory( cenOffset, cenSize, count );
+  }
+
+  /**
+   * Loads a persisted index
+   *
+   * @param file The index file, as produced by {@link #write(Path)}
+   * @return The index
+   * @throws IOException if the file cannot be read or is malformed
+   */
+  public static ZipIndex load( Path file ) throws IOException {
+    ByteBuffer buff = ByteBuffer.wrap( Files.readAllBytes( file ) );
+    byte[] magic = new byte[MAGIC.length];
+    if( buff.remaining() < magic.length + 4 ) {
+      throw new ZipException( "Truncated index " + file );
+    }
+    buff.get( magic );
+    if( !Arrays.equals( MAGIC, magic ) ) {
+      throw new ZipException( "Unrecognised index format in " + file );
+    }
+    try {
+      Entry[] entries = new Entry[buff.getInt()];
+      for( int i = 0; i < entries.length; i++ ) {
+        byte[] name = new byte[buff.getShort() & 0xFFFF];
+        buff.get( name );
+        entries[i] = new Entry( new String( name, UTF_8 ),
+            buff.getLong(), buff.getLong(), buff.getLong(),
+            buff.getShort() & 0xFFFF, buff.getInt(), buff.getInt() );
+      }
+      return new ZipIndex( entries );
+    }
+    catch( RuntimeException e ) {
+      throw new ZipException( "Malformed index " + file + ": " + e.getMessage() );
+    }
+  }
+
+  /**
+   * Persists this index
+   *
+   * @param file The file to write to
+   * @throws IOException on failure
+   */
+  public void write( Path file ) throws IOException {
+    // write-then-rename so a reader never sees a partial index
+    Path tmp = file.resolveSibling( file.getFileName() + ".tmp" );
+    try( OutputStream os = Files.newOutputStream( tmp );
+        DataOutputStream out = new DataOutputStream( new BufferedOutputStream( os ) ) ) {
+      out.write( MAGIC );
+      out.writeInt( entries.length );
+      for( Entry e : entries ) {
+        byte[] name = e.name().getBytes( UTF_8 );
+        out.writeShort( name.length );
+        out.write( name );
+        out.writeLong( e.headerOffset() );
+        out.writeLong( e.compressedSize() );
+        out.writeLong( e.size() );
+        out.writeShort( e.method() );
+        out.writeInt( e.crc() );
+        out.writeInt( e.dosTime() );
+      }
+    }
+    Files.move( tmp, file, REPLACE_EXISTING, ATOMIC_MOVE );
+  }
+
+  /**
+   * Reads a region of a file
+   *
+   * @param channel  The file
+   * @param position The start of the region
+   * @param length   The size of the region
+   * @return A little-endian buffer holding the region content
+   * @throws IOException on failure
+   */
+  static ByteBuffer read( FileChannel channel, long position, int length ) throws IOException {
+    ByteBuffer buff = ByteBuffer.allocate( length );
+    while( buff.hasRemaining() ) {
+      if( channel.read( buff, position + buff.position() ) == -1 ) {
+        throw new ZipException( "Unexpected end of file" );
+      }
+    }
+    return buff.flip().order( ByteOrder.LITTLE_ENDIAN );
+  }
+}
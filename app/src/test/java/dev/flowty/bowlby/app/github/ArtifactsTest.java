@@ -0,0 +1,472 @@
+package dev.flowty.bowlby.app.github;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import dev.flowty.bowlby.app.github.Entity.Artifact;
+import dev.flowty.bowlby.app.github.Entity.Repository;
+import dev.flowty.bowlby.app.github.GithubApiClient.Absence;
+import dev.flowty.bowlby.app.github.GithubApiClient.ArtifactAbsentException;
+import dev.flowty.bowlby.app.github.GithubApiClient.Download;
+import dev.flowty.bowlby.app.zip.ZipArchive;
+
+/**
+ * Exercises {@link Artifacts} behaviours
+ */
+@SuppressWarnings("static-method")
+class ArtifactsTest {
+
+  private static final Artifact ARTIFACT = new Artifact(
+      new Repository( "owner", "repo" ), "12345" );
+  private static final Artifact TWIN = new Artifact(
+      new Repository( "owner", "repo" ), "67890" );
+
+  /**
+   * Writes a valid zip file
+   *
+   * @param file Where to write it
+   * @return The download result
+   * @throws Exception on failure
+   */
+  private static Download zip( Path file ) throws Exception {
+    Files.createDirectories( file.getParent() );
+    try( ZipOutputStream zos = new ZipOutputStream( Files.newOutputStream( file ) ) ) {
+      ZipEntry entry = new ZipEntry( "file.txt" );
+      // a fixed timestamp, so the digest is predictable
+      entry.setTime( 1_000_000_000_000L );
+      zos.putNextEntry( entry );
+      zos.write( "content".getBytes( UTF_8 ) );
+    }
+    return new Download( file, HexFormat.of().formatHex(
+        MessageDigest.getInstance( "SHA-256" ).digest( Files.readAllBytes( file ) ) ) );
+  }
+
+  /**
+   * Concurrent requests for the same missing artifact result in a single download
+   *
+   * @param dir A temporary directory
+   * @throws Exception on failure
+   */
+  @Test
+  void singleFlight( @TempDir Path dir ) throws Exception {
+    CompletableFuture<Path> requested = new CompletableFuture<>();
+    CompletableFuture<Download> download = new CompletableFuture<>();
+    GithubApiClient client = mock( GithubApiClient.class );
+    when( client.getArtifactAsync( any(), any(), any() ) ).thenAnswer( inv -> {
+      requested.complete( inv.getArgument( 1 ) );
+      return download;
+    } );
+
+    Artifacts artifacts = new Artifacts( client, dir,
+        Duration.ofDays( 1 ), Duration.ofMinutes( 10 ), 0 );
+
+    ExecutorService exec = Executors.newCachedThreadPool();
+    try {
+      List<Future<Path>> results = new ArrayList<>();
+      results.add( exec.submit( () -> artifacts.get( ARTIFACT ) ) );
+      Path part = requested.get( 10, TimeUnit.SECONDS );
+      for( int i = 0; i < 4; i++ ) {
+        results.add( exec.submit( () -> artifacts.get( ARTIFACT ) ) );
+      }
+
+      // give the waiters a chance to find the in-flight download
+      while( artifacts.coalesced() < 4 ) {
+        Thread.sleep( 10 );
+      }
+      Download zip = zip( part );
+      download.complete( zip );
+
+      Path expected = dir.resolve( "blobs/" + zip.sha256() + ".zip" );
+      for( Future<Path> result : results ) {
+        assertEquals( expected, result.get( 10, TimeUnit.SECONDS ) );
+      }
+    }
+    finally {
+      exec.shutdownNow();
+    }
+
+    verify( client, times( 1 ) ).getArtifactAsync( any(), any(), any() );
+    assertEquals( 1, artifacts.downloads() );
+    assertEquals( 4, artifacts.coalesced() );
+  }
+
+  /**
+   * Asking for an artifact doesn't tie up the calling thread while it downloads
+   *
+   * @param dir A temporary directory
+   * @throws Exception on failure
+   */
+  @Test
+  void asynchronous( @TempDir Path dir ) throws Exception {
+    CompletableFuture<Download> download = new CompletableFuture<>();
+    GithubApiClient client = mock( GithubApiClient.class );
+    when( client.getArtifactAsync( any(), any(), any() ) ).thenReturn( download );
+    Artifacts artifacts = new Artifacts( client, dir,
+        Duration.ofDays( 1 ), Duration.ofMinutes( 10 ), 0 );
+
+    CompletableFuture<Path> first = artifacts.getAsync( ARTIFACT );
+    CompletableFuture<Path> second = artifacts.getAsync( ARTIFACT );
+    assertFalse( first.isDone() );
+    assertFalse( second.isDone() );
+
+    Download downloaded = zip( dir.resolve( "github/owner/repo/12345.zip.part" ) );
+    download.complete( downloaded );
+    Path zip = dir.resolve( "blobs/" + downloaded.sha256() + ".zip" );
+    assertEquals( zip, first.get( 10, TimeUnit.SECONDS ) );
+    assertEquals( zip, second.get( 10, TimeUnit.SECONDS ) );
+    assertEquals( zip, artifacts.getAsync( ARTIFACT ).getNow( null ) );
+    verify( client, times( 1 ) ).getArtifactAsync( any(), any(), any() );
+    assertEquals( 1, artifacts.coalesced() );
+  }
+
+  /**
+   * A download is published to the cache when it matches the digest that github
+   * reports for it
+   *
+   * @param dir A temporary directory
+   * @throws Exception on failure
+   */
+  @Test
+  void verified( @TempDir Path dir ) throws Exception {
+    GithubApiClient client = mock( GithubApiClient.class );
+    when( client.getArtifactAsync( any(), any(), any() ) )
+        .thenAnswer( inv -> CompletableFuture.completedFuture( zip( inv.getArgument( 1 ) ) ) );
+    Path part = dir.resolve( "github/owner/repo/12345.zip.part" );
+    String sha256 = zip( part ).sha256();
+    when( client.expectedDigest( ARTIFACT ) ).thenReturn( "sha256:" + sha256 );
+
+    Artifacts artifacts = new Artifacts( client, dir,
+        Duration.ofDays( 1 ), Duration.ofMinutes( 10 ), 0 );
+    Path zip = dir.resolve( "blobs/" + sha256 + ".zip" );
+    assertEquals( zip, artifacts.get( ARTIFACT ) );
+    assertTrue( Files.exists( zip ) );
+    assertTrue( Files.exists( dir.resolve( "blobs/" + sha256 + ".idx" ) ) );
+    assertEquals( sha256, Files.readString( dir.resolve( "github/owner/repo/12345.link" ) ) );
+    assertFalse( Files.exists( part ) );
+    assertEquals( 0, artifacts.quarantined() );
+  }
+
+  /**
+   * Downloads that don't match the digest that github reports are quarantined
+   *
+   * @param dir A temporary directory
+   * @throws Exception on failure
+   */
+  @Test
+  void digestMismatch( @TempDir Path dir ) throws Exception {
+    GithubApiClient client = mock( GithubApiClient.class );
+    when( client.getArtifactAsync( any(), any(), any() ) )
+        .thenAnswer( inv -> CompletableFuture.completedFuture( zip( inv.getArgument( 1 ) ) ) );
+    when( client.expectedDigest( ARTIFACT ) ).thenReturn( "sha256:0123456789abcdef" );
+
+    Artifacts artifacts = new Artifacts( client, dir,
+        Duration.ofDays( 1 ), Duration.ofMinutes( 10 ), 0 );
+    assertNull( artifacts.get( ARTIFACT ) );
+    assertEquals( 1, artifacts.quarantined() );
+    assertEquals( 0, artifacts.cachedCount() );
+    assertEquals( 1, quarantined( dir ) );
+  }
+
+  /**
+   * Once github has told us that an artifact is unavailable we stop asking for it
+   *
+   * @param dir A temporary directory
+   * @throws Exception on failure
+   */
+  @Test
+  void unavailable( @TempDir Path dir ) throws Exception {
+    GithubApiClient client = mock( GithubApiClient.class );
+    when( client.getArtifactAsync( any(), any(), any() ) )
+        .thenReturn( CompletableFuture.failedFuture(
+            new ArtifactAbsentException( ARTIFACT, Absence.EXPIRED ) ) );
+    Artifacts artifacts = new Artifacts( client, dir,
+        Duration.ofDays( 1 ), Duration.ofMinutes( 10 ), 0 );
+
+    assertNull( artifacts.unavailable( ARTIFACT ) );
+    for( int i = 0; i < 3; i++ ) {
+      assertNull( artifacts.get( ARTIFACT ) );
+      assertEquals( Absence.EXPIRED, artifacts.unavailable( ARTIFACT ) );
+    }
+    verify( client, times( 1 ) ).getArtifactAsync( any(), any(), any() );
+    assertEquals( 2, artifacts.unavailableRequests() );
+  }
+
+  /**
+   * Unavailable artifacts are asked for every time if we're not remembering them
+   *
+   * @param dir A temporary directory
+   * @throws Exception on failure
+   */
+  @Test
+  void forgetful( @TempDir Path dir ) throws Exception {
+    GithubApiClient client = mock( GithubApiClient.class );
+    when( client.getArtifactAsync( any(), any(), any() ) )
+        .thenReturn( CompletableFuture.failedFuture(
+            new ArtifactAbsentException( ARTIFACT, Absence.MISSING ) ) );
+    Artifacts artifacts = new Artifacts( client, dir,
+        Duration.ofDays( 1 ), Duration.ofMinutes( 10 ), 0 )
+            .withUnavailableValidity( Duration.ZERO );
+
+    for( int i = 0; i < 3; i++ ) {
+      assertNull( artifacts.get( ARTIFACT ) );
+      assertNull( artifacts.unavailable( ARTIFACT ) );
+    }
+    verify( client, times( 3 ) ).getArtifactAsync( any(), any(), any() );
+  }
+
+  /**
+   * Downloads that aren't readable zips are quarantined
+   *
+   * @param dir A temporary directory
+   * @throws Exception on failure
+   */
+  @Test
+  void corrupt( @TempDir Path dir ) throws Exception {
+    GithubApiClient client = mock( GithubApiClient.class );
+    when( client.getArtifactAsync( any(), any(), any() ) ).thenAnswer( inv -> {
+      Path file = inv.getArgument( 1 );
+      Files.createDirectories( file.getParent() );
+      Files.write( file, "not a zip".getBytes( UTF_8 ) );
+      return CompletableFuture.completedFuture( new Download( file, "whatever" ) );
+    } );
+
+    Artifacts artifacts = new Artifacts( client, dir,
+        Duration.ofDays( 1 ), Duration.ofMinutes( 10 ), 0 );
+    assertNull( artifacts.get( ARTIFACT ) );
+    assertEquals( 1, artifacts.quarantined() );
+    assertEquals( 1, quarantined( dir ) );
+    assertFalse( Files.exists( dir.resolve( "github/owner/repo/12345.zip" ) ) );
+    assertFalse( Files.exists( dir.resolve( "github/owner/repo/12345.link" ) ) );
+  }
+
+  /**
+   * Artifacts with identical content share a zip file, which survives until
+   * neither of them is cached
+   *
+   * @param dir A temporary directory
+   * @throws Exception on failure
+   */
+  @Test
+  void deduplicated( @TempDir Path dir ) throws Exception {
+    GithubApiClient client = mock( GithubApiClient.class );
+    when( client.getArtifactAsync( any(), any(), any() ) )
+        .thenAnswer( inv -> CompletableFuture.completedFuture( zip( inv.getArgument( 1 ) ) ) );
+    List<Path> removed = new ArrayList<>();
+    Artifacts artifacts = new Artifacts( client, dir,
+        Duration.ofDays( 1 ), Duration.ofMinutes( 10 ), 0 )
+            .withRemovalListener( removed::add );
+
+    Path zip = artifacts.get( ARTIFACT );
+    assertEquals( zip, artifacts.get( TWIN ) );
+    verify( client, times( 2 ) ).getArtifactAsync( any(), any(), any() );
+    assertEquals( 1, artifacts.deduplicated() );
+    assertEquals( 2, artifacts.cachedCount() );
+    assertEquals( Files.size( zip ), artifacts.cachedBytes() );
+    assertEquals( 1, blobs( dir ) );
+
+    // the links are followed on restart
+    Artifacts restarted = new Artifacts( client, dir,
+        Duration.ofDays( 1 ), Duration.ofMinutes( 10 ), 0 )
+            .withRemovalListener( removed::add );
+    restarted.start();
+    restarted.stop();
+    assertEquals( 2, restarted.cachedCount() );
+    assertEquals( zip, restarted.get( ARTIFACT ) );
+    assertEquals( zip, restarted.get( TWIN ) );
+
+    restarted.quarantine( ARTIFACT, "testing" );
+    assertEquals( List.of( zip ), removed );
+    assertEquals( 0, restarted.cachedCount() );
+    assertEquals( 0, blobs( dir ) );
+  }
+
+  /**
+   * Artifacts aren't downloaded at all if github lists a digest that we already
+   * have the content for
+   *
+   * @param dir A temporary directory
+   * @throws Exception on failure
+   */
+  @Test
+  void alreadyHeld( @TempDir Path dir ) throws Exception {
+    GithubApiClient client = mock( GithubApiClient.class );
+    when( client.getArtifactAsync( any(), any(), any() ) )
+        .thenAnswer( inv -> CompletableFuture.completedFuture( zip( inv.getArgument( 1 ) ) ) );
+    Artifacts artifacts = new Artifacts( client, dir,
+        Duration.ofDays( 1 ), Duration.ofMinutes( 10 ), 0 );
+
+    Path zip = artifacts.get( ARTIFACT );
+    when( client.expectedDigest( TWIN ) )
+        .thenReturn( "SHA256:" + zip.getFileName().toString().replace( ".zip", "" ) );
+
+    assertEquals( zip, artifacts.get( TWIN ) );
+    verify( client, times( 1 ) ).getArtifactAsync( any(), any(), any() );
+    assertEquals( 1, artifacts.downloads() );
+    assertEquals( 1, artifacts.deduplicated() );
+    assertTrue( Files.exists( dir.resolve( "github/owner/repo/67890.link" ) ) );
+  }
+
+  /**
+   * Artifacts that go unrequested for long enough are purged in the background
+   *
+   * @param dir A temporary directory
+   * @throws Exception on failure
+   */
+  @Test
+  void stale( @TempDir Path dir ) throws Exception {
+    GithubApiClient client = mock( GithubApiClient.class );
+    when( client.getArtifactAsync( any(), any(), any() ) )
+        .thenAnswer( inv -> CompletableFuture.completedFuture( zip( inv.getArgument( 1 ) ) ) );
+    List<Path> removed = new CopyOnWriteArrayList<>();
+    Artifacts artifacts = new Artifacts( client, dir,
+        Duration.ofMillis( 100 ), Duration.ofMillis( 20 ), 0 )
+            .withRemovalListener( removed::add );
+
+    Path zip = artifacts.get( ARTIFACT );
+    assertEquals( 1, artifacts.cachedCount() );
+
+    artifacts.start();
+    try {
+      long deadline = System.currentTimeMillis() + 5000;
+      while( artifacts.cachedCount() > 0 && System.currentTimeMillis() < deadline ) {
+        Thread.sleep( 10 );
+      }
+    }
+    finally {
+      artifacts.stop();
+    }
+
+    assertEquals( 0, artifacts.cachedCount() );
+    assertEquals( List.of( zip ), removed );
+    assertFalse( Files.exists( zip ) );
+    assertFalse( Files.exists( dir.resolve( "github/owner/repo/12345.link" ) ) );
+  }
+
+  /**
+   * Artifacts that were cached by a previous run are found again on startup
+   *
+   * @param dir A temporary directory
+   * @throws Exception on failure
+   */
+  @Test
+  void restart( @TempDir Path dir ) throws Exception {
+    GithubApiClient client = mock( GithubApiClient.class );
+    when( client.getArtifactAsync( any(), any(), any() ) )
+        .thenAnswer( inv -> CompletableFuture.completedFuture( zip( inv.getArgument( 1 ) ) ) );
+    Artifacts artifacts = new Artifacts( client, dir,
+        Duration.ofDays( 1 ), Duration.ofMinutes( 10 ), 0 );
+    Path zip = artifacts.get( ARTIFACT );
+    // a zip in the layout that earlier versions used
+    Path legacy = dir.resolve( "github/owner/repo/67890.zip" );
+    Files.copy( zip, legacy );
+
+    Artifacts restarted = new Artifacts( client, dir,
+        Duration.ofDays( 1 ), Duration.ofMinutes( 10 ), 0 );
+    restarted.start();
+    restarted.stop();
+
+    assertEquals( 2, restarted.cachedCount() );
+    assertEquals( zip, restarted.get( ARTIFACT ) );
+    assertEquals( legacy, restarted.get( TWIN ) );
+    verify( client, times( 1 ) ).getArtifactAsync( any(), any(), any() );
+    assertEquals( 0, restarted.downloads() );
+  }
+
+  /**
+   * Entries that were inflated while an artifact was being downloaded are moved
+   * alongside its blob, and count against the cache size
+   *
+   * @param dir A temporary directory
+   * @throws Exception on failure
+   */
+  @Test
+  void adopted( @TempDir Path dir ) throws Exception {
+    Path inflated = ZipArchive.inflatedPath( dir.resolve( "github/owner/repo/12345.zip" ) );
+    GithubApiClient client = mock( GithubApiClient.class );
+    when( client.getArtifactAsync( any(), any(), any() ) ).thenAnswer( inv -> {
+      Files.createDirectories( inflated );
+      Files.write( inflated.resolve( "0" ), "content".getBytes( UTF_8 ) );
+      // one that was still being inflated
+      Files.write( inflated.resolve( "012345.part" ), "cont".getBytes( UTF_8 ) );
+      return CompletableFuture.completedFuture( zip( inv.getArgument( 1 ) ) );
+    } );
+    Artifacts artifacts = new Artifacts( client, dir,
+        Duration.ofDays( 1 ), Duration.ofMinutes( 10 ), 0 );
+
+    Path zip = artifacts.get( ARTIFACT );
+    assertEquals( "content",
+        Files.readString( ZipArchive.inflatedPath( zip ).resolve( "0" ) ) );
+    assertFalse( Files.exists( inflated ) );
+    assertEquals( Files.size( zip ) + 7, artifacts.cachedBytes() );
+  }
+
+  /**
+   * Temporary files left behind by a previous run are cleaned up on startup,
+   * apart from partial downloads that we might yet resume and their chunk
+   * journals
+   *
+   * @param dir A temporary directory
+   * @throws Exception on failure
+   */
+  @Test
+  void leftovers( @TempDir Path dir ) throws Exception {
+    Path repo = dir.resolve( "github/owner/repo" );
+    Files.createDirectories( repo );
+    for( String name : List.of( "1.link.tmp", "2.zip.sparse", "3.zip.part",
+        "3.zip.part.chunks", "4.zip.part.chunks" ) ) {
+      Files.write( repo.resolve( name ), "leftover".getBytes( UTF_8 ) );
+    }
+
+    Artifacts artifacts = new Artifacts( mock( GithubApiClient.class ), dir,
+        Duration.ofDays( 1 ), Duration.ofMinutes( 10 ), 0 );
+    artifacts.start();
+    artifacts.stop();
+
+    assertFalse( Files.exists( repo.resolve( "1.link.tmp" ) ) );
+    assertFalse( Files.exists( repo.resolve( "2.zip.sparse" ) ) );
+    assertTrue( Files.exists( repo.resolve( "3.zip.part" ) ) );
+    assertTrue( Files.exists( repo.resolve( "3.zip.part.chunks" ) ) );
+    assertFalse( Files.exists( repo.resolve( "4.zip.part.chunks" ) ) );
+  }
+
+  private static long blobs( Path dir ) throws IOException {
+    try( Stream<Path> files = Files.list( dir.resolve( "blobs" ) ) ) {
+      return files.filter( f -> f.toString().endsWith( ".zip" ) ).count();
+    }
+  }
+
+  private static long quarantined( Path dir ) throws IOException {
+    try( Stream<Path> files = Files.walk( dir.resolve( "quarantine" ) ) ) {
+      return files.filter( Files::isRegularFile ).count();
+    }
+  }
+}
@@ -0,0 +1,169 @@
+package dev.flowty.bowlby.app.github;
+
+import static java.util.stream.Collectors.joining;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.Test;
+
+import dev.flowty.bowlby.app.github.CacheIndex.Cached;
+import dev.flowty.bowlby.app.github.Entity.Artifact;
+import dev.flowty.bowlby.app.github.Entity.Repository;
+
+/**
+ * Exercises {@link CacheIndex} behaviours
+ */
+@SuppressWarnings("static-method")
+class CacheIndexTest {
+
+  private static final Repository REPO = new Repository( "owner", "repo" );
+
+  private static Artifact artifact( String id ) {
+    return new Artifact( REPO, id );
+  }
+
+  private static List<Cached> admit( CacheIndex index, String id, long size ) {
+    return index.admit( artifact( id ), Paths.get( id + ".zip" ), size );
+  }
+
+  private static String ids( List<Cached> cached ) {
+    return cached.stream()
+        .map( c -> c.artifact().id() )
+        .collect( joining( "," ) );
+  }
+
+  /**
+   * With no budget, nothing is evicted
+   */
+  @Test
+  void unlimited() {
+    CacheIndex index = new CacheIndex( 0 );
+    assertEquals( "", ids( admit( index, "a", 100 ) ) );
+    assertEquals( "", ids( admit( index, "b", 100 ) ) );
+    assertEquals( "", ids( admit( index, "c", 100 ) ) );
+    assertEquals( "3 artifacts, 300 bytes of unlimited, 0 evictions", index.toString() );
+  }
+
+  /**
+   * The least-recently-used artifacts are evicted to keep within the budget
+   */
+  @Test
+  void lru() {
+    AtomicLong clock = new AtomicLong();
+    CacheIndex index = new CacheIndex( 250, clock::incrementAndGet );
+    assertEquals( "", ids( admit( index, "a", 100 ) ) );
+    assertEquals( "", ids( admit( index, "b", 100 ) ) );
+
+    // accessing a makes b the least-recently used
+    assertEquals( Paths.get( "a.zip" ), index.get( artifact( "a" ) ) );
+
+    assertEquals( "b", ids( admit( index, "c", 100 ) ) );
+    assertNull( index.get( artifact( "b" ) ) );
+    assertEquals( "a,c", ids( index.entries() ) );
+
+    // multiple evictions to make room for a big one
+    assertEquals( "a,c", ids( admit( index, "d", 200 ) ) );
+    assertEquals( "1 artifacts, 200 bytes of 250, 3 evictions", index.toString() );
+
+    // the newest artifact is retained even if it breaks the budget on its own
+    assertEquals( "d", ids( admit( index, "e", 300 ) ) );
+    assertEquals( "1 artifacts, 300 bytes of 250, 4 evictions", index.toString() );
+  }
+
+  /**
+   * Accesses are recorded against entries, and flagged for persistence
+   */
+  @Test
+  void access() {
+    AtomicLong clock = new AtomicLong( 100 );
+    CacheIndex index = new CacheIndex( 0, clock::get );
+    index.admit( artifact( "a" ), Paths.get( "a.zip" ), 10, 50 );
+    index.admit( artifact( "b" ), Paths.get( "b.zip" ), 10, 60 );
+    assertTrue( index.clean(), "admission changes the index" );
+    assertFalse( index.clean(), "nothing has changed" );
+
+    assertEquals( "a,b", ids( index.entries() ) );
+    assertEquals( 50, index.entries().get( 0 ).lastAccess() );
+
+    index.get( artifact( "a" ) );
+    assertTrue( index.clean(), "access has been recorded" );
+    assertEquals( "b,a", ids( index.entries() ) );
+    assertEquals( 100, index.entries().get( 1 ).lastAccess() );
+
+    index.get( artifact( "c" ) );
+    assertFalse( index.clean(), "misses are not recorded" );
+  }
+
+  /**
+   * Removal only affects the expected entry
+   */
+  @Test
+  void remove() {
+    CacheIndex index = new CacheIndex( 0 );
+    admit( index, "a", 100 );
+    Cached stale = index.entries().get( 0 );
+    admit( index, "a", 50 );
+
+    assertFalse( index.remove( stale ), "entry has been replaced" );
+    assertEquals( 50, index.bytes() );
+
+    assertTrue( index.remove( index.entries().get( 0 ) ) );
+    assertEquals( 0, index.bytes() );
+    assertEquals( 0, index.count() );
+  }
+
+  /**
+   * Artifacts that share a zip only count against the budget once, and the zip
+   * stays referenced until they've all been removed
+   */
+  @Test
+  void shared() {
+    CacheIndex index = new CacheIndex( 250 );
+    Path blob = Paths.get( "blob.zip" );
+    assertEquals( "", ids( index.admit( artifact( "a" ), blob, 100 ) ) );
+    assertEquals( "", ids( index.admit( artifact( "b" ), blob, 100 ) ) );
+    assertEquals( "", ids( admit( index, "c", 100 ) ) );
+    assertEquals( "3 artifacts, 200 bytes of 250, 0 evictions", index.toString() );
+
+    assertTrue( index.remove( index.entry( artifact( "a" ) ) ) );
+    assertTrue( index.referenced( blob ) );
+    assertEquals( 200, index.bytes() );
+
+    assertTrue( index.remove( index.entry( artifact( "b" ) ) ) );
+    assertFalse( index.referenced( blob ) );
+    assertEquals( 100, index.bytes() );
+  }
+
+  /**
+   * Files added alongside a zip count against the budget, can cause other
+   * artifacts to be evicted, and are freed along with the zip
+   */
+  @Test
+  void grow() {
+    AtomicLong clock = new AtomicLong();
+    CacheIndex index = new CacheIndex( 250, clock::incrementAndGet );
+    admit( index, "a", 100 );
+    admit( index, "b", 100 );
+    assertEquals( "", ids( index.grow( Paths.get( "b.zip" ), 40 ) ) );
+    assertEquals( "2 artifacts, 240 bytes of 250, 0 evictions", index.toString() );
+
+    // the growing zip is retained even though it's the least-recently used
+    index.get( artifact( "a" ) );
+    assertEquals( "a", ids( index.grow( Paths.get( "b.zip" ), 40 ) ) );
+    assertEquals( "1 artifacts, 180 bytes of 250, 1 evictions", index.toString() );
+
+    // removed zips can't grow
+    assertEquals( "", ids( index.grow( Paths.get( "a.zip" ), 40 ) ) );
+    assertEquals( 180, index.bytes() );
+
+    assertTrue( index.remove( index.entry( artifact( "b" ) ) ) );
+    assertEquals( 0, index.bytes() );
+  }
+}
@@ -0,0 +1,154 @@
+package dev.flowty.bowlby.app.github;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+import dev.flowty.bowlby.app.github.DownloadScheduler.Priority;
+
+/**
+ * Exercises {@link DownloadScheduler}
+ */
+@SuppressWarnings("static-method")
+class DownloadSchedulerTest {
+
+  /**
+   * Concurrency must be positive
+   */
+  @Test
+  void invalid() {
+    assertThrows( IllegalArgumentException.class, () -> new DownloadScheduler( 0, 0 ) );
+  }
+
+  /**
+   * Submitted downloads hold their capacity until their result completes, without
+   * tying up a thread
+   */
+  @Test
+  void submit() {
+    DownloadScheduler scheduler = new DownloadScheduler( 1, 0 );
+    CompletableFuture<String> first = new CompletableFuture<>();
+    CompletableFuture<String> second = new CompletableFuture<>();
+
+    CompletableFuture<String> a = scheduler.submit( "a", Priority.BACKGROUND, () -> first );
+    CompletableFuture<String> b = scheduler.submit( "b", Priority.INTERACTIVE, () -> second );
+    assertEquals( 1, scheduler.queued( Priority.INTERACTIVE ) );
+
+    first.complete( "a" );
+    assertEquals( "a", a.join() );
+    assertEquals( 0, scheduler.queued( Priority.INTERACTIVE ) );
+    assertFalse( b.isDone() );
+
+    second.completeExceptionally( new IllegalStateException( "failed" ) );
+    assertTrue( b.isCompletedExceptionally() );
+    assertEquals( 1, scheduler.started( Priority.BACKGROUND ) );
+    assertEquals( 1, scheduler.started( Priority.INTERACTIVE ) );
+  }
+
+  /**
+   * Once the concurrency limit is reached, interactive downloads start before
+   * background ones, and promoted downloads are treated as interactive
+   *
+   * @throws Exception on failure
+   */
+  @Test
+  void priority() throws Exception {
+    DownloadScheduler scheduler = new DownloadScheduler( 1, 0 );
+    List<String> order = new CopyOnWriteArrayList<>();
+    CountDownLatch running = new CountDownLatch( 1 );
+    CountDownLatch release = new CountDownLatch( 1 );
+    ExecutorService exec = Executors.newCachedThreadPool();
+    try {
+      Future<String> blocker = exec.submit( () -> scheduler.run( "a", Priority.INTERACTIVE, () -> {
+        running.countDown();
+        release.await();
+        return "a";
+      } ) );
+      assertTrue( running.await( 5, TimeUnit.SECONDS ) );
+
+      Future<?> b = queue( exec, scheduler, "b", Priority.BACKGROUND, order, 1 );
+      Future<?> c = queue( exec, scheduler, "c", Priority.BACKGROUND, order, 2 );
+      Future<?> d = queue( exec, scheduler, "d", Priority.INTERACTIVE, order, 1 );
+      scheduler.promote( "c" );
+      assertEquals( 1, scheduler.queued( Priority.BACKGROUND ) );
+      assertEquals( 2, scheduler.queued( Priority.INTERACTIVE ) );
+
+      release.countDown();
+      assertEquals( "a", blocker.get( 5, TimeUnit.SECONDS ) );
+      b.get( 5, TimeUnit.SECONDS );
+      c.get( 5, TimeUnit.SECONDS );
+      d.get( 5, TimeUnit.SECONDS );
+      assertEquals( "[d, c, b]", order.toString() );
+      assertEquals( 3, scheduler.started( Priority.INTERACTIVE ) );
+      assertEquals( 1, scheduler.started( Priority.BACKGROUND ) );
+      assertEquals( 0, scheduler.queued( Priority.INTERACTIVE ) );
+      assertEquals( 0, scheduler.queued( Priority.BACKGROUND ) );
+    }
+    finally {
+      exec.shutdownNow();
+    }
+  }
+
+  /**
+   * Submits a download and waits for it to be queued
+   *
+   * @param exec      Runs the download
+   * @param scheduler The scheduler
+   * @param key       The download key
+   * @param priority  The download priority
+   * @param order     Where to record the download running
+   * @param depth     The queue depth to wait for
+   * @return The download result
+   * @throws InterruptedException if interrupted
+   */
+  private static Future<?> queue( ExecutorService exec, DownloadScheduler scheduler, String key,
+      Priority priority, List<String> order, int depth ) throws InterruptedException {
+    Future<?> f = exec.submit( () -> scheduler.run( key, priority, () -> order.add( key ) ) );
+    while( scheduler.queued( priority ) < depth ) {
+      Thread.sleep( 1 );
+    }
+    return f;
+  }
+
+  /**
+   * Throttled streams are held to the bandwidth limit, after an initial burst
+   *
+   * @throws Exception on failure
+   */
+  @Test
+  void throttle() throws Exception {
+    DownloadScheduler scheduler = new DownloadScheduler( 1, 100_000 );
+    long start = System.nanoTime();
+    try( InputStream in = scheduler.throttle( new ByteArrayInputStream( new byte[150_000] ) ) ) {
+      assertEquals( 150_000, in.transferTo( OutputStream.nullOutputStream() ) );
+    }
+    long elapsed = TimeUnit.NANOSECONDS.toMillis( System.nanoTime() - start );
+    // the first second's worth is free, the rest costs half a second
+    assertTrue( elapsed >= 400, "elapsed " + elapsed );
+    assertTrue( scheduler.throttled().toMillis() >= 400, "throttled " + scheduler.throttled() );
+  }
+
+  /**
+   * Streams are untouched when there's no bandwidth limit
+   */
+  @Test
+  void unthrottled() {
+    InputStream in = new ByteArrayInputStream( new byte[1] );
+    assertTrue( in == new DownloadScheduler( 1, 0 ).throttle( in ) );
+  }
+}
@@ -0,0 +1,659 @@
+package dev.flowty.bowlby.app.github;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import dev.flowty.bowlby.app.github.Entity.Artifact;
+import dev.flowty.bowlby.app.github.Entity.Branch;
+import dev.flowty.bowlby.app.github.Entity.NamedArtifact;
+import dev.flowty.bowlby.app.github.Entity.Repository;
+import dev.flowty.bowlby.app.github.Entity.Run;
+import dev.flowty.bowlby.app.github.Entity.Workflow;
+import dev.flowty.bowlby.app.github.GithubApiClient.Absence;
+import dev.flowty.bowlby.app.github.GithubApiClient.ArtifactAbsentException;
+import dev.flowty.bowlby.app.github.GithubApiClient.Download;
+import dev.flowty.bowlby.app.zip.RemoteZip;
+
+/**
+ * Exercises {@link GithubApiClient} download behaviour against a stand-in for
+ * the github API and blob storage. The stand-in is a plain {@link HttpServer}
+ * rather than a {@code MockHost}, as that replays flow responses in a fixed
+ * order from a single context, while these tests need responses that depend on
+ * the path and range of concurrent requests, and some that stall or fail.
+ */
+class GithubApiClientTest {
+
+  private static final Artifact ARTIFACT = new Artifact(
+      new Repository( "owner", "repo" ), "123" );
+
+  private final byte[] content = new byte[100_000];
+  private final List<String> ranges = new CopyOnWriteArrayList<>();
+  private boolean honourRanges = true;
+  private final ExecutorService executor = Executors.newCachedThreadPool();
+  private HttpServer server;
+  private String host;
+  private GithubApiClient client;
+
+  /**
+   * Starts the stand-in server
+   *
+   * @throws IOException on failure
+   */
+  @BeforeEach
+  void start() throws IOException {
+    new Random( 1 ).nextBytes( content );
+    server = HttpServer.create( new InetSocketAddress( "localhost", 0 ), 0 );
+    host = "http://localhost:" + server.getAddress().getPort();
+    server.createContext( "/repos/owner/repo/actions/artifacts/123/zip", exchange -> {
+      exchange.getResponseHeaders().add( "location", host + "/blob" );
+      exchange.sendResponseHeaders( 302, -1 );
+      exchange.close();
+    } );
+    server.createContext( "/repos/owner/repo/actions/runs/9/artifacts", exchange -> {
+      byte[] body = String.format(
+          "{\"artifacts\":[{\"id\":\"123\",\"name\":\"art\",\"size_in_bytes\":%s}]}",
+          content.length )
+          .getBytes( StandardCharsets.UTF_8 );
+      exchange.sendResponseHeaders( 200, body.length );
+      try( OutputStream os = exchange.getResponseBody() ) {
+        os.write( body );
+      }
+    } );
+    server.createContext( "/blob", this::blob );
+    // so a stalled response doesn't hold up the others
+    server.setExecutor( executor );
+    server.start();
+    client = new GithubApiClient( host, "token" );
+  }
+
+  private void blob( HttpExchange exchange ) throws IOException {
+    String range = exchange.getRequestHeaders().getFirst( "range" );
+    ranges.add( String.valueOf( range ) );
+    byte[] body = content;
+    int status = 200;
+    if( range != null && honourRanges ) {
+      int from = Integer.parseInt( range.substring( "bytes=".length(), range.indexOf( '-' ) ) );
+      String to = range.substring( range.indexOf( '-' ) + 1 );
+      int last = to.isEmpty() ? content.length - 1 : Integer.parseInt( to );
+      if( from >= content.length ) {
+        exchange.getResponseHeaders().add( "content-range", "bytes */" + content.length );
+        exchange.sendResponseHeaders( 416, -1 );
+        exchange.close();
+        return;
+      }
+      body = Arrays.copyOfRange( content, from, last + 1 );
+      exchange.getResponseHeaders().add( "content-range",
+          "bytes " + from + "-" + last + "/" + content.length );
+      status = 206;
+    }
+    exchange.sendResponseHeaders( status, body.length );
+    try( OutputStream os = exchange.getResponseBody() ) {
+      os.write( body );
+    }
+  }
+
+  /**
+   * Stops the stand-in server
+   */
+  @AfterEach
+  void stop() {
+    server.stop( 0 );
+    executor.shutdownNow();
+  }
+
+  private String sha256() throws NoSuchAlgorithmException {
+    return HexFormat.of().formatHex( MessageDigest.getInstance( "SHA-256" ).digest( content ) );
+  }
+
+  /**
+   * A fresh download is digested as it arrives
+   *
+   * @param dir A temporary directory
+   * @throws Exception on failure
+   */
+  @Test
+  void fresh( @TempDir Path dir ) throws Exception {
+    Path part = dir.resolve( "123.zip.part" );
+    assertEquals( new Download( part, sha256() ), client.getArtifact( ARTIFACT, part ) );
+    assertArrayEquals( content, Files.readAllBytes( part ) );
+    assertEquals( "[null]", ranges.toString() );
+  }
+
+  /**
+   * An interrupted download is resumed rather than restarted
+   *
+   * @param dir A temporary directory
+   * @throws Exception on failure
+   */
+  @Test
+  void resume( @TempDir Path dir ) throws Exception {
+    Path part = dir.resolve( "123.zip.part" );
+    Files.write( part, Arrays.copyOf( content, 40_000 ) );
+
+    assertEquals( new Download( part, sha256() ), client.getArtifact( ARTIFACT, part ) );
+    assertArrayEquals( content, Files.readAllBytes( part ) );
+    assertEquals( "[bytes=40000-]", ranges.toString() );
+  }
+
+  /**
+   * A partial file that the server doesn't agree with is discarded
+   *
+   * @param dir A temporary directory
+   * @throws Exception on failure
+   */
+  @Test
+  void unresumable( @TempDir Path dir ) throws Exception {
+    Path part = dir.resolve( "123.zip.part" );
+    Files.write( part, new byte[200_000] );
+
+    assertEquals( new Download( part, sha256() ), client.getArtifact( ARTIFACT, part ) );
+    assertArrayEquals( content, Files.readAllBytes( part ) );
+    assertEquals( "[bytes=200000-, null]", ranges.toString() );
+  }
+
+  /**
+   * Large artifacts are downloaded in concurrent chunks
+   *
+   * @param dir A temporary directory
+   * @throws Exception on failure
+   */
+  @Test
+  void chunked( @TempDir Path dir ) throws Exception {
+    client = new GithubApiClient( host, "token", 30_000, 3 );
+    listArtifacts();
+    Path part = dir.resolve( "123.zip.part" );
+    LongAccumulator contiguous = new LongAccumulator( Math::max, 0 );
+
+    assertEquals( new Download( part, sha256() ),
+        client.getArtifact( ARTIFACT, part, contiguous::accumulate ) );
+    assertEquals( content.length, contiguous.get() );
+    assertArrayEquals( content, Files.readAllBytes( part ) );
+    assertEquals( "[bytes=0-29999, bytes=30000-59999, bytes=60000-89999, bytes=90000-99999]",
+        ranges.stream().sorted().toList().toString() );
+    assertFalse( Files.exists( Downloader.chunkJournal( part ) ) );
+  }
+
+  /**
+   * An interrupted chunked download leaves a preallocated file, which is resumed
+   * by fetching only the chunks that were not completed
+   *
+   * @param dir A temporary directory
+   * @throws Exception on failure
+   */
+  @Test
+  void chunkResumed( @TempDir Path dir ) throws Exception {
+    client = new GithubApiClient( host, "token", 30_000, 3 );
+    listArtifacts();
+    Path part = dir.resolve( "123.zip.part" );
+    byte[] interrupted = new byte[content.length];
+    System.arraycopy( content, 60_000, interrupted, 60_000, 30_000 );
+    Files.write( part, interrupted );
+    Files.writeString( Downloader.chunkJournal( part ), "30000\n2\n" );
+
+    assertEquals( new Download( part, sha256() ), client.getArtifact( ARTIFACT, part ) );
+    assertArrayEquals( content, Files.readAllBytes( part ) );
+    assertEquals( "[bytes=0-29999, bytes=30000-59999, bytes=90000-99999]",
+        ranges.stream().sorted().toList().toString() );
+    assertFalse( Files.exists( Downloader.chunkJournal( part ) ) );
+  }
+
+  /**
+   * A preallocated file whose journal doesn't match our chunking is downloaded
+   * afresh rather than being taken for the start of a single-stream download
+   *
+   * @param dir A temporary directory
+   * @throws Exception on failure
+   */
+  @Test
+  void chunkRestarted( @TempDir Path dir ) throws Exception {
+    client = new GithubApiClient( host, "token", 30_000, 3 );
+    listArtifacts();
+    Path part = dir.resolve( "123.zip.part" );
+    Files.write( part, new byte[content.length] );
+    Files.writeString( Downloader.chunkJournal( part ), "40000\n0\n1\n" );
+
+    assertEquals( new Download( part, sha256() ), client.getArtifact( ARTIFACT, part ) );
+    assertArrayEquals( content, Files.readAllBytes( part ) );
+    assertEquals( "[bytes=0-29999, bytes=30000-59999, bytes=60000-89999, bytes=90000-99999]",
+        ranges.stream().sorted().toList().toString() );
+  }
+
+  /**
+   * Chunked downloads fall back to a single stream if the server doesn't support
+   * ranges
+   *
+   * @param dir A temporary directory
+   * @throws Exception on failure
+   */
+  @Test
+  void unchunkable( @TempDir Path dir ) throws Exception {
+    honourRanges = false;
+    client = new GithubApiClient( host, "token", 60_000, 2 );
+    listArtifacts();
+    Path part = dir.resolve( "123.zip.part" );
+
+    assertEquals( new Download( part, sha256() ), client.getArtifact( ARTIFACT, part ) );
+    assertArrayEquals( content, Files.readAllBytes( part ) );
+    assertEquals( "[bytes=0-59999, bytes=60000-99999, null]",
+        ranges.stream().sorted().toList().toString() );
+    assertFalse( Files.exists( Downloader.chunkJournal( part ) ) );
+  }
+
+  /**
+   * Small artifacts are downloaded in a single stream
+   *
+   * @param dir A temporary directory
+   * @throws Exception on failure
+   */
+  @Test
+  void unchunked( @TempDir Path dir ) throws Exception {
+    client = new GithubApiClient( host, "token", 100_000, 3 );
+    listArtifacts();
+    Path part = dir.resolve( "123.zip.part" );
+
+    assertEquals( new Download( part, sha256() ), client.getArtifact( ARTIFACT, part ) );
+    assertEquals( "[null]", ranges.toString() );
+  }
+
+  private void listArtifacts() {
+    client.getArtifacts( new Run( new Workflow( ARTIFACT.repo(), "flow" ), "9" ) );
+    assertEquals( content.length, client.expectedSize( ARTIFACT ) );
+  }
+
+  /**
+   * Arbitrary ranges of an artifact can be fetched without downloading all of it
+   *
+   * @param dir A temporary directory
+   * @throws Exception on failure
+   */
+  @Test
+  void remote( @TempDir Path dir ) throws Exception {
+    RemoteZip.Source source = client.rangeSource( ARTIFACT );
+    assertEquals( content.length, source.size() );
+    try( FileChannel file = FileChannel.open( dir.resolve( "123.zip.sparse" ),
+        CREATE, READ, WRITE ) ) {
+      file.write( ByteBuffer.allocate( 1 ), content.length - 1 );
+      source.fetch( 1000, 1999, file );
+      ByteBuffer fetched = ByteBuffer.allocate( 1000 );
+      file.read( fetched, 1000 );
+      assertArrayEquals( Arrays.copyOfRange( content, 1000, 2000 ), fetched.array() );
+    }
+    assertEquals( "[bytes=0-0, bytes=1000-1999]", ranges.toString() );
+  }
+
+  /**
+   * Artifacts can't be read remotely if the server doesn't support ranges
+   */
+  @Test
+  void unremotable() {
+    honourRanges = false;
+    RemoteZip.Source source = client.rangeSource( ARTIFACT );
+    assertThrows( IOException.class, source::size );
+  }
+
+  /**
+   * Github tells us when artifacts are missing or expired
+   *
+   * @param dir A temporary directory
+   */
+  @Test
+  void absent( @TempDir Path dir ) {
+    server.createContext( "/repos/owner/repo/actions/artifacts/404/zip", exchange -> {
+      exchange.sendResponseHeaders( 404, -1 );
+      exchange.close();
+    } );
+    server.createContext( "/repos/owner/repo/actions/artifacts/410/zip", exchange -> {
+      exchange.sendResponseHeaders( 410, -1 );
+      exchange.close();
+    } );
+    Path part = dir.resolve( "part" );
+
+    Artifact missing = new Artifact( ARTIFACT.repo(), "404" );
+    assertEquals( Absence.MISSING, assertThrows( ArtifactAbsentException.class,
+        () -> client.getArtifact( missing, part ) ).absence() );
+    Artifact expired = new Artifact( ARTIFACT.repo(), "410" );
+    assertEquals( Absence.EXPIRED, assertThrows( ArtifactAbsentException.class,
+        () -> client.getArtifact( expired, part ) ).absence() );
+    assertEquals( Absence.EXPIRED, assertThrows( ArtifactAbsentException.class,
+        () -> client.rangeSource( expired ).size() ).absence() );
+    assertEquals( "[]", ranges.toString() );
+  }
+
+  /**
+   * A download that stalls is raced by another from a fresh link, and the winner
+   * ends up in place
+   *
+   * @param dir A temporary directory
+   * @throws Exception on failure
+   */
+  @Test
+  void hedged( @TempDir Path dir ) throws Exception {
+    CountDownLatch release = new CountDownLatch( 1 );
+    AtomicInteger requests = new AtomicInteger();
+    server.removeContext( "/blob" );
+    server.createContext( "/blob", exchange -> {
+      if( requests.getAndIncrement() > 0 ) {
+        blob( exchange );
+        return;
+      }
+      // the first request crawls
+      exchange.sendResponseHeaders( 200, content.length );
+      try( OutputStream os = exchange.getResponseBody() ) {
+        os.write( content, 0, 1000 );
+        os.flush();
+        release.await();
+      }
+      catch( @SuppressWarnings("unused") InterruptedException | IOException e ) {
+        // expected when we're abandoned
+      }
+    } );
+    client.withHedging( 10_000, Duration.ofMillis( 100 ) );
+
+    try {
+      Path part = dir.resolve( "123.zip.part" );
+      assertEquals( new Download( part, sha256() ), client.getArtifact( ARTIFACT, part ) );
+      assertArrayEquals( content, Files.readAllBytes( part ) );
+      assertFalse( Files.exists( dir.resolve( "hedge-123.zip.part" ) ) );
+      assertEquals( 2, requests.get() );
+      assertEquals( 1, client.hedged() );
+      assertEquals( 1, client.hedgesWon() );
+      assertEquals( "download hedging: 1 hedged, 1 won",
+          client.statistics().get( 2 ).toString() );
+    }
+    finally {
+      release.countDown();
+    }
+  }
+
+  /**
+   * Failed downloads are reported
+   *
+   * @param dir A temporary directory
+   * @throws Exception on failure
+   */
+  @Test
+  void failure( @TempDir Path dir ) throws Exception {
+    server.removeContext( "/blob" );
+    server.createContext( "/blob", exchange -> {
+      exchange.sendResponseHeaders( 500, -1 );
+      exchange.close();
+    } );
+    assertNull( client.getArtifact( ARTIFACT, dir.resolve( "123.zip.part" ) ) );
+  }
+
+  /**
+   * API calls are not serialised, so a slow call doesn't hold up the others
+   *
+   * @throws Exception on failure
+   */
+  @Test
+  void concurrentCalls() throws Exception {
+    CountDownLatch together = new CountDownLatch( 2 );
+    server.createContext( "/repos/owner/repo", exchange -> {
+      together.countDown();
+      try {
+        // neither call can complete unless both are in flight
+        together.await( 5, TimeUnit.SECONDS );
+      }
+      catch( InterruptedException e ) {
+        Thread.currentThread().interrupt();
+      }
+      byte[] body = "{\"default_branch\":\"main\"}".getBytes( StandardCharsets.UTF_8 );
+      exchange.getResponseHeaders().add( "x-ratelimit-remaining", "4999" );
+      exchange.getResponseHeaders().add( "x-ratelimit-reset",
+          String.valueOf( Instant.now().plus( Duration.ofHours( 1 ) ).getEpochSecond() ) );
+      exchange.sendResponseHeaders( 200, body.length );
+      try( OutputStream os = exchange.getResponseBody() ) {
+        os.write( body );
+      }
+    } );
+
+    Repository repo = new Repository( "owner", "repo" );
+    Future<Branch> first = executor.submit( () -> client.getDefaultBranch( repo ) );
+    Future<Branch> second = executor.submit( () -> client.getDefaultBranch( repo ) );
+    assertEquals( "main", first.get( 10, TimeUnit.SECONDS ).name() );
+    assertEquals( "main", second.get( 10, TimeUnit.SECONDS ).name() );
+    assertEquals( 0, together.getCount() );
+  }
+
+  /**
+   * Responses are revalidated with their entity tags, and reused if they're still
+   * current
+   */
+  @Test
+  void conditional() {
+    List<String> validators = new CopyOnWriteArrayList<>();
+    String[] branch = { "main" };
+    server.createContext( "/repos/owner/repo", exchange -> {
+      String etag = "\"" + branch[0] + "\"";
+      validators.add( String.valueOf( exchange.getRequestHeaders().getFirst( "If-None-Match" ) ) );
+      exchange.getResponseHeaders().add( "etag", etag );
+      if( etag.equals( exchange.getRequestHeaders().getFirst( "If-None-Match" ) ) ) {
+        exchange.sendResponseHeaders( 304, -1 );
+        exchange.close();
+        return;
+      }
+      byte[] body = String.format( "{\"default_branch\":\"%s\"}", branch[0] )
+          .getBytes( StandardCharsets.UTF_8 );
+      exchange.sendResponseHeaders( 200, body.length );
+      try( OutputStream os = exchange.getResponseBody() ) {
+        os.write( body );
+      }
+    } );
+
+    Repository repo = new Repository( "owner", "repo" );
+    assertEquals( "main", client.getDefaultBranch( repo ).name() );
+    assertEquals( "main", client.getDefaultBranch( repo ).name() );
+    branch[0] = "trunk";
+    assertEquals( "trunk", client.getDefaultBranch( repo ).name() );
+    assertEquals( "trunk", client.getDefaultBranch( repo ).name() );
+
+    assertEquals( "[null, \"main\", \"main\", \"trunk\"]", validators.toString() );
+    assertEquals( 2, client.notModified() );
+    assertEquals( "API response cache: 1 responses, 3 of 4 requests conditional, 2 not modified",
+        client.responseCache() );
+  }
+
+  /**
+   * Serves a paginated listing of artifacts on run 7
+   *
+   * @param total    The number of artifacts
+   * @param counted  Whether to tell the client how many artifacts there are
+   * @param together Pages after the first wait on this before responding
+   * @param queries  Will be given the query of each request
+   */
+  private void artifactPages( int total, boolean counted, CountDownLatch together,
+      List<String> queries ) {
+    server.createContext( "/repos/owner/repo/actions/runs/7/artifacts", exchange -> {
+      String query = exchange.getRequestURI().getQuery();
+      queries.add( query );
+      int page = Integer.parseInt( query.replaceAll( ".*page=(\\d+)$", "$1" ) );
+      if( page > 1 ) {
+        together.countDown();
+        try {
+          // no page can complete unless they're all in flight
+          together.await( 5, TimeUnit.SECONDS );
+        }
+        catch( InterruptedException e ) {
+          Thread.currentThread().interrupt();
+        }
+      }
+      String etag = "\"" + page + "\"";
+      exchange.getResponseHeaders().add( "etag", etag );
+      if( etag.equals( exchange.getRequestHeaders().getFirst( "If-None-Match" ) ) ) {
+        // only the changed headers are sent, and the links don't change
+        exchange.sendResponseHeaders( 304, -1 );
+        exchange.close();
+        return;
+      }
+      StringBuilder body = new StringBuilder( "{" );
+      if( counted ) {
+        body.append( "\"total_count\":" ).append( total ).append( "," );
+      }
+      body.append( "\"artifacts\":[" );
+      for( int i = (page - 1) * 100; i < Math.min( total, page * 100 ); i++ ) {
+        body.append( i % 100 == 0 ? "" : "," )
+            .append( String.format( "{\"id\":\"%s\",\"name\":\"art_%s\"}", i, i ) );
+      }
+      body.append( "]}" );
+      if( page * 100 < total ) {
+        String pages = host + "/repos/owner/repo/actions/runs/7/artifacts?per_page=100&page=";
+        exchange.getResponseHeaders().add( "link",
+            "<" + pages + (page + 1) + ">; rel=\"next\", "
+                + "<" + pages + (total + 99) / 100 + ">; rel=\"last\"" );
+      }
+      byte[] bytes = body.toString().getBytes( StandardCharsets.UTF_8 );
+      exchange.sendResponseHeaders( 200, bytes.length );
+      try( OutputStream os = exchange.getResponseBody() ) {
+        os.write( bytes );
+      }
+    } );
+  }
+
+  /**
+   * Once we know how many artifacts there are, the rest of the pages are
+   * requested together
+   */
+  @Test
+  void paginated() {
+    CountDownLatch together = new CountDownLatch( 2 );
+    List<String> queries = new CopyOnWriteArrayList<>();
+    artifactPages( 250, true, together, queries );
+
+    Set<NamedArtifact> artifacts = client.getArtifacts(
+        new Run( new Workflow( ARTIFACT.repo(), "flow" ), "7" ) );
+
+    assertEquals( 250, artifacts.size() );
+    assertEquals( "art_0", artifacts.iterator().next().name() );
+    assertEquals( 0, together.getCount() );
+    assertEquals( "[per_page=100&page=1, per_page=100&page=2, per_page=100&page=3]",
+        queries.stream().sorted().toList().toString() );
+  }
+
+  /**
+   * If we don't know how many artifacts there are then we follow the links from
+   * one page to the next
+   */
+  @Test
+  void linked() {
+    List<String> queries = new CopyOnWriteArrayList<>();
+    artifactPages( 150, false, new CountDownLatch( 0 ), queries );
+
+    Set<NamedArtifact> artifacts = client.getArtifacts(
+        new Run( new Workflow( ARTIFACT.repo(), "flow" ), "7" ) );
+
+    assertEquals( 150, artifacts.size() );
+    assertEquals( "[per_page=100&page=1, per_page=100&page=2]", queries.toString() );
+  }
+
+  /**
+   * The next links of a listing are still followed when it hasn't changed
+   */
+  @Test
+  void relisted() {
+    List<String> queries = new CopyOnWriteArrayList<>();
+    artifactPages( 150, false, new CountDownLatch( 0 ), queries );
+    Run run = new Run( new Workflow( ARTIFACT.repo(), "flow" ), "7" );
+
+    assertEquals( 150, client.getArtifacts( run ).size() );
+    assertEquals( 150, client.getArtifacts( run ).size() );
+
+    assertEquals( "[per_page=100&page=1, per_page=100&page=2, "
+        + "per_page=100&page=1, per_page=100&page=2]", queries.toString() );
+    assertEquals( "API response cache: 2 responses, 2 of 4 requests conditional, 2 not modified",
+        client.responseCache().toString() );
+  }
+
+  /**
+   * Artifacts can be consumed before the whole listing has arrived
+   *
+   * @throws Exception on failure
+   */
+  @Test
+  void streamed() throws Exception {
+    CountDownLatch together = new CountDownLatch( 3 );
+    artifactPages( 250, true, together, new CopyOnWriteArrayList<>() );
+
+    try( Stream<NamedArtifact> listing = client.streamArtifacts(
+        new Run( new Workflow( ARTIFACT.repo(), "flow" ), "7" ) ) ) {
+      // the first page is available...
+      assertEquals( "art_42", listing
+          .filter( a -> a.name().equals( "art_42" ) )
+          .findFirst()
+          .map( NamedArtifact::name )
+          .orElse( null ) );
+      // ...and the later pages can't have been served yet
+      assertTrue( together.getCount() > 0 );
+    }
+    finally {
+      while( together.getCount() > 0 ) {
+        together.countDown();
+      }
+    }
+  }
+
+  /**
+   * A listing fails if any of its pages do
+   */
+  @Test
+  void failedPage() {
+    server.createContext( "/repos/owner/repo/actions/runs/7/artifacts", exchange -> {
+      boolean first = exchange.getRequestURI().getQuery().endsWith( "page=1" );
+      byte[] body = "{\"total_count\":150,\"artifacts\":[]}".getBytes( StandardCharsets.UTF_8 );
+      exchange.sendResponseHeaders( first ? 200 : 500, body.length );
+      try( OutputStream os = exchange.getResponseBody() ) {
+        os.write( body );
+      }
+    } );
+    Run run = new Run( new Workflow( ARTIFACT.repo(), "flow" ), "7" );
+
+    assertNull( client.getArtifacts( run ) );
+    try( Stream<NamedArtifact> listing = client.streamArtifacts( run ) ) {
+      UncheckedIOException e = assertThrows( UncheckedIOException.class, listing::toList );
+      assertTrue( e.getMessage().contains( "Unexpected response status 500" ), e.getMessage() );
+    }
+  }
+}
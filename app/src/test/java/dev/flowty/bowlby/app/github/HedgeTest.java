@@ -0,0 +1,122 @@
+package dev.flowty.bowlby.app.github;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongConsumer;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Exercises {@link Hedge} behaviours
+ */
+@SuppressWarnings("static-method")
+class HedgeTest {
+
+  /**
+   * An attempt that we control
+   */
+  private static class Controlled implements Hedge.Attempt<String> {
+    private final CompletableFuture<String> result = new CompletableFuture<>();
+    private volatile CompletableFuture<Void> abort;
+    private volatile boolean started = false;
+
+    @Override
+    public CompletableFuture<String> start( LongConsumer progress,
+        CompletableFuture<Void> abandon ) {
+      started = true;
+      abort = abandon;
+      progress.accept( 0 );
+      abort.thenRun( () -> result.cancel( false ) );
+      return result;
+    }
+  }
+
+  /**
+   * Downloads that finish promptly are not hedged
+   *
+   * @throws Exception on failure
+   */
+  @Test
+  void prompt() throws Exception {
+    Hedge hedge = new Hedge( 1000, Duration.ofMillis( 50 ) );
+    Controlled primary = new Controlled();
+    Controlled spare = new Controlled();
+    CompletableFuture<String> result = hedge.race( primary, spare );
+    primary.result.complete( "primary" );
+
+    assertEquals( "primary", result.get( 5, TimeUnit.SECONDS ) );
+    Thread.sleep( 150 );
+    assertFalse( spare.started );
+    assertEquals( 0, hedge.hedged() );
+  }
+
+  /**
+   * A stalled download is raced, and abandoned when the second attempt wins
+   *
+   * @throws Exception on failure
+   */
+  @Test
+  void stalled() throws Exception {
+    Hedge hedge = new Hedge( 1000, Duration.ofMillis( 50 ) );
+    Controlled primary = new Controlled();
+    Controlled spare = new Controlled();
+    CompletableFuture<String> result = hedge.race( primary, spare );
+
+    while( !spare.started ) {
+      Thread.sleep( 10 );
+    }
+    spare.result.complete( "spare" );
+
+    assertEquals( "spare", result.get( 5, TimeUnit.SECONDS ) );
+    assertTrue( primary.abort.isDone() );
+    assertTrue( primary.result.isCancelled() );
+    assertFalse( spare.abort.isDone() );
+    assertEquals( "1 hedged, 1 won", hedge.toString() );
+  }
+
+  /**
+   * If the second attempt fails then we stick with the first
+   *
+   * @throws Exception on failure
+   */
+  @Test
+  void spareFailure() throws Exception {
+    Hedge hedge = new Hedge( 1000, Duration.ofMillis( 50 ) );
+    Controlled primary = new Controlled();
+    Controlled spare = new Controlled();
+    CompletableFuture<String> result = hedge.race( primary, spare );
+
+    while( !spare.started ) {
+      Thread.sleep( 10 );
+    }
+    spare.result.complete( null );
+    assertFalse( result.isDone() );
+    primary.result.complete( "primary" );
+
+    assertEquals( "primary", result.get( 5, TimeUnit.SECONDS ) );
+    assertEquals( "1 hedged, 0 won", hedge.toString() );
+  }
+
+  /**
+   * Nothing is hedged if there's no throughput floor
+   *
+   * @throws Exception on failure
+   */
+  @Test
+  void disabled() throws Exception {
+    Hedge hedge = new Hedge( 0, Duration.ofMillis( 50 ) );
+    Controlled primary = new Controlled();
+    Controlled spare = new Controlled();
+    CompletableFuture<String> result = hedge.race( primary, spare );
+    Thread.sleep( 150 );
+    primary.result.complete( "primary" );
+
+    assertEquals( "primary", result.get( 5, TimeUnit.SECONDS ) );
+    assertFalse( spare.started );
+  }
+}
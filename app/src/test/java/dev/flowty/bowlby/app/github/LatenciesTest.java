@@ -0,0 +1,47 @@
+package dev.flowty.bowlby.app.github;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.time.Duration;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Exercises {@link Latencies} behaviours
+ */
+@SuppressWarnings("static-method")
+class LatenciesTest {
+
+  /**
+   * Percentiles are taken from the recorded samples
+   */
+  @Test
+  void percentiles() {
+    Latencies latencies = new Latencies( 100 );
+    assertNull( latencies.percentile( 50 ) );
+    assertEquals( "no samples", latencies.toString() );
+
+    for( int i = 100; i > 0; i-- ) {
+      latencies.record( Duration.ofMillis( i ) );
+    }
+    assertEquals( Duration.ofMillis( 1 ), latencies.percentile( 0 ) );
+    assertEquals( Duration.ofMillis( 50 ), latencies.percentile( 50 ) );
+    assertEquals( Duration.ofMillis( 99 ), latencies.percentile( 99 ) );
+    assertEquals( Duration.ofMillis( 100 ), latencies.percentile( 100 ) );
+    assertEquals( "p50 50ms, p90 90ms, p99 99ms over 100 samples", latencies.toString() );
+  }
+
+  /**
+   * Only the most recent samples are kept
+   */
+  @Test
+  void capacity() {
+    Latencies latencies = new Latencies( 2 );
+    latencies.record( Duration.ofMillis( 1000 ) );
+    latencies.record( Duration.ofMillis( 1 ) );
+    latencies.record( Duration.ofMillis( 2 ) );
+    assertEquals( 2, latencies.size() );
+    assertEquals( Duration.ofMillis( 2 ), latencies.percentile( 100 ) );
+  }
+}
@@ -0,0 +1,134 @@
+package dev.flowty.bowlby.app.github;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.net.http.HttpClient.Version;
+import java.net.http.HttpHeaders;
+import java.net.http.HttpResponse;
+import java.net.http.HttpResponse.BodyHandler;
+import java.net.http.HttpResponse.BodySubscriber;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+import dev.flowty.bowlby.app.github.Message.ListWorkflowRunArtifactsResponse;
+import dev.flowty.bowlby.app.github.Message.WorkflowRunArtifact;
+
+/**
+ * Exercises {@link Message} parsing
+ */
+@SuppressWarnings("static-method")
+class MessageTest {
+
+  private static final String LISTING = """
+      {
+        "total_count": 2,
+        "artifacts": [
+          {
+            "id": 11,
+            "node_id": "MDg6QXJ0aWZhY3QxMQ==",
+            "name": "first",
+            "size_in_bytes": 1234,
+            "expired": false,
+            "digest": "sha256:abc",
+            "workflow_run": { "id": 99, "head_branch": "main", "tags": [ { "name": "x" } ] }
+          },
+          {
+            "labels": [ [ "a" ], { "id": 98 } ],
+            "id": 12,
+            "name": "second",
+            "size_in_bytes": 5678
+          }
+        ]
+      }
+      """;
+
+  /**
+   * Feeds a body to a handler
+   *
+   * @param <T>     The parsed type
+   * @param handler The handler
+   * @param body    The body
+   * @param chunk   The size of the chunks in which the body arrives
+   * @return The parsed body
+   * @throws Exception on failure
+   */
+  private static <T> T parse( BodyHandler<T> handler, String body, int chunk )
+      throws Exception {
+    BodySubscriber<T> subscriber = handler.apply( new HttpResponse.ResponseInfo() {
+      @Override
+      public int statusCode() {
+        return 200;
+      }
+
+      @Override
+      public HttpHeaders headers() {
+        return HttpHeaders.of( Map.of(), ( n, v ) -> true );
+      }
+
+      @Override
+      public Version version() {
+        return Version.HTTP_1_1;
+      }
+    } );
+    subscriber.onSubscribe( new Flow.Subscription() {
+      @Override
+      public void request( long n ) {
+        // we push regardless
+      }
+
+      @Override
+      public void cancel() {
+        // nothing to stop
+      }
+    } );
+    byte[] bytes = body.getBytes( StandardCharsets.UTF_8 );
+    for( int i = 0; i < bytes.length; i += chunk ) {
+      subscriber.onNext( List.of(
+          ByteBuffer.wrap( bytes, i, Math.min( chunk, bytes.length - i ) ).slice() ) );
+    }
+    subscriber.onComplete();
+    return subscriber.getBody().toCompletableFuture().get( 5, TimeUnit.SECONDS );
+  }
+
+  /**
+   * The body is parsed however it's split up, and undeclared fields don't
+   * interfere with the declared ones
+   *
+   * @throws Exception on failure
+   */
+  @Test
+  void streamed() throws Exception {
+    for( int chunk : new int[] { 1, 7, 64, 1 << 16 } ) {
+      ListWorkflowRunArtifactsResponse response = parse(
+          ListWorkflowRunArtifactsResponse.HANDLER, LISTING, chunk );
+      assertEquals( 2, response.artifacts.size(), "chunk " + chunk );
+
+      WorkflowRunArtifact first = response.artifacts.get( 0 );
+      assertEquals( "11 first sha256:abc 1234",
+          first.id + " " + first.name + " " + first.digest + " " + first.sizeInBytes,
+          "chunk " + chunk );
+      WorkflowRunArtifact second = response.artifacts.get( 1 );
+      assertEquals( "12 second null 5678",
+          second.id + " " + second.name + " " + second.digest + " " + second.sizeInBytes,
+          "chunk " + chunk );
+    }
+  }
+
+  /**
+   * Malformed bodies are reported as failures
+   */
+  @Test
+  void malformed() {
+    ExecutionException e = assertThrows( ExecutionException.class,
+        () -> parse( ListWorkflowRunArtifactsResponse.HANDLER, "{\"artifacts\": [ {", 4 ) );
+    assertEquals( "JsonEOFException", e.getCause().getClass().getSimpleName() );
+  }
+}
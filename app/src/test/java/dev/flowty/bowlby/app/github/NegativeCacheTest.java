@@ -0,0 +1,80 @@
+package dev.flowty.bowlby.app.github;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.Test;
+
+import dev.flowty.bowlby.app.github.Entity.Artifact;
+import dev.flowty.bowlby.app.github.Entity.Repository;
+import dev.flowty.bowlby.app.github.GithubApiClient.Absence;
+
+/**
+ * Exercises {@link NegativeCache} behaviours
+ */
+@SuppressWarnings("static-method")
+class NegativeCacheTest {
+
+  private static final Repository REPO = new Repository( "owner", "repo" );
+
+  private static Artifact artifact( String id ) {
+    return new Artifact( REPO, id );
+  }
+
+  /**
+   * Unavailable artifacts are remembered until they reach their expiry
+   */
+  @Test
+  void expiry() {
+    AtomicLong clock = new AtomicLong();
+    NegativeCache cache = new NegativeCache( 10, Duration.ofMillis( 100 ), clock::get );
+    cache.put( artifact( "a" ), Absence.MISSING );
+    clock.set( 50 );
+    cache.put( artifact( "b" ), Absence.EXPIRED );
+
+    assertEquals( Absence.MISSING, cache.get( artifact( "a" ) ) );
+    assertEquals( Absence.EXPIRED, cache.get( artifact( "b" ) ) );
+    assertNull( cache.get( artifact( "c" ) ) );
+
+    clock.set( 100 );
+    assertNull( cache.get( artifact( "a" ) ) );
+    assertEquals( Absence.EXPIRED, cache.get( artifact( "b" ) ) );
+
+    clock.set( 150 );
+    cache.purge();
+    assertEquals( 0, cache.size() );
+  }
+
+  /**
+   * The oldest entries are dropped to keep within capacity
+   */
+  @Test
+  void capacity() {
+    AtomicLong clock = new AtomicLong();
+    NegativeCache cache = new NegativeCache( 2, Duration.ofMillis( 100 ), clock::incrementAndGet );
+    cache.put( artifact( "a" ), Absence.MISSING );
+    cache.put( artifact( "b" ), Absence.MISSING );
+    // refreshing an entry makes it the newest
+    cache.put( artifact( "a" ), Absence.EXPIRED );
+    cache.put( artifact( "c" ), Absence.MISSING );
+
+    assertEquals( "2 unavailable artifacts", cache.toString() );
+    assertEquals( Absence.EXPIRED, cache.get( artifact( "a" ) ) );
+    assertNull( cache.get( artifact( "b" ) ) );
+    assertEquals( Absence.MISSING, cache.get( artifact( "c" ) ) );
+  }
+
+  /**
+   * Nothing is remembered with a zero time-to-live
+   */
+  @Test
+  void disabled() {
+    NegativeCache cache = new NegativeCache( 10, Duration.ZERO );
+    cache.put( artifact( "a" ), Absence.MISSING );
+    assertNull( cache.get( artifact( "a" ) ) );
+    assertEquals( 0, cache.size() );
+  }
+}
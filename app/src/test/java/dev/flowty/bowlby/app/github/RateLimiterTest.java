@@ -0,0 +1,91 @@
+package dev.flowty.bowlby.app.github;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Exercises {@link RateLimiter} behaviours
+ */
+@SuppressWarnings("static-method")
+class RateLimiterTest {
+
+  private static final long SECOND = TimeUnit.SECONDS.toNanos( 1 );
+
+  /**
+   * Permits are issued freely until we know what the budget is
+   */
+  @Test
+  void unlimited() {
+    RateLimiter limiter = new RateLimiter( new AtomicLong()::get );
+    for( int i = 0; i < 100; i++ ) {
+      assertEquals( 0, limiter.reserve() );
+    }
+    assertEquals( "API rate limiter: a permit every PT0S in bursts of 8, 100 granted, 0 delayed",
+        limiter.toString() );
+  }
+
+  /**
+   * A burst of permits is available immediately, after which they're spaced out
+   */
+  @Test
+  void burst() {
+    AtomicLong clock = new AtomicLong();
+    RateLimiter limiter = new RateLimiter( clock::get );
+    limiter.update( 3, Duration.ofSeconds( 1 ) );
+
+    assertEquals( 0, limiter.reserve() );
+    assertEquals( 0, limiter.reserve() );
+    assertEquals( 0, limiter.reserve() );
+    assertEquals( SECOND, limiter.reserve() );
+    assertEquals( 2 * SECOND, limiter.reserve() );
+
+    // permits build back up while we're idle
+    clock.addAndGet( 10 * SECOND );
+    assertEquals( 0, limiter.reserve() );
+    assertEquals( 0, limiter.reserve() );
+    assertEquals( 0, limiter.reserve() );
+    assertEquals( SECOND, limiter.reserve() );
+    assertEquals( "API rate limiter: a permit every PT1S in bursts of 3, 9 granted, 3 delayed",
+        limiter.toString() );
+  }
+
+  /**
+   * No permits are issued while the budget is exhausted
+   */
+  @Test
+  void exhausted() {
+    AtomicLong clock = new AtomicLong();
+    RateLimiter limiter = new RateLimiter( clock::get );
+    limiter.update( 1, Duration.ofMillis( 100 ) );
+    limiter.pause( Duration.ofSeconds( 5 ) );
+
+    assertEquals( 5 * SECOND, limiter.reserve() );
+    clock.addAndGet( 6 * SECOND );
+    assertEquals( 0, limiter.reserve() );
+  }
+
+  /**
+   * Waiting for a permit doesn't block
+   *
+   * @throws Exception on failure
+   */
+  @Test
+  void asynchronous() throws Exception {
+    RateLimiter limiter = new RateLimiter();
+    limiter.update( 1, Duration.ofMillis( 200 ) );
+
+    assertTrue( limiter.acquire().isDone() );
+    CompletableFuture<Void> delayed = limiter.acquire();
+    assertFalse( delayed.isDone() );
+    delayed.get( 5, TimeUnit.SECONDS );
+    assertEquals( 1, limiter.delayed() );
+  }
+}
@@ -0,0 +1,173 @@
+package dev.flowty.bowlby.app.github;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.net.URI;
+import java.net.http.HttpClient.Version;
+import java.net.http.HttpHeaders;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpResponse.BodyHandlers;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+
+import javax.net.ssl.SSLSession;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Exercises {@link ResponseCache} behaviours
+ */
+@SuppressWarnings("static-method")
+class ResponseCacheTest {
+
+  /**
+   * A canned response
+   *
+   * @param statusCode The status
+   * @param headers    The headers
+   * @param body       The body
+   * @param request    The request
+   */
+  private record Canned(int statusCode, HttpHeaders headers, String body, HttpRequest request)
+      implements HttpResponse<String> {
+
+    @Override
+    public Optional<HttpResponse<String>> previousResponse() {
+      return Optional.empty();
+    }
+
+    @Override
+    public Optional<SSLSession> sslSession() {
+      return Optional.empty();
+    }
+
+    @Override
+    public URI uri() {
+      return request.uri();
+    }
+
+    @Override
+    public Version version() {
+      return Version.HTTP_1_1;
+    }
+  }
+
+  /**
+   * A server whose resources have an entity tag of their path. Full responses
+   * link to the next page, revalidations report the remaining rate limit.
+   */
+  private static class Server implements ResponseCache.Sender<String> {
+    private final List<String> validators = new ArrayList<>();
+
+    @Override
+    public CompletableFuture<HttpResponse<String>> apply( HttpRequest request,
+        HttpResponse.BodyHandler<String> handler ) {
+      String etag = request.uri().getPath();
+      String validator = request.headers().firstValue( "If-None-Match" ).orElse( null );
+      validators.add( String.valueOf( validator ) );
+      return CompletableFuture.completedFuture( etag.equals( validator )
+          ? new Canned( 304, headers(
+              "etag", etag,
+              "x-ratelimit-remaining", "4999" ),
+              null, request )
+          : new Canned( 200, headers(
+              "etag", etag,
+              "link", "<http://github" + etag + "?page=2>; rel=\"next\"",
+              "x-ratelimit-remaining", "5000" ),
+              "body of " + etag, request ) );
+    }
+
+    private static HttpHeaders headers( String... nameValues ) {
+      Map<String, List<String>> map = new HashMap<>();
+      for( int i = 0; i < nameValues.length; i += 2 ) {
+        map.put( nameValues[i], List.of( nameValues[i + 1] ) );
+      }
+      return HttpHeaders.of( map, ( n, v ) -> true );
+    }
+  }
+
+  private static String get( ResponseCache cache, Server server, String path ) {
+    return send( cache, server, path ).body();
+  }
+
+  private static HttpResponse<String> send( ResponseCache cache, Server server,
+      String path ) {
+    HttpResponse<String> response = cache.send(
+        HttpRequest.newBuilder( URI.create( "http://github" + path ) ).GET().build(),
+        BodyHandlers.ofString(), server ).join();
+    assertEquals( 200, response.statusCode() );
+    return response;
+  }
+
+  /**
+   * Stored responses are revalidated and reused
+   */
+  @Test
+  void revalidation() {
+    ResponseCache cache = new ResponseCache( 4 );
+    Server server = new Server();
+    assertEquals( "body of /a", get( cache, server, "/a" ) );
+    assertEquals( "body of /a", get( cache, server, "/a" ) );
+    assertEquals( "body of /b", get( cache, server, "/b" ) );
+
+    assertEquals( "[null, /a, null]", server.validators.toString() );
+    assertEquals( "API response cache: 2 responses, 1 of 3 requests conditional, 1 not modified",
+        cache.toString() );
+  }
+
+  /**
+   * Revalidated responses have the headers of the stored response, updated with
+   * those of the revalidation
+   */
+  @Test
+  void headers() {
+    ResponseCache cache = new ResponseCache( 4 );
+    Server server = new Server();
+    send( cache, server, "/a" );
+    HttpResponse<String> revalidated = send( cache, server, "/a" );
+
+    assertEquals( "[null, /a]", server.validators.toString() );
+    assertEquals( "<http://github/a?page=2>; rel=\"next\"",
+        revalidated.headers().firstValue( "Link" ).orElse( null ) );
+    assertEquals( "4999",
+        revalidated.headers().firstValue( "x-ratelimit-remaining" ).orElse( null ) );
+    assertEquals( "/a", revalidated.headers().firstValue( "etag" ).orElse( null ) );
+  }
+
+  /**
+   * The least-recently-used responses are forgotten
+   */
+  @Test
+  void bounded() {
+    ResponseCache cache = new ResponseCache( 2 );
+    Server server = new Server();
+    get( cache, server, "/a" );
+    get( cache, server, "/b" );
+    get( cache, server, "/a" );
+    get( cache, server, "/c" );
+    get( cache, server, "/a" );
+    get( cache, server, "/b" );
+
+    assertEquals( "[null, null, /a, null, /a, null]", server.validators.toString() );
+    assertEquals( 2, cache.size() );
+  }
+
+  /**
+   * Nothing is remembered if the cache has no capacity
+   */
+  @Test
+  void disabled() {
+    ResponseCache cache = new ResponseCache( 0 );
+    Server server = new Server();
+    get( cache, server, "/a" );
+    get( cache, server, "/a" );
+
+    assertEquals( "[null, null]", server.validators.toString() );
+    assertEquals( 0, cache.requests() );
+  }
+}
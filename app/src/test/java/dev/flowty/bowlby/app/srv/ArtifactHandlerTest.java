@@ -0,0 +1,154 @@
+package dev.flowty.bowlby.app.srv;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpResponse.BodyHandlers;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.sun.net.httpserver.HttpServer;
+
+import dev.flowty.bowlby.app.github.Artifacts;
+import dev.flowty.bowlby.app.github.Entity.Artifact;
+import dev.flowty.bowlby.app.github.Entity.Repository;
+import dev.flowty.bowlby.app.zip.PartialZip;
+import dev.flowty.bowlby.app.zip.ZipArchive;
+
+/**
+ * Exercises {@link ArtifactHandler} behaviours
+ */
+class ArtifactHandlerTest {
+
+  private static final Artifact ARTIFACT = new Artifact(
+      new Repository( "owner", "repo" ), "12345" );
+
+  private final Artifacts artifacts = mock( Artifacts.class );
+  private final HandlePool<Path, ZipArchive> zips = new HandlePool<>(
+      "zip", 4, Duration.ofMinutes( 1 ) );
+  private HttpServer server;
+
+  /**
+   * Starts a server that hosts the handler
+   *
+   * @throws IOException on failure
+   */
+  @BeforeEach
+  void start() throws IOException {
+    server = HttpServer.create( new InetSocketAddress( "localhost", 0 ), 0 );
+    server.createContext( "/artifacts", new ArtifactHandler(
+        Set.of(), artifacts, zips, new ServeUtil( "" ) ) );
+    server.start();
+  }
+
+  /**
+   * Stops the server
+   */
+  @AfterEach
+  void stop() {
+    server.stop( 0 );
+    zips.close();
+  }
+
+  private static void zip( Path file ) throws IOException {
+    try( ZipOutputStream zos = new ZipOutputStream( Files.newOutputStream( file ) ) ) {
+      zos.putNextEntry( new ZipEntry( "file.txt" ) );
+      zos.write( "content".getBytes( UTF_8 ) );
+    }
+  }
+
+  private HttpResponse<String> request() throws IOException, InterruptedException {
+    return HttpClient.newHttpClient().send( HttpRequest.newBuilder()
+        .uri( URI.create( "http://localhost:" + server.getAddress().getPort()
+            + "/artifacts/owner/repo/12345/file.txt" ) )
+        .build(),
+        BodyHandlers.ofString() );
+  }
+
+  /**
+   * Entries of a verified artifact can be cached forever
+   *
+   * @param dir A temporary directory
+   * @throws Exception on failure
+   */
+  @Test
+  void verified( @TempDir Path dir ) throws Exception {
+    Path file = dir.resolve( "artifact.zip" );
+    zip( file );
+    when( artifacts.get( any() ) ).thenReturn( file );
+
+    HttpResponse<String> response = request();
+
+    assertEquals( 200, response.statusCode() );
+    assertEquals( "content", response.body() );
+    assertEquals( "max-age=31536000, immutable",
+        response.headers().firstValue( "cache-control" ).orElse( null ) );
+    assertEquals( "\"12345-fec530a9-7\"",
+        response.headers().firstValue( "etag" ).orElse( null ) );
+  }
+
+  /**
+   * If the artifact is removed from the cache between us finding it and opening
+   * it, then we just get it again
+   *
+   * @param dir A temporary directory
+   * @throws Exception on failure
+   */
+  @Test
+  void evicted( @TempDir Path dir ) throws Exception {
+    Path file = dir.resolve( "artifact.zip" );
+    zip( file );
+    when( artifacts.get( any() ) ).thenReturn( dir.resolve( "evicted.zip" ), file );
+
+    HttpResponse<String> response = request();
+
+    assertEquals( 200, response.statusCode() );
+    assertEquals( "content", response.body() );
+    verify( artifacts, times( 2 ) ).get( ARTIFACT );
+  }
+
+  /**
+   * Entries that are served before the download has been verified must not be
+   * cached, as the download could yet turn out to be bad
+   *
+   * @param dir A temporary directory
+   * @throws Exception on failure
+   */
+  @Test
+  void early( @TempDir Path dir ) throws Exception {
+    Path part = dir.resolve( "artifact.zip.part" );
+    zip( part );
+    PartialZip partial = new PartialZip( dir.resolve( "artifact.zip" ), part );
+    partial.advance( Files.size( part ) );
+    when( artifacts.getPartial( ARTIFACT ) ).thenReturn( partial );
+
+    HttpResponse<String> response = request();
+
+    assertEquals( 200, response.statusCode() );
+    assertEquals( "content", response.body() );
+    assertEquals( "no-store",
+        response.headers().firstValue( "cache-control" ).orElse( null ) );
+    assertNull( response.headers().firstValue( "etag" ).orElse( null ) );
+  }
+}
@@ -0,0 +1,62 @@
+package dev.flowty.bowlby.app.srv;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.List;
+import java.util.function.BiConsumer;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.Test;
+
+import dev.flowty.bowlby.app.srv.ByteRanges.Range;
+
+/**
+ * Exercises {@link ByteRanges} parsing
+ */
+@SuppressWarnings("static-method")
+class ByteRangesTest {
+
+  private static String format( List<Range> ranges ) {
+    if( ranges == null ) {
+      return "whole";
+    }
+    if( ranges.isEmpty() ) {
+      return "unsatisfiable";
+    }
+    return ranges.stream()
+        .map( r -> r.contentRange( 1000 ) )
+        .collect( Collectors.joining( ", " ) );
+  }
+
+  /**
+   * Demonstrates range header parsing against a 1000-byte representation
+   */
+  @Test
+  void parse() {
+    BiConsumer<String, String> test = ( in, out ) -> assertEquals(
+        out, format( ByteRanges.parse( in, 1000 ) ), "for " + in );
+
+    test.accept( null, "whole" );
+    test.accept( "", "whole" );
+    test.accept( "lines=1-2", "whole" );
+    test.accept( "bytes=", "whole" );
+    test.accept( "bytes=abc", "whole" );
+    test.accept( "bytes=5-1", "whole" );
+    test.accept( "bytes=--5", "whole" );
+
+    test.accept( "bytes=0-499", "bytes 0-499/1000" );
+    test.accept( "BYTES=0-499", "bytes 0-499/1000" );
+    test.accept( "bytes=500-", "bytes 500-999/1000" );
+    test.accept( "bytes=-100", "bytes 900-999/1000" );
+    test.accept( "bytes=-2000", "bytes 0-999/1000" );
+    test.accept( "bytes=900-2000", "bytes 900-999/1000" );
+    test.accept( "bytes=0-0, -1", "bytes 0-0/1000, bytes 999-999/1000" );
+    test.accept( "bytes= 0-9 , 20-29", "bytes 0-9/1000, bytes 20-29/1000" );
+
+    test.accept( "bytes=1000-", "unsatisfiable" );
+    test.accept( "bytes=-0", "unsatisfiable" );
+    test.accept( "bytes=0-9, 2000-", "bytes 0-9/1000" );
+
+    test.accept( "bytes=" + "0-1,".repeat( ByteRanges.MAX_RANGES + 1 ), "whole" );
+  }
+}
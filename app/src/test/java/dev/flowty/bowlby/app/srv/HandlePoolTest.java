@@ -0,0 +1,174 @@
+package dev.flowty.bowlby.app.srv;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.time.Duration;
+
+import org.junit.jupiter.api.Test;
+
+import dev.flowty.bowlby.app.srv.HandlePool.Lease;
+
+/**
+ * Exercises {@link HandlePool} behaviours
+ */
+@SuppressWarnings("static-method")
+class HandlePoolTest {
+
+  private static class Handle implements Closeable {
+    private volatile boolean closed = false;
+
+    @Override
+    public void close() {
+      closed = true;
+    }
+  }
+
+  private static Handle open( String key ) {
+    return new Handle();
+  }
+
+  /**
+   * Handles are reused, and we count how often that happens
+   *
+   * @throws IOException on failure
+   */
+  @Test
+  void counts() throws IOException {
+    try( HandlePool<String, Handle> pool = new HandlePool<>(
+        "test", 4, Duration.ofMinutes( 1 ) ) ) {
+      Handle first;
+      try( Lease<Handle> lease = pool.acquire( "a", HandlePoolTest::open ) ) {
+        first = lease.handle();
+      }
+      try( Lease<Handle> lease = pool.acquire( "a", HandlePoolTest::open ) ) {
+        assertSame( first, lease.handle() );
+      }
+      try( Lease<Handle> lease = pool.acquire( "b", HandlePoolTest::open ) ) {
+        assertFalse( lease.handle().closed );
+      }
+
+      assertEquals( 1, pool.hits() );
+      assertEquals( 2, pool.misses() );
+      assertEquals( 0, pool.closes() );
+      assertEquals( 2, pool.size() );
+      assertFalse( first.closed );
+      assertEquals( "test pool: 2 open of 4, 1 hits, 2 misses, 0 closed", pool.toString() );
+    }
+  }
+
+  /**
+   * Handles that are in use are not closed by trimming, invalidation or pool
+   * closure, only when they are released
+   *
+   * @throws IOException on failure
+   */
+  @Test
+  void leased() throws IOException {
+    HandlePool<String, Handle> pool = new HandlePool<>( "test", 1, Duration.ofMinutes( 1 ) );
+    Lease<Handle> a = pool.acquire( "a", HandlePoolTest::open );
+
+    // over capacity, but "a" is in use
+    try( Lease<Handle> b = pool.acquire( "b", HandlePoolTest::open ) ) {
+      assertFalse( a.handle().closed );
+      assertFalse( b.handle().closed );
+    }
+    assertFalse( a.handle().closed );
+
+    pool.invalidate( "a" );
+    assertFalse( a.handle().closed );
+
+    pool.close();
+    assertFalse( a.handle().closed );
+
+    Handle handle = a.handle();
+    a.close();
+    assertTrue( handle.closed );
+    // releasing again has no effect
+    a.close();
+    assertEquals( 2, pool.closes() );
+  }
+
+  /**
+   * Handles are closed when the pool is over capacity, least-recently-used first
+   *
+   * @throws IOException on failure
+   */
+  @Test
+  void trim() throws IOException {
+    try( HandlePool<String, Handle> pool = new HandlePool<>(
+        "test", 1, Duration.ofMinutes( 1 ) ) ) {
+      Handle a;
+      try( Lease<Handle> lease = pool.acquire( "a", HandlePoolTest::open ) ) {
+        a = lease.handle();
+      }
+      try( Lease<Handle> lease = pool.acquire( "b", HandlePoolTest::open ) ) {
+        assertTrue( a.closed );
+        assertFalse( lease.handle().closed );
+      }
+      assertEquals( 1, pool.size() );
+      assertEquals( 1, pool.closes() );
+    }
+  }
+
+  /**
+   * Handles that go unused are closed in the background
+   *
+   * @throws Exception on failure
+   */
+  @Test
+  void idle() throws Exception {
+    try( HandlePool<String, Handle> pool = new HandlePool<>(
+        "test", 4, Duration.ofMillis( 50 ) ) ) {
+      Handle handle;
+      try( Lease<Handle> lease = pool.acquire( "a", HandlePoolTest::open ) ) {
+        handle = lease.handle();
+      }
+
+      long deadline = System.currentTimeMillis() + 5000;
+      while( pool.closes() == 0 && System.currentTimeMillis() < deadline ) {
+        Thread.sleep( 10 );
+      }
+
+      assertTrue( handle.closed );
+      assertEquals( 0, pool.size() );
+      assertEquals( 1, pool.closes() );
+    }
+  }
+
+  /**
+   * A failure to open a handle leaves the pool as it was
+   *
+   * @throws IOException on failure
+   */
+  @Test
+  void failure() throws IOException {
+    try( HandlePool<String, Handle> pool = new HandlePool<>(
+        "test", 4, Duration.ofMinutes( 1 ) ) ) {
+      IOException ioe = assertThrows( IOException.class,
+          () -> pool.acquire( "a", key -> {
+            throw new IOException( "no such file: " + key );
+          } ) );
+      assertEquals( "no such file: a", ioe.getMessage() );
+      assertEquals( 0, pool.size() );
+
+      // the next attempt starts afresh
+      Handle handle;
+      try( Lease<Handle> lease = pool.acquire( "a", HandlePoolTest::open ) ) {
+        handle = lease.handle();
+      }
+      assertEquals( 0, pool.hits() );
+      assertEquals( 1, pool.misses() );
+
+      // nobody else holds a reference, so invalidation closes it immediately
+      pool.invalidate( "a" );
+      assertTrue( handle.closed );
+      assertEquals( 0, pool.size() );
+    }
+  }
+}
@@ -0,0 +1,173 @@
+package dev.flowty.bowlby.app.srv;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.Test;
+
+import dev.flowty.bowlby.app.github.Entity.Artifact;
+import dev.flowty.bowlby.app.github.Entity.Branch;
+import dev.flowty.bowlby.app.github.Entity.NamedArtifact;
+import dev.flowty.bowlby.app.github.Entity.Repository;
+import dev.flowty.bowlby.app.github.Entity.Run;
+import dev.flowty.bowlby.app.github.Entity.Workflow;
+import dev.flowty.bowlby.app.github.GithubApiClient;
+
+/**
+ * Exercises {@link LatestArtifactHandler} behaviours
+ */
+@SuppressWarnings("static-method")
+class LatestArtifactHandlerTest {
+
+  private static final Repository REPO = new Repository( "owner", "repo" );
+  private static final Workflow WORKFLOW = new Workflow( REPO, "build.yml" );
+  private static final Branch BRANCH = new Branch( REPO, "main" );
+  private static final Run RUN = new Run( WORKFLOW, "9" );
+  private static final NamedArtifact ARTIFACT = new NamedArtifact(
+      new Artifact( REPO, "123" ), "art" );
+
+  private static GithubApiClient client() {
+    GithubApiClient client = mock( GithubApiClient.class );
+    when( client.getDefaultBranchAsync( REPO ) )
+        .thenReturn( CompletableFuture.completedFuture( BRANCH ) );
+    when( client.getLatestRunAsync( WORKFLOW, BRANCH ) )
+        .thenReturn( CompletableFuture.completedFuture( RUN ) );
+    when( client.streamArtifacts( RUN ) )
+        .thenAnswer( inv -> Stream.of( ARTIFACT ) );
+    return client;
+  }
+
+  private static LatestArtifactHandler handler( GithubApiClient client,
+      Duration cacheValidity, Duration branchValidity ) {
+    return new LatestArtifactHandler( Set.of(), client, cacheValidity, branchValidity,
+        new ServeUtil( "" ), a -> {
+          // no prefetching
+        } );
+  }
+
+  /**
+   * Concurrent requests for a workflow share one lookup
+   *
+   * @throws Exception on failure
+   */
+  @Test
+  void singleFlight() throws Exception {
+    GithubApiClient client = client();
+    CompletableFuture<Run> run = new CompletableFuture<>();
+    CompletableFuture<Void> requested = new CompletableFuture<>();
+    when( client.getLatestRunAsync( WORKFLOW, BRANCH ) ).thenAnswer( inv -> {
+      requested.complete( null );
+      return run;
+    } );
+    LatestArtifactHandler handler = handler( client,
+        Duration.ofMinutes( 1 ), Duration.ofHours( 1 ) );
+
+    List<NamedArtifact> found = new ArrayList<>();
+    ExecutorService exec = Executors.newCachedThreadPool();
+    try {
+      List<Future<Object>> results = new ArrayList<>();
+      results.add( exec.submit( () -> handler.getLatest( WORKFLOW, "art",
+          ( artifact, expiry ) -> found.add( artifact ) ) ) );
+      requested.get( 10, TimeUnit.SECONDS );
+      for( int i = 0; i < 4; i++ ) {
+        results.add( exec.submit( () -> handler.getLatest( WORKFLOW, "art",
+            ( artifact, expiry ) -> found.add( artifact ) ) ) );
+      }
+      // give the others a chance to find the lookup in flight
+      Thread.sleep( 100 );
+      run.complete( RUN );
+
+      Object first = results.get( 0 ).get( 10, TimeUnit.SECONDS );
+      assertNotNull( first );
+      for( Future<Object> result : results ) {
+        assertEquals( first, result.get( 10, TimeUnit.SECONDS ) );
+      }
+    }
+    finally {
+      exec.shutdownNow();
+    }
+
+    verify( client, times( 1 ) ).getDefaultBranchAsync( REPO );
+    verify( client, times( 1 ) ).getLatestRunAsync( WORKFLOW, BRANCH );
+    verify( client, times( 1 ) ).streamArtifacts( RUN );
+    // only the request that did the lookup is told about the artifact early
+    assertEquals( List.of( ARTIFACT ), found );
+  }
+
+  /**
+   * A failure to find the default branch is not cached
+   *
+   * @throws IOException on failure
+   */
+  @Test
+  void branchFailure() throws IOException {
+    GithubApiClient client = client();
+    when( client.getDefaultBranchAsync( REPO ) )
+        .thenReturn( CompletableFuture.completedFuture( null ) )
+        .thenReturn( CompletableFuture.failedFuture( new IllegalStateException( "boom" ) ) )
+        .thenReturn( CompletableFuture.completedFuture( BRANCH ) );
+    LatestArtifactHandler handler = handler( client,
+        Duration.ofMinutes( 1 ), Duration.ofHours( 1 ) );
+
+    assertNull( handler.getLatest( WORKFLOW, null, ( artifact, expiry ) -> {
+      // not interested
+    } ) );
+    assertNull( handler.getLatest( WORKFLOW, null, ( artifact, expiry ) -> {
+      // not interested
+    } ) );
+    assertNotNull( handler.getLatest( WORKFLOW, null, ( artifact, expiry ) -> {
+      // not interested
+    } ) );
+
+    verify( client, times( 3 ) ).getDefaultBranchAsync( REPO );
+    verify( client, times( 1 ) ).getLatestRunAsync( WORKFLOW, BRANCH );
+  }
+
+  /**
+   * The default branch is cached independently of the latest run, and is looked
+   * up again once it goes stale
+   *
+   * @throws Exception on failure
+   */
+  @Test
+  void branchValidity() throws Exception {
+    GithubApiClient client = client();
+    LatestArtifactHandler handler = handler( client,
+        Duration.ZERO, Duration.ofMillis( 200 ) );
+
+    for( int i = 0; i < 3; i++ ) {
+      assertNotNull( handler.getLatest( WORKFLOW, null, ( artifact, expiry ) -> {
+        // not interested
+      } ) );
+      // ensure that the latest run is stale
+      Thread.sleep( 5 );
+    }
+    verify( client, times( 1 ) ).getDefaultBranchAsync( REPO );
+    verify( client, times( 3 ) ).getLatestRunAsync( WORKFLOW, BRANCH );
+
+    Thread.sleep( 250 );
+    assertNotNull( handler.getLatest( WORKFLOW, null, ( artifact, expiry ) -> {
+      // not interested
+    } ) );
+    verify( client, times( 2 ) ).getDefaultBranchAsync( REPO );
+    verify( client, times( 4 ) ).getLatestRunAsync( WORKFLOW, BRANCH );
+  }
+}
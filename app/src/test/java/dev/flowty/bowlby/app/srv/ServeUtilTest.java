@@ -1,6 +1,7 @@
 package dev.flowty.bowlby.app.srv;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.fail;
 
 import java.net.URI;
@@ -36,4 +37,51 @@ class ServeUtilTest {
     test.accept( "?a=b&c=d&a=e", "{a=[b, e], c=[d]}" );
     test.accept( "?%C3%A9nc%C3%B6d%C3%AAd=%C3%A7h%C3%A5rs", "{éncödêd=[çhårs]}" );
   }
+
+  /**
+   * Demonstrates content coding negotiation
+   */
+  @Test
+  void acceptsEncoding() {
+    BiConsumer<String, Boolean> test = ( in, out ) -> assertEquals(
+        out, ServeUtil.acceptsEncoding( in, "gzip" ), "for " + in );
+
+    test.accept( null, false );
+    test.accept( "", false );
+    test.accept( "gzip", true );
+    test.accept( "GZip", true );
+    test.accept( "deflate, gzip, br", true );
+    test.accept( "deflate, br", false );
+    test.accept( "gzip;q=0.5", true );
+    test.accept( "gzip; q=0", false );
+    test.accept( "gzip;q=0.000", false );
+    test.accept( "*", true );
+    test.accept( "*;q=0", false );
+    test.accept( "gzip;q=0, *", false );
+    test.accept( "br, *;q=0.1", true );
+  }
+
+  /**
+   * Demonstrates entity tag matching
+   */
+  @Test
+  void etagMatches() {
+    String etag = ServeUtil.etag( "123", "abc" );
+    assertEquals( "\"123-abc\"", etag );
+
+    BiConsumer<String, Boolean> test = ( in, out ) -> assertEquals(
+        out, ServeUtil.etagMatches( in, etag ), "for " + in );
+
+    test.accept( null, false );
+    test.accept( "", false );
+    test.accept( "*", true );
+    test.accept( "\"123-abc\"", true );
+    test.accept( "W/\"123-abc\"", true );
+    test.accept( "\"123-abd\"", false );
+    test.accept( "123-abc", false );
+    test.accept( "\"x\", \"123-abc\"", true );
+    test.accept( "\"x\",\"y\"", false );
+
+    assertFalse( ServeUtil.etagMatches( "*", null ) );
+  }
 }
@@ -0,0 +1,162 @@
+package dev.flowty.bowlby.app.zip;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardOpenOption.APPEND;
+import static java.util.stream.Collectors.joining;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import dev.flowty.bowlby.app.zip.ZipIndex.Entry;
+
+/**
+ * Exercises {@link PartialZip}
+ */
+@SuppressWarnings("static-method")
+class PartialZipTest {
+
+  private static final String BIG = IntStream.range( 0, 50_000 )
+      .mapToObj( i -> i + "\n" )
+      .collect( joining() );
+
+  private static byte[] zip( Path dir ) throws IOException {
+    Path zip = dir.resolve( "source.zip" );
+    try( OutputStream os = Files.newOutputStream( zip );
+        ZipOutputStream zos = new ZipOutputStream( os ) ) {
+      // deflated entries are written with a trailing data descriptor
+      zos.putNextEntry( new ZipEntry( "index.html" ) );
+      zos.write( "<p>Hello!</p>".getBytes( UTF_8 ) );
+
+      byte[] stored = "stored content".getBytes( UTF_8 );
+      CRC32 crc = new CRC32();
+      crc.update( stored );
+      ZipEntry se = new ZipEntry( "stored.txt" );
+      se.setMethod( ZipEntry.STORED );
+      se.setSize( stored.length );
+      se.setCrc( crc.getValue() );
+      zos.putNextEntry( se );
+      zos.write( stored );
+
+      zos.putNextEntry( new ZipEntry( "dir/big.txt" ) );
+      zos.write( BIG.getBytes( UTF_8 ) );
+    }
+    return Files.readAllBytes( zip );
+  }
+
+  /**
+   * Entries become available as soon as their data has arrived, and match what
+   * we'd get from the central directory
+   *
+   * @param dir A temporary directory
+   * @throws Exception on failure
+   */
+  @Test
+  void progressive( @TempDir Path dir ) throws Exception {
+    byte[] content = zip( dir );
+    Files.write( dir.resolve( "complete.zip" ), content );
+    ZipIndex expected = ZipIndex.read( dir.resolve( "complete.zip" ) );
+
+    Path part = dir.resolve( "123.zip.part" );
+    Files.createFile( part );
+    PartialZip partial = new PartialZip( dir.resolve( "123.zip" ), part );
+
+    int arrived = 0;
+    int step = 100;
+    StringBuilder history = new StringBuilder();
+    while( arrived < content.length ) {
+      int length = Math.min( step, content.length - arrived );
+      Files.write( part, Arrays.copyOfRange( content, arrived, arrived + length ), APPEND );
+      arrived += length;
+      int before = partial.size();
+      partial.advance( arrived );
+      if( partial.size() != before ) {
+        history.append( partial.size() );
+      }
+    }
+    assertEquals( "123", history.toString() );
+
+    for( String name : new String[] { "index.html", "stored.txt", "dir/big.txt" } ) {
+      assertEquals( expected.find( name ), partial.await( name ) );
+    }
+
+    try( ZipArchive archive = partial.open();
+        InputStream is = archive.open( partial.await( "dir/big.txt" ) ) ) {
+      assertEquals( BIG, new String( is.readAllBytes(), UTF_8 ) );
+    }
+  }
+
+  /**
+   * Progress reports don't parse anything themselves, and reports that arrive
+   * while a parsing pass is pending are handled by that pass
+   *
+   * @param dir A temporary directory
+   * @throws Exception on failure
+   */
+  @Test
+  void deferred( @TempDir Path dir ) throws Exception {
+    byte[] content = zip( dir );
+    Path part = dir.resolve( "123.zip.part" );
+    Files.write( part, content );
+    Deque<Runnable> passes = new ArrayDeque<>();
+    PartialZip partial = new PartialZip( dir.resolve( "123.zip" ), part, passes::add );
+
+    partial.advance( 100 );
+    partial.advance( content.length );
+    partial.advance( 200 );
+    assertEquals( 1, passes.size() );
+    assertEquals( 0, partial.size() );
+
+    passes.remove().run();
+    assertEquals( 3, partial.size() );
+    assertEquals( 0, passes.size() );
+
+    // the next report schedules another pass
+    partial.advance( content.length );
+    assertEquals( 1, passes.size() );
+  }
+
+  /**
+   * Waiters for entries that never arrive are released when the download ends
+   *
+   * @param dir A temporary directory
+   * @throws Exception on failure
+   */
+  @Test
+  void finish( @TempDir Path dir ) throws Exception {
+    byte[] content = zip( dir );
+    Path part = dir.resolve( "123.zip.part" );
+    Files.write( part, Arrays.copyOf( content, 200 ) );
+    PartialZip partial = new PartialZip( dir.resolve( "123.zip" ), part );
+    partial.advance( 200 );
+    assertEquals( "index.html", partial.await( "index.html" ).name() );
+
+    CompletableFuture<Entry> waiter = CompletableFuture.supplyAsync( () -> {
+      try {
+        return partial.await( "dir/big.txt" );
+      }
+      catch( InterruptedException e ) {
+        throw new IllegalStateException( e );
+      }
+    } );
+    partial.finish();
+    assertNull( waiter.get( 5, TimeUnit.SECONDS ) );
+    assertNull( partial.await( "no/such/file" ) );
+  }
+}
@@ -0,0 +1,135 @@
+package dev.flowty.bowlby.app.zip;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.stream.Collectors.joining;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.IntStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import dev.flowty.bowlby.app.zip.ZipIndex.Entry;
+
+/**
+ * Exercises {@link RemoteZip}
+ */
+@SuppressWarnings("static-method")
+class RemoteZipTest {
+
+  private static final String BIG = IntStream.range( 0, 50_000 )
+      .mapToObj( i -> i + "\n" )
+      .collect( joining() );
+
+  /**
+   * Serves ranges of a byte array, recording what was asked for
+   */
+  private static class ArraySource implements RemoteZip.Source {
+    private final byte[] content;
+    private final List<String> fetches = new ArrayList<>();
+
+    ArraySource( byte[] content ) {
+      this.content = content;
+    }
+
+    @Override
+    public long size() {
+      return content.length;
+    }
+
+    @Override
+    public void fetch( long first, long last, FileChannel target ) throws IOException {
+      fetches.add( first + "-" + last );
+      target.write( ByteBuffer.wrap( content, (int) first, (int) (last + 1 - first) ), first );
+    }
+  }
+
+  private static byte[] zip( Path dir ) throws IOException {
+    Path zip = dir.resolve( "source.zip" );
+    byte[] noise = new byte[200_000];
+    new Random( 1 ).nextBytes( noise );
+    try( OutputStream os = Files.newOutputStream( zip );
+        ZipOutputStream zos = new ZipOutputStream( os ) ) {
+      zos.putNextEntry( new ZipEntry( "noise.bin" ) );
+      zos.write( noise );
+      zos.putNextEntry( new ZipEntry( "index.html" ) );
+      zos.write( "<p>Hello!</p>".getBytes( UTF_8 ) );
+      zos.putNextEntry( new ZipEntry( "dir/big.txt" ) );
+      zos.write( BIG.getBytes( UTF_8 ) );
+    }
+    return Files.readAllBytes( zip );
+  }
+
+  /**
+   * Only the central directory and the requested entries are fetched
+   *
+   * @param dir A temporary directory
+   * @throws Exception on failure
+   */
+  @Test
+  void remote( @TempDir Path dir ) throws Exception {
+    byte[] content = zip( dir );
+    ArraySource source = new ArraySource( content );
+    Path sparse = dir.resolve( "123.zip.sparse" );
+    try( RemoteZip remote = new RemoteZip( source, dir.resolve( "123.zip" ), sparse, 1 ) ) {
+      ZipIndex index = remote.index();
+      assertEquals( ZipIndex.read( dir.resolve( "source.zip" ) ).list( "" ), index.list( "" ) );
+      assertEquals( 1, source.fetches.size(), "central directory in the tail" );
+      assertEquals( content.length, remote.size() );
+
+      Entry html = index.find( "index.html" );
+      remote.fetch( html );
+      try( ZipArchive archive = remote.open();
+          InputStream is = archive.open( html ) ) {
+        assertEquals( "<p>Hello!</p>", new String( is.readAllBytes(), UTF_8 ) );
+      }
+      assertEquals( 2, source.fetches.size() );
+      assertTrue( remote.fetched() < content.length / 2, "fetched " + remote.fetched() );
+
+      // subsequent requests are served locally
+      remote.fetch( html );
+      assertEquals( 2, source.fetches.size() );
+
+      Entry big = index.find( "dir/big.txt" );
+      remote.fetch( big );
+      try( ZipArchive archive = remote.open();
+          InputStream is = archive.open( big ) ) {
+        assertEquals( BIG, new String( is.readAllBytes(), UTF_8 ) );
+      }
+    }
+    assertFalse( Files.exists( sparse ) );
+  }
+
+  /**
+   * Small files aren't worth reading remotely
+   *
+   * @param dir A temporary directory
+   * @throws Exception on failure
+   */
+  @Test
+  void small( @TempDir Path dir ) throws Exception {
+    byte[] content = zip( dir );
+    ArraySource source = new ArraySource( content );
+    try( RemoteZip remote = new RemoteZip( source, dir.resolve( "123.zip" ),
+        dir.resolve( "123.zip.sparse" ), content.length + 1 ) ) {
+      assertNull( remote.index() );
+      assertEquals( content.length, remote.size() );
+      assertEquals( List.of(), source.fetches );
+    }
+  }
+}
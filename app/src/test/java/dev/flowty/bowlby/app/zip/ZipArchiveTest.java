@@ -0,0 +1,230 @@
+package dev.flowty.bowlby.app.zip;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.stream.Collectors.joining;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import dev.flowty.bowlby.app.zip.ZipIndex.Entry;
+
+/**
+ * Exercises {@link ZipArchive} and {@link ZipIndex}
+ */
+@SuppressWarnings("static-method")
+class ZipArchiveTest {
+
+  private static final String TEXT = "Hello, world! ".repeat( 100 );
+  private static final String BIG = IntStream.range( 0, 200_000 )
+      .mapToObj( i -> i + "\n" )
+      .collect( joining() );
+
+  private static Path zip( Path dir ) throws IOException {
+    Path zip = dir.resolve( "123.zip" );
+    try( OutputStream os = Files.newOutputStream( zip );
+        ZipOutputStream zos = new ZipOutputStream( os ) ) {
+      zos.putNextEntry( new ZipEntry( "file.txt" ) );
+      zos.write( TEXT.getBytes( UTF_8 ) );
+
+      byte[] stored = "stored content".getBytes( UTF_8 );
+      CRC32 crc = new CRC32();
+      crc.update( stored );
+      ZipEntry se = new ZipEntry( "subdir/stored.txt" );
+      se.setMethod( ZipEntry.STORED );
+      se.setSize( stored.length );
+      se.setCrc( crc.getValue() );
+      zos.putNextEntry( se );
+      zos.write( stored );
+
+      zos.putNextEntry( new ZipEntry( "explicit/" ) );
+      zos.putNextEntry( new ZipEntry( "subdir/deeper/deep.txt" ) );
+      zos.write( "deep".getBytes( UTF_8 ) );
+
+      zos.putNextEntry( new ZipEntry( "big.txt" ) );
+      zos.write( BIG.getBytes( UTF_8 ) );
+    }
+    return zip;
+  }
+
+  private static String content( ZipArchive archive, String name ) throws IOException {
+    try( InputStream is = archive.open( archive.index().find( name ) ) ) {
+      return new String( is.readAllBytes(), UTF_8 );
+    }
+  }
+
+  /**
+   * Entries can be found and directories listed
+   *
+   * @param dir A temporary directory
+   * @throws IOException on failure
+   */
+  @Test
+  void index( @TempDir Path dir ) throws IOException {
+    ZipIndex index = ZipArchive.index( zip( dir ) );
+
+    assertEquals( 5, index.size() );
+    Entry file = index.find( "file.txt" );
+    assertEquals( Entry.DEFLATED, file.method() );
+    assertEquals( TEXT.length(), file.size() );
+    assertTrue( file.compressedSize() < file.size() );
+    assertEquals( Entry.STORED, index.find( "subdir/stored.txt" ).method() );
+    assertNull( index.find( "subdir" ) );
+    assertNull( index.find( "nope.txt" ) );
+
+    assertTrue( index.isDirectory( "" ) );
+    assertTrue( index.isDirectory( "subdir" ) );
+    assertTrue( index.isDirectory( "subdir/deeper" ) );
+    assertTrue( index.isDirectory( "explicit" ) );
+    assertFalse( index.isDirectory( "file.txt" ) );
+    assertFalse( index.isDirectory( "sub" ) );
+
+    assertEquals( "[big.txt, explicit/, file.txt, subdir/]", index.list( "" ).toString() );
+    assertEquals( "[deeper/, stored.txt]", index.list( "subdir" ).toString() );
+    assertEquals( "[]", index.list( "explicit" ).toString() );
+  }
+
+  /**
+   * The index is persisted alongside the zip, and loaded in preference to parsing
+   * the zip
+   *
+   * @param dir A temporary directory
+   * @throws IOException on failure
+   */
+  @Test
+  void persistence( @TempDir Path dir ) throws IOException {
+    Path zip = zip( dir );
+    ZipIndex built = ZipArchive.index( zip );
+    Path idx = dir.resolve( "123.idx" );
+    assertEquals( idx, ZipArchive.indexPath( zip ) );
+    assertTrue( Files.exists( idx ) );
+
+    ZipIndex loaded = ZipIndex.load( idx );
+    assertEquals( built.size(), loaded.size() );
+    for( String name : new String[] { "file.txt", "subdir/stored.txt", "explicit/",
+        "subdir/deeper/deep.txt" } ) {
+      assertEquals( built.find( name ), loaded.find( name ) );
+    }
+  }
+
+  /**
+   * Entry content can be read, and a corrupt index is rebuilt
+   *
+   * @param dir A temporary directory
+   * @throws IOException on failure
+   */
+  @Test
+  void content( @TempDir Path dir ) throws IOException {
+    Path zip = zip( dir );
+    Files.write( ZipArchive.indexPath( zip ), "garbage".getBytes( UTF_8 ) );
+
+    try( ZipArchive archive = ZipArchive.open( zip ) ) {
+      assertEquals( TEXT, content( archive, "file.txt" ) );
+      assertEquals( "stored content", content( archive, "subdir/stored.txt" ) );
+      assertEquals( "deep", content( archive, "subdir/deeper/deep.txt" ) );
+    }
+  }
+
+  /**
+   * Deflated entries can be served as gzip without being inflated
+   *
+   * @param dir A temporary directory
+   * @throws IOException on failure
+   */
+  @Test
+  void gzip( @TempDir Path dir ) throws IOException {
+    try( ZipArchive archive = ZipArchive.open( zip( dir ) ) ) {
+      Entry entry = archive.index().find( "file.txt" );
+
+      byte[] gzipped;
+      try( InputStream is = archive.gzip( entry ) ) {
+        gzipped = is.readAllBytes();
+      }
+      assertEquals( ZipArchive.gzipLength( entry ), gzipped.length );
+
+      try( InputStream is = new GZIPInputStream( new ByteArrayInputStream( gzipped ) ) ) {
+        assertEquals( TEXT, new String( is.readAllBytes(), UTF_8 ) );
+      }
+
+      assertThrows( ZipException.class,
+          () -> archive.gzip( archive.index().find( "subdir/stored.txt" ) ) );
+    }
+  }
+
+  /**
+   * Stored entries can be copied directly from the zip
+   *
+   * @param dir A temporary directory
+   * @throws IOException on failure
+   */
+  @Test
+  void transfer( @TempDir Path dir ) throws IOException {
+    try( ZipArchive archive = ZipArchive.open( zip( dir ) ) ) {
+      ByteArrayOutputStream baos = new ByteArrayOutputStream();
+      Entry entry = archive.index().find( "subdir/stored.txt" );
+      assertEquals( entry.size(), archive.transfer( entry, 0, entry.size(), baos ) );
+      assertEquals( "stored content", new String( baos.toByteArray(), UTF_8 ) );
+    }
+  }
+
+  /**
+   * Parts of entries can be copied, whatever their compression, and the listener
+   * is told about inflated copies
+   *
+   * @param dir A temporary directory
+   * @throws IOException on failure
+   */
+  @Test
+  void ranges( @TempDir Path dir ) throws IOException {
+    Path zip = zip( dir );
+    List<String> inflated = new ArrayList<>();
+    try( ZipArchive archive = ZipArchive.open( zip ).withInflationListener(
+        ( z, bytes ) -> inflated.add( z.getFileName() + ":" + bytes ) ) ) {
+      assertEquals( "ello", range( archive, "file.txt", 1, 4 ) );
+      assertEquals( "content", range( archive, "subdir/stored.txt", 7, 7 ) );
+
+      Entry big = archive.index().find( "big.txt" );
+      assertTrue( big.size() >= ZipArchive.INFLATE_THRESHOLD );
+      long offset = big.size() - 20;
+      assertEquals( BIG.substring( (int) offset, (int) offset + 10 ),
+          range( archive, "big.txt", offset, 10 ) );
+      assertTrue( Files.isDirectory( ZipArchive.inflatedPath( zip ) ) );
+      // served from the inflated copy this time
+      assertEquals( BIG.substring( 0, 10 ), range( archive, "big.txt", 0, 10 ) );
+      assertEquals( List.of( zip.getFileName() + ":" + big.size() ), inflated );
+    }
+
+    ZipArchive.delete( zip );
+    try( Stream<Path> files = Files.list( dir ) ) {
+      assertEquals( "[]", files.toList().toString() );
+    }
+  }
+
+  private static String range( ZipArchive archive, String name, long offset, long count )
+      throws IOException {
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    archive.transfer( archive.index().find( name ), offset, count, baos );
+    return new String( baos.toByteArray(), UTF_8 );
+  }
+}
@@ -95,11 +95,12 @@ public class LatestFromWorkflow extends EagerModel {
                     .tags( Tags.add( "artifacts" ) )
                     .request( ApiMessage.request(
                         "/repos/therealryan/bowlby/actions/runs/" + PathVars.RUN_ID
-                            + "/artifacts" )
+                            + "/artifacts?per_page=100&page=1" )
                         .set( PathVars.RUN_ID, 11111 )
                         .masking( Unpredictables.RNG, m -> m
                             .replace( PathVars.RUN_ID, "_masked_" ) ) )
                     .response( ApiMessage.response(
+                        "total_count", 2,
                         "artifacts[0].id", 22222,
                         "artifacts[0].name", "artifact_alpha",
                         "artifacts[1].id", 33333,
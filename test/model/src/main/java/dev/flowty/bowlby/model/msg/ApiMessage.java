@@ -40,7 +40,9 @@ public class ApiMessage {
         .set( HttpMsg.header( "x-github-api-version" ), "2022-11-28" )
         .masking( Unpredictables.RNG, m -> m
             .delete( Stream.of(
-                "connection", "content-length", "host", "http2-settings", "upgrade", "user-agent" )
+                "connection", "content-length", "host", "http2-settings", "upgrade", "user-agent",
+                // conditional requests depend on what we've asked for before
+                "if-modified-since", "if-none-match" )
                 .map( HttpMsg::header ) ) );
   }
 
@@ -141,7 +141,7 @@ public class HttpMessage {
         .set( "/html/body/h1/a/@href", "/" )
         .masking( Unpredictables.BORING, m -> m
             .delete( Stream.of(
-                "content-length", "date" )
+                "content-length", "date", "etag" )
                 .map( HttpMsg::header ) ) );
 
     for( int i = 0; i < files.length; i++ ) {
@@ -162,12 +162,14 @@ public class HttpMessage {
     return new HttpRes()
         .set( HttpMsg.VERSION, "HTTP/1.1" )
         .set( HttpRes.STATUS, 200 )
+        .set( HttpMsg.header( "accept-ranges" ), "bytes" )
         .set( HttpMsg.header( "cache-control" ), "max-age=31536000, immutable" )
         .set( HttpMsg.header( "content-type" ), "text/plain" )
+        .set( HttpMsg.header( "vary" ), "accept-encoding" )
         .set( HttpMsg.BODY, new Text( body ) )
         .masking( Unpredictables.BORING, m -> m
             .delete( Stream.of(
-                "content-length", "date" )
+                "content-length", "date", "etag" )
                 .map( HttpMsg::header ) ) );
   }
 